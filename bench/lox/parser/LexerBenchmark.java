@@ -0,0 +1,86 @@
+package lox.parser;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Lexing throughput on a generated source of a few megabytes, made of the usual mix of classes, functions, loops,
+ * strings, numbers and comments. Measured both with the source in memory and streamed through a Reader, the way files
+ * are lexed
+ *
+ * Lives outside src so it isn't shipped with the interpreter. Build it against the compiled interpreter:
+ *   javac -cp out -d bench-out bench/lox/parser/LexerBenchmark.java
+ *
+ * Usage: java -cp out:bench-out lox.parser.LexerBenchmark [megabytes] [rounds]
+ */
+public class LexerBenchmark {
+    private interface Run {
+        Tokens lex() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        char[] source = generate(megabytes * 1024 * 1024);
+        measure("in memory", source.length, rounds, () -> Lexer.parseTokens(source, source.length));
+        measure("streamed", source.length, rounds, () -> Lexer.parseTokens(new CharArrayReader(source)));
+    }
+
+    private static void measure(String name, int chars, int rounds, Run run) throws IOException {
+        // Let the JIT get to the lexer before timing it
+        for(int i = 0; i < 3; i++){
+            run.lex();
+        }
+
+        long best = Long.MAX_VALUE;
+        int tokens = 0;
+        for(int i = 0; i < rounds; i++){
+            long start = System.nanoTime();
+            tokens = run.lex().size();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double seconds = best / 1e9;
+        System.out.printf("%s: %d chars, %d tokens, best of %d: %.1f ms, %.1f MB/s, %.1f M tokens/s%n",
+                name, chars, tokens, rounds, seconds * 1000, chars / seconds / (1024 * 1024), tokens / seconds / 1e6);
+    }
+
+    private static char[] generate(int size){
+        Random random = new Random(42); // Same source every run
+        StringBuilder source = new StringBuilder(size + 1024);
+        int count = 0;
+        while(source.length() < size){
+            // A bounded pool of names, so interning sees mostly names it already has like real code does
+            String name = "item" + random.nextInt(500);
+            source.append("// Definitions for ").append(name).append('\n')
+                    .append("class ").append(capitalize(name)).append(count).append(" < Base {\n")
+                    .append("  init(size, label) {\n")
+                    .append("    this.size = size;\n")
+                    .append("    this.label = \"").append(name).append(" number ").append(count).append("\";\n")
+                    .append("  }\n")
+                    .append("  total() {\n")
+                    .append("    var sum = 0;\n")
+                    .append("    for (var i = 0; i < this.size; i = i + 1) {\n")
+                    .append("      if (i >= ").append(random.nextInt(100)).append(" and i != this.size / 2) sum = sum + i * ")
+                    .append(random.nextInt(1000)).append('.').append(random.nextInt(100)).append(";\n")
+                    .append("    }\n")
+                    .append("    return sum;\n")
+                    .append("  }\n")
+                    .append("}\n")
+                    .append("/* ").append(name).append(" is only used\n   below */\n")
+                    .append("fun make").append(count).append("(n) {\n")
+                    .append("  var ").append(name).append(" = ").append(capitalize(name)).append(count).append("(n, nil);\n")
+                    .append("  while (!(").append(name).append(".total() <= n)) { print ").append(name).append(".label; }\n")
+                    .append("  return ").append(name).append(" == nil or true;\n")
+                    .append("}\n");
+            count++;
+        }
+        char[] chars = new char[source.length()];
+        source.getChars(0, chars.length, chars, 0);
+        return chars;
+    }
+
+    private static String capitalize(String name){
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -1,43 +1,126 @@
 package lox;
 
 import lox.exception.LoxRuntimeException;
+import lox.compiler.Loxc;
 import lox.exception.ParseException;
+import lox.execution.CacheStats;
 import lox.execution.InterpreterVisitor;
+import lox.execution.Tier;
+import lox.execution.TraceStats;
+import lox.nodes.NodeInterpreter;
+import lox.nodes.NodeStats;
+import lox.optimize.LoopOptimizer;
+import lox.optimize.Optimizer;
 import lox.parser.*;
 import lox.semantic.Resolver;
+import lox.vm.VM;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Consumer;
 
 public class Lox {
     private static boolean hadError = false;
     private static boolean hadRuntimeError = false;
     private static boolean ignoreErrors = false;
+    private static Engine engine = Engine.TREE;
+    private static boolean printStats = false;
+    private static boolean pipeline = false; // Run each declaration as soon as it's parsed
+    private static String jarPath = null; // Output of --loxc
+    // Tiering in the tree walker: calls before a function gets compiled, iterations before a loop does
+    private static int callThreshold = Tier.DEFAULT_CALL_THRESHOLD;
+    private static int loopThreshold = Tier.DEFAULT_LOOP_THRESHOLD;
+    private static int traceThreshold = Tier.DEFAULT_TRACE_THRESHOLD;
+    private static boolean logTierUps = false;
+
+    private enum Engine {
+        TREE,  // InterpreterVisitor
+        NODES, // NodeInterpreter
+        VM,
+        LOXC   // Compile to a jar instead of running
+    }
 
     public static void main(String[] args) throws IOException {
-        if(args.length >= 2){
-            System.out.println("Usage: jlox [file]");
-            System.exit(60);
-        } else if(args.length == 1){
-            runFile(args[0]);
+        String path = null;
+        for(int i = 0; i < args.length; i++){
+            String arg = args[i];
+            // Engines are only used for files, the REPL always uses the tree walker
+            if(arg.equals("--loxc") && i + 1 < args.length){
+                engine = Engine.LOXC;
+                jarPath = args[++i];
+            } else if(arg.equals("--jit-calls") && i + 1 < args.length){
+                callThreshold = threshold(args[++i]);
+            } else if(arg.equals("--jit-loops") && i + 1 < args.length){
+                loopThreshold = threshold(args[++i]);
+            } else if(arg.equals("--trace-loops") && i + 1 < args.length){
+                traceThreshold = threshold(args[++i]);
+            } else if(arg.equals("--jit-log")){
+                logTierUps = true;
+            } else if(arg.equals("--vm")){
+                engine = Engine.VM;
+            } else if(arg.equals("--nodes")){
+                engine = Engine.NODES;
+            } else if(arg.equals("--stats")){
+                printStats = true;
+            } else if(arg.equals("--pipeline")){
+                pipeline = true;
+            } else if(arg.startsWith("--") || path != null){
+                usage();
+            } else {
+                path = arg;
+            }
+        }
+
+        // The VM and loxc need the whole program up front
+        if(pipeline && (engine == Engine.VM || engine == Engine.LOXC)){
+            usage();
+        }
+
+        Tier.configure(callThreshold, loopThreshold, traceThreshold, logTierUps);
+        if(path != null){
+            runFile(path);
+        } else if(engine == Engine.LOXC){
+            usage();
         } else {
             runPrompt();
         }
     }
 
+    private static void usage(){
+        System.out.println("Usage: jlox [--vm | --nodes | --loxc out.jar] [--pipeline] [--stats] [--jit-calls n] [--jit-loops n] [--trace-loops n] [--jit-log] [file]");
+        System.exit(60);
+    }
+
+    // 0 turns that kind of compilation off
+    private static int threshold(String arg){
+        try {
+            int threshold = Integer.parseInt(arg);
+            if(threshold >= 0){
+                return threshold;
+            }
+        } catch (NumberFormatException e){
+            // Falls through to the usage message
+        }
+        usage();
+        return 0;
+    }
+
     private static void reset(){
         hadError = false;
         hadRuntimeError = false;
     }
 
-    private static void run(String script) {
-        List<Token> tokens = Lexer.parseTokens(script);
+    private static void run(Reader script) throws IOException {
+        Tokens tokens = Lexer.parseTokens(script);
         if(hadError) return; // Stop if we have lexing errors
 
         Parser parser = new Parser(tokens);
@@ -45,11 +128,91 @@ public class Lox {
         if(hadError) return; // Stop if we have parsing errors
 
         Resolver resolver = new Resolver();
-        Map<Expr, Integer> resolutions = resolver.performResolve(program);
+        resolver.performResolve(program);
         if(hadError) return; // Stop if we have resolution errors
 
-        InterpreterVisitor interpreter = new InterpreterVisitor(resolutions);
-        interpreter.interpret(program);
+        program = new Optimizer().optimize(program);
+        program = new LoopOptimizer().optimize(program);
+        resolver.layOut(program);
+
+        switch(engine){
+            case LOXC:
+                Loxc.compile(program, jarPath);
+                break;
+            case VM:
+                new VM().interpret(program);
+                break;
+            case NODES:
+                new NodeInterpreter().interpret(program);
+                break;
+            default:
+                InterpreterVisitor interpreter = new InterpreterVisitor();
+                interpreter.interpret(program);
+        }
+        if(printStats){
+            reportStats();
+        }
+    }
+
+    /**
+     * Lexes, parses, resolves, optimizes and runs one top level declaration at a time, instead of each stage going
+     * over the whole program before the next starts. Output starts as soon as the first statement is read, and a
+     * statement is garbage once it has run, unless something at runtime still points into it (like a function)
+     *
+     * Unlike run, an error only stops the program once it's reached, and the loop optimizer can't assume anything
+     * about globals since the rest of the program can still assign them. After an error the rest still gets parsed (and
+     * resolved, until there's a syntax error) so it reports the same errors run would
+     */
+    private static void runPipelined(Reader script) throws IOException {
+        Parser parser = new Parser(Lexer.stream(script));
+        Resolver resolver = new Resolver();
+        Optimizer optimizer = new Optimizer();
+        LoopOptimizer loopOptimizer = new LoopOptimizer(false);
+        Consumer<List<Stmt>> interpreter = engine == Engine.NODES
+                ? new NodeInterpreter()::interpret
+                : new InterpreterVisitor()::interpret;
+
+        boolean resolving = true;
+        try {
+            while(!parser.isDone()){
+                boolean hadErrorBefore = hadError;
+                Stmt declaration = parser.nextDeclaration();
+                // Stop if we have lexing or parsing errors. A declaration that didn't parse comes back as null, which is
+                // the only sign of it once an earlier resolver error has already set hadError
+                if(declaration == null || (hadError && !hadErrorBefore)){
+                    resolving = false;
+                }
+                if(!resolving) continue;
+
+                List<Stmt> program = Collections.singletonList(declaration);
+                resolver.performResolve(program);
+                if(hadError) continue; // Nothing else runs once there's an error
+
+                program = loopOptimizer.optimize(optimizer.optimize(program));
+                resolver.layOut(program);
+                interpreter.accept(program);
+                if(hadRuntimeError) return;
+            }
+        } catch (UncheckedIOException e){
+            throw e.getCause();
+        } finally {
+            if(printStats){
+                reportStats();
+            }
+        }
+    }
+
+    // Only the tree walker and the nodes keep stats
+    private static void reportStats(){
+        switch(engine){
+            case NODES:
+                System.err.println(NodeStats.report());
+                System.err.println(CacheStats.report());
+                break;
+            case TREE:
+                System.err.println(CacheStats.report());
+                System.err.println(TraceStats.report());
+        }
     }
 
     private static void runPrompt() throws IOException {
@@ -63,7 +226,7 @@ public class Lox {
                 System.out.print("> ");
                 String input = reader.readLine();
 
-                List<Token> tokens = Lexer.parseTokens(input);
+                Tokens tokens = Lexer.parseTokens(input);
                 if (hadError) continue;
 
                 Parser parser = new Parser(tokens);
@@ -88,9 +251,21 @@ public class Lox {
         }
     }
 
+    /**
+     * Sources are always UTF-8, whatever the platform default is. The file is decoded as the Lexer reads it, so it
+     * never has to be in memory all at once
+     */
     private static void runFile(String path) throws IOException {
-        byte[] script = Files.readAllBytes(Paths.get(path));
-        run(new String(script, Charset.defaultCharset()));
+        try(Reader script = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)){
+            if(pipeline){
+                runPipelined(script);
+            } else {
+                run(script);
+            }
+        } catch (CharacterCodingException e){
+            System.err.println("Source file isn't valid UTF-8: " + path);
+            System.exit(65);
+        }
 
         if(hadError){
             System.exit(65);
@@ -120,7 +295,7 @@ public class Lox {
 
     public static void runtimeError(LoxRuntimeException error){
         System.err.println("Lox runtime exception: " + error.getMessage() +
-                "\n\tat [line " + error.getToken().getLine() + "]\n");
+                "\n\tat [line " + error.getLine() + "]\n");
         hadRuntimeError = true;
     }
 }
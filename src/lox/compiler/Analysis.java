@@ -0,0 +1,276 @@
+package lox.compiler;
+
+import lox.parser.Expr;
+import lox.parser.Stmt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the locals that are used by a function other than the one declaring them. Those have to live in a Cell so
+ * the closure and the declaring function share them, everything else can stay in a JVM local
+ *
+ * Also finds the scopes a function or class gets declared in (directly or in a nested block). TierCompiler has to give
+ * those a real Env, since that's what the closure keeps
+ *
+ * Scopes are pushed in exactly the same places the Resolver pushes them, so the depth/slot pairs it left on the nodes
+ * can be followed here. A scope is identified by the node that opened it: the Stmt.Fun for a function's own scope, the
+ * Stmt.Block for a block and the Stmt.Class for the scope holding 'super'. Blocks that share their enclosing Env don't
+ * get a scope, their locals belong to the one they share
+ */
+class Analysis implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static class Scope {
+        final Object node;
+        final Object function;
+
+        Scope(Object node, Object function){
+            this.node = node;
+            this.function = function;
+        }
+    }
+
+    private final List<Scope> scopes = new ArrayList<>();
+    private Object currentFunction;
+    private final Map<Object, Set<Integer>> captured = new IdentityHashMap<>();
+    private final Set<Object> closureScopes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Analysis(Object program){
+        this.currentFunction = program;
+    }
+
+    static Analysis of(List<Stmt> program){
+        Analysis analysis = new Analysis(program);
+        analysis.analyse(program);
+        return analysis;
+    }
+
+    /**
+     * Analyses a single function or loop, for TierCompiler. References to scopes outside of it are left alone
+     */
+    static Analysis of(Stmt unit){
+        Analysis analysis = new Analysis(unit);
+        if(unit instanceof Stmt.Fun){
+            analysis.function((Stmt.Fun) unit);
+        } else {
+            unit.accept(analysis);
+        }
+        return analysis;
+    }
+
+    boolean declaresClosures(Object scope){
+        return closureScopes.contains(scope);
+    }
+
+    /**
+     * @return true if a function or class is declared anywhere in the unit
+     */
+    boolean hasClosures(){
+        return !closureScopes.isEmpty();
+    }
+
+    boolean isCaptured(Object scope, int slot){
+        Set<Integer> slots = captured.get(scope);
+        return slots != null && slots.contains(slot);
+    }
+
+    private void analyse(List<Stmt> statements){
+        for(Stmt statement: statements){
+            statement.accept(this);
+        }
+    }
+
+    private void reference(int depth, int slot){
+        int index = scopes.size() - 1 - depth;
+        if(index < 0){
+            return;
+        }
+        Scope scope = scopes.get(index);
+        if(scope.function != currentFunction){
+            captured.computeIfAbsent(scope.node, node -> new HashSet<>()).add(slot);
+        }
+    }
+
+    // Every scope of the current function that encloses the declaration
+    private void declareClosure(){
+        for(int i = scopes.size() - 1; i >= 0 && scopes.get(i).function == currentFunction; i--){
+            closureScopes.add(scopes.get(i).node);
+        }
+    }
+
+    private void function(Stmt.Fun function){
+        Object enclosing = currentFunction;
+        currentFunction = function;
+        scopes.add(new Scope(function, function));
+        analyse(function.body);
+        scopes.remove(scopes.size() - 1);
+        currentFunction = enclosing;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        if(!expr.isGlobal){
+            reference(expr.depth, expr.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        if(!expr.isGlobal){
+            reference(expr.depth, expr.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        expr.calle.accept(this);
+        for(Expr arg: expr.args){
+            arg.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        expr.target.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        expr.target.accept(this);
+        expr.val.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        reference(expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        reference(expr.depth, expr.slot);
+        reference(expr.depth - 1, 0); // 'this' of the method, which sits right inside the 'super' scope
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if(stmt.init != null){
+            stmt.init.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declareClosure();
+        if(stmt.superclass != null){
+            stmt.superclass.accept(this);
+            scopes.add(new Scope(stmt, currentFunction));
+        }
+        for(Stmt.Fun method: stmt.methods){
+            function(method);
+        }
+        if(stmt.superclass != null){
+            scopes.remove(scopes.size() - 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunStmt(Stmt.Fun stmt) {
+        declareClosure();
+        function(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.sharesEnv){
+            analyse(stmt.statements);
+            return null;
+        }
+        scopes.add(new Scope(stmt, currentFunction));
+        analyse(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        stmt.thenCase.accept(this);
+        if(stmt.elseCase != null){
+            stmt.elseCase.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.cond.accept(this);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value != null){
+            stmt.value.accept(this);
+        }
+        return null;
+    }
+}
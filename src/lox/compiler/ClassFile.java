@@ -0,0 +1,192 @@
+package lox.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file writer, just enough for what JvmCompiler generates
+ *
+ * Classes are written as version 49 (Java 5) so they're checked by the type inferring verifier and we don't need to
+ * emit StackMapTable frames
+ */
+class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String name;
+    private final String superName;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolSize = 1;
+
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName){
+        this.name = name;
+        this.superName = superName;
+    }
+
+    String getName(){
+        return name;
+    }
+
+    private int constant(String key, int size, PoolWriter writer){
+        Integer index = constants.get(key);
+        if(index != null){
+            return index;
+        }
+        try {
+            writer.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolSize;
+        poolSize += size;
+        constants.put(key, index);
+        return index;
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    int utf8(String value){
+        return constant("U" + value, 1, () -> {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(String className){
+        int nameIndex = utf8(className);
+        return constant("C" + className, 1, () -> {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(nameIndex);
+        });
+    }
+
+    int string(String value){
+        int index = utf8(value);
+        return constant("S" + value, 1, () -> {
+            pool.writeByte(CONSTANT_STRING);
+            pool.writeShort(index);
+        });
+    }
+
+    int integer(int value){
+        return constant("I" + value, 1, () -> {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        });
+    }
+
+    int doubleConstant(double value){
+        return constant("D" + Double.doubleToRawLongBits(value), 2, () -> {
+            pool.writeByte(CONSTANT_DOUBLE);
+            pool.writeDouble(value);
+        });
+    }
+
+    private int nameAndType(String memberName, String descriptor){
+        int nameIndex = utf8(memberName);
+        int typeIndex = utf8(descriptor);
+        return constant("N" + memberName + ":" + descriptor, 1, () -> {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(typeIndex);
+        });
+    }
+
+    int fieldRef(String owner, String memberName, String descriptor){
+        int ownerIndex = classRef(owner);
+        int nat = nameAndType(memberName, descriptor);
+        return constant("F" + owner + "." + memberName + ":" + descriptor, 1, () -> {
+            pool.writeByte(CONSTANT_FIELDREF);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nat);
+        });
+    }
+
+    int methodRef(String owner, String memberName, String descriptor){
+        int ownerIndex = classRef(owner);
+        int nat = nameAndType(memberName, descriptor);
+        return constant("M" + owner + "." + memberName + ":" + descriptor, 1, () -> {
+            pool.writeByte(CONSTANT_METHODREF);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nat);
+        });
+    }
+
+    void addField(int access, String fieldName, String descriptor){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(fieldName));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code addMethod(int access, String methodName, String descriptor){
+        return new Code(this, access, methodName, descriptor);
+    }
+
+    // Called by Code.end once the method body is complete
+    void addMethod(byte[] method){
+        methods.add(method);
+    }
+
+    byte[] toByteArray(){
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolSize);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0); // No interfaces
+            out.writeShort(fields.size());
+            for(byte[] field: fields){
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for(byte[] method: methods){
+                out.write(method);
+            }
+            out.writeShort(0); // No class attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
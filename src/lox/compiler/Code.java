@@ -0,0 +1,358 @@
+package lox.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bytecode for a single method. Keeps track of the operand stack depth as instructions are added so max_stack doesn't
+ * need a separate pass, and of whether the next instruction is reachable so the compiler can drop dead code
+ */
+class Code {
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int DLOAD_0 = 0x26;
+    static final int ALOAD_0 = 0x2a;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int DSTORE_0 = 0x47;
+    static final int ASTORE_0 = 0x4b;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int DUP2 = 0x5c;
+    static final int SWAP = 0x5f;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb;
+    static final int ANEWARRAY = 0xbd;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    static final int WIDE = 0xc4;
+
+    /**
+     * Jump target. Jumps made before the label is placed are patched when it is
+     */
+    static class Label {
+        private int position = -1;
+        private int stack = -1; // Stack depth on arrival, from whichever jump or fall through reached it first
+        private final List<int[]> fixups = new ArrayList<>(); // {offset of the jump instruction, offset of its operand}
+    }
+
+    private final ClassFile classFile;
+    private final int access;
+    private final String name;
+    private final String descriptor;
+
+    private byte[] code = new byte[64];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+    private boolean reachable = true;
+    private final List<Object[]> handlers = new ArrayList<>(); // {start, end, handler, exception class}
+
+    Code(ClassFile classFile, int access, String name, String descriptor){
+        this.classFile = classFile;
+        this.access = access;
+        this.name = name;
+        this.descriptor = descriptor;
+        this.maxLocals = argumentSlots(descriptor) + ((access & ClassFile.ACC_STATIC) == 0 ? 1 : 0);
+    }
+
+    /**
+     * @return false after a return, throw or goto, until a label something jumps to gets placed
+     */
+    boolean isReachable(){
+        return reachable;
+    }
+
+    int newLocal(){
+        return maxLocals++;
+    }
+
+    /**
+     * A local for a double, which takes two slots
+     */
+    int newDoubleLocal(){
+        int local = maxLocals;
+        maxLocals += 2;
+        return local;
+    }
+
+    private void emit(int b){
+        if(length == code.length){
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = (byte) b;
+    }
+
+    private void emitShort(int s){
+        emit(s >> 8);
+        emit(s);
+    }
+
+    private void adjust(int delta){
+        stack += delta;
+        if(stack > maxStack){
+            maxStack = stack;
+        }
+    }
+
+    void op(int opcode, int stackDelta){
+        emit(opcode);
+        adjust(stackDelta);
+        if(opcode == GOTO || opcode == ARETURN || opcode == RETURN || opcode == IRETURN || opcode == ATHROW){
+            reachable = false;
+        }
+    }
+
+    void op(int opcode){
+        switch(opcode){
+            case ACONST_NULL: case DUP: case DUP_X1: op(opcode, 1); break;
+            case DCONST_0: case DUP2: op(opcode, 2); break;
+            case POP: case AALOAD: case ARETURN: case IRETURN: case ATHROW: op(opcode, -1); break;
+            case POP2: case DADD: case DSUB: case DMUL: case DDIV: op(opcode, -2); break;
+            case AASTORE: case DCMPL: case DCMPG: op(opcode, -3); break;
+            default: op(opcode, 0);
+        }
+    }
+
+    void iconst(int value){
+        if(value >= -1 && value <= 5){
+            op(ICONST_0 + value, 1);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            op(BIPUSH, 1);
+            emit(value);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            op(SIPUSH, 1);
+            emitShort(value);
+        } else {
+            ldc(classFile.integer(value));
+        }
+    }
+
+    void ldcString(String value){
+        ldc(classFile.string(value));
+    }
+
+    void ldcDouble(double value){
+        op(LDC2_W, 2);
+        emitShort(classFile.doubleConstant(value));
+    }
+
+    private void ldc(int index){
+        if(index < 256){
+            op(LDC, 1);
+            emit(index);
+        } else {
+            op(LDC_W, 1);
+            emitShort(index);
+        }
+    }
+
+    void aload(int local){
+        if(local < 4){
+            op(ALOAD_0 + local, 1);
+        } else {
+            localOp(ALOAD, local, 1);
+        }
+    }
+
+    void astore(int local){
+        if(local < 4){
+            op(ASTORE_0 + local, -1);
+        } else {
+            localOp(ASTORE, local, -1);
+        }
+    }
+
+    void dload(int local){
+        if(local < 4){
+            op(DLOAD_0 + local, 2);
+        } else {
+            localOp(DLOAD, local, 2);
+        }
+    }
+
+    void dstore(int local){
+        if(local < 4){
+            op(DSTORE_0 + local, -2);
+        } else {
+            localOp(DSTORE, local, -2);
+        }
+    }
+
+    private void localOp(int opcode, int local, int stackDelta){
+        if(local < 256){
+            op(opcode, stackDelta);
+            emit(local);
+        } else {
+            emit(WIDE);
+            op(opcode, stackDelta);
+            emitShort(local);
+        }
+    }
+
+    void typeOp(int opcode, String className){
+        op(opcode, opcode == NEW ? 1 : 0);
+        emitShort(classFile.classRef(className));
+    }
+
+    void fieldOp(int opcode, String owner, String fieldName, String fieldDescriptor){
+        int size = fieldDescriptor.equals("D") || fieldDescriptor.equals("J") ? 2 : 1;
+        int delta;
+        switch(opcode){
+            case GETSTATIC: delta = size; break;
+            case PUTSTATIC: delta = -size; break;
+            case GETFIELD: delta = size - 1; break;
+            default: delta = -size - 1;
+        }
+        op(opcode, delta);
+        emitShort(classFile.fieldRef(owner, fieldName, fieldDescriptor));
+    }
+
+    void invoke(int opcode, String owner, String methodName, String methodDescriptor){
+        int delta = returnSlots(methodDescriptor) - argumentSlots(methodDescriptor) - (opcode == INVOKESTATIC ? 0 : 1);
+        op(opcode, delta);
+        emitShort(classFile.methodRef(owner, methodName, methodDescriptor));
+    }
+
+    Label newLabel(){
+        return new Label();
+    }
+
+    void jump(int opcode, Label target){
+        int start = length;
+        op(opcode, opcode == GOTO ? 0 : (opcode == IF_ACMPEQ || opcode == IF_ACMPNE ? -2 : -1));
+        target.stack = stack;
+        if(target.position >= 0){
+            emitShort(target.position - start);
+        } else {
+            target.fixups.add(new int[]{start, length});
+            emitShort(0);
+        }
+    }
+
+    void place(Label label){
+        label.position = length;
+        if(reachable){
+            label.stack = stack;
+        } else if(label.stack >= 0){
+            stack = label.stack;
+            reachable = true;
+        }
+        for(int[] fixup: label.fixups){
+            int offset = length - fixup[0];
+            code[fixup[1]] = (byte) (offset >> 8);
+            code[fixup[1] + 1] = (byte) offset;
+        }
+        label.fixups.clear();
+    }
+
+    /**
+     * Catches exceptions of the given class thrown between start and end, jumping to handler with the exception on the
+     * stack. The labels only need to be placed by the time the method ends
+     */
+    void tryCatch(Label start, Label end, Label handler, String exceptionClass){
+        handler.stack = 1;
+        handlers.add(new Object[]{start, end, handler, exceptionClass});
+    }
+
+    /**
+     * Adds the finished method to its class
+     */
+    void end(){
+        if(length > 0xffff){
+            throw new MethodTooLargeException("Method " + name + " of " + classFile.getName() + " is too large");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(classFile.utf8(name));
+            out.writeShort(classFile.utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(classFile.utf8("Code"));
+            out.writeInt(12 + length + handlers.size() * 8);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(handlers.size());
+            for(Object[] handler: handlers){
+                out.writeShort(((Label) handler[0]).position);
+                out.writeShort(((Label) handler[1]).position);
+                out.writeShort(((Label) handler[2]).position);
+                out.writeShort(classFile.classRef((String) handler[3]));
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        classFile.addMethod(bytes.toByteArray());
+    }
+
+    private static int argumentSlots(String descriptor){
+        int slots = 0;
+        int i = 1;
+        while(descriptor.charAt(i) != ')'){
+            boolean array = false;
+            while(descriptor.charAt(i) == '['){
+                array = true;
+                i++;
+            }
+            char c = descriptor.charAt(i);
+            if(c == 'L'){
+                i = descriptor.indexOf(';', i);
+            }
+            slots += (c == 'D' || c == 'J') && !array ? 2 : 1;
+            i++;
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor){
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        return c == 'V' ? 0 : (c == 'D' || c == 'J') ? 2 : 1;
+    }
+}
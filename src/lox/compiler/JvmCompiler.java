@@ -0,0 +1,705 @@
+package lox.compiler;
+
+import lox.parser.Expr;
+import lox.parser.Stmt;
+import lox.parser.Token;
+import lox.parser.TokenType;
+import lox.runtime.ClassLayout;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static lox.compiler.Code.*;
+
+/**
+ * Compiles a resolved program to JVM classes. The top level becomes LoxProgram.run(), and each function and method
+ * becomes its own subclass of CompiledFunction in which Lox locals are JVM locals
+ *
+ * Locals that a closure uses (see Analysis) are kept in a Cell instead, which the closure receives when it's created,
+ * so the Env chain doesn't exist at all in compiled code. Globals are static Global fields on LoxProgram
+ */
+public class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    public static final String PROGRAM = "LoxProgram";
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OPS = "lox/runtime/Ops";
+    private static final String CELL = "lox/runtime/Cell";
+    private static final String GLOBAL = "lox/runtime/Global";
+    private static final String FUNCTION = "lox/runtime/CompiledFunction";
+    private static final String CLASS = "lox/runtime/RuntimeClass";
+    private static final String O = "Ljava/lang/Object;";
+    private static final String CELL_TYPE = "Llox/runtime/Cell;";
+    private static final String GLOBAL_TYPE = "Llox/runtime/Global;";
+
+    private static class Variable {
+        final FunctionContext owner;
+        final int local;
+        final boolean captured;
+
+        Variable(FunctionContext owner, int local, boolean captured){
+            this.owner = owner;
+            this.local = local;
+            this.captured = captured;
+        }
+    }
+
+    private static class Scope {
+        final Object node;
+        final List<Variable> variables = new ArrayList<>(); // Indexed by the slot the Resolver gave them
+
+        Scope(Object node){
+            this.node = node;
+        }
+    }
+
+    private static class FunctionContext {
+        final String className;
+        final Code code;
+        final FunctionContext enclosing;
+        final boolean isInitializer;
+        final Map<Variable, Integer> captures = new LinkedHashMap<>(); // Cells the closure holds, in field order
+        Variable receiver;
+
+        FunctionContext(String className, Code code, FunctionContext enclosing, boolean isInitializer){
+            this.className = className;
+            this.code = code;
+            this.enclosing = enclosing;
+            this.isInitializer = isInitializer;
+        }
+    }
+
+    private final Analysis analysis;
+    private final Map<String, byte[]> classes = new LinkedHashMap<>();
+    private final ClassFile program = new ClassFile(PROGRAM, OBJECT);
+    private final Map<String, Boolean> globals = new LinkedHashMap<>();
+    private final Map<Double, Integer> numbers = new HashMap<>();
+    private int functionCount = 0;
+
+    private final List<Scope> scopes = new ArrayList<>();
+    private FunctionContext function;
+    private Code code;
+
+    private JvmCompiler(Analysis analysis){
+        this.analysis = analysis;
+    }
+
+    /**
+     * @return the generated classes by internal name, LoxProgram first
+     */
+    public static Map<String, byte[]> compile(List<Stmt> program){
+        JvmCompiler compiler = new JvmCompiler(Analysis.of(program));
+        compiler.compileProgram(program);
+        return compiler.classes;
+    }
+
+    private void compileProgram(List<Stmt> statements){
+        classes.put(PROGRAM, null); // Reserve the first spot, the class is only complete once everything else is
+        code = program.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "run", "()V");
+        function = new FunctionContext(PROGRAM, code, null, false);
+        compileStatements(statements);
+        code.op(RETURN);
+        code.end();
+
+        Code main = program.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "main", "([Ljava/lang/String;)V");
+        Label start = main.newLabel();
+        Label end = main.newLabel();
+        Label handler = main.newLabel();
+        main.place(start);
+        main.invoke(INVOKESTATIC, PROGRAM, "run", "()V");
+        main.place(end);
+        main.op(RETURN);
+        main.tryCatch(start, end, handler, "lox/runtime/LoxError");
+        main.place(handler);
+        main.invoke(INVOKESTATIC, OPS, "reportError", "(Llox/runtime/LoxError;)V");
+        main.iconst(70);
+        main.invoke(INVOKESTATIC, "java/lang/System", "exit", "(I)V");
+        main.op(RETURN);
+        main.end();
+
+        global("clock");
+        Code init = program.addMethod(ClassFile.ACC_STATIC, "<clinit>", "()V");
+        for(String name: globals.keySet()){
+            program.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "g_" + name, GLOBAL_TYPE);
+            init.typeOp(NEW, GLOBAL);
+            init.op(DUP);
+            init.ldcString(name);
+            init.invoke(INVOKESPECIAL, GLOBAL, "<init>", "(Ljava/lang/String;)V");
+            init.fieldOp(PUTSTATIC, PROGRAM, "g_" + name, GLOBAL_TYPE);
+        }
+        for(Map.Entry<Double, Integer> number: numbers.entrySet()){
+            program.addField(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "n" + number.getValue(), O);
+            init.ldcDouble(number.getKey());
+            init.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            init.fieldOp(PUTSTATIC, PROGRAM, "n" + number.getValue(), O);
+        }
+        init.fieldOp(GETSTATIC, PROGRAM, "g_clock", GLOBAL_TYPE);
+        init.typeOp(NEW, "lox/runtime/Clock");
+        init.op(DUP);
+        init.invoke(INVOKESPECIAL, "lox/runtime/Clock", "<init>", "()V");
+        init.invoke(INVOKEVIRTUAL, GLOBAL, "define", "(" + O + ")V");
+        init.op(RETURN);
+        init.end();
+
+        classes.put(PROGRAM, program.toByteArray());
+    }
+
+    private void compileStatements(List<Stmt> statements){
+        for(Stmt statement: statements){
+            if(!code.isReachable()){
+                break; // Anything after a return can't run
+            }
+            statement.accept(this);
+        }
+    }
+
+    private void compile(Expr expr){
+        expr.accept(this);
+    }
+
+    /**
+     * Compiles a function or method to its own class, then leaves a new closure of it on the stack
+     */
+    private void compileFunction(Stmt.Fun declaration, boolean isInitializer){
+        String className = PROGRAM + "$" + declaration.name.getLexeme() + "$" + functionCount++;
+        ClassFile classFile = new ClassFile(className, FUNCTION);
+        int arity = declaration.params.size();
+        String descriptor = arity > 4 ? "(" + O + "[" + O + ")" + O : "(" + repeat(O, arity + 1) + ")" + O;
+        Code body = classFile.addMethod(ClassFile.ACC_PUBLIC, arity > 4 ? "invokeN" : "invoke" + arity, descriptor);
+
+        FunctionContext enclosingFunction = function;
+        Code enclosingCode = code;
+        List<Scope> enclosingScopes = new ArrayList<>(scopes);
+        function = new FunctionContext(className, body, enclosingFunction, isInitializer);
+        code = body;
+
+        // JVM local 0 is the closure and 1 the receiver, then the arguments (or the argument array)
+        Scope scope = beginScope(declaration);
+        if(declaration.isMethod){
+            function.receiver = parameter(scope, 1);
+        }
+        for(int i = 0; i < arity; i++){
+            int local = i + 2;
+            if(arity > 4){
+                local = code.newLocal();
+                code.aload(2);
+                code.iconst(i);
+                code.op(AALOAD);
+                code.astore(local);
+            }
+            parameter(scope, local);
+        }
+        compileStatements(declaration.body);
+        if(code.isReachable()){
+            returnValue(null);
+        }
+        code.end();
+        endScope();
+
+        FunctionContext compiled = function;
+        function = enclosingFunction;
+        code = enclosingCode;
+        scopes.clear();
+        scopes.addAll(enclosingScopes);
+
+        // The closure's constructor takes the captured cells in order
+        String constructor = "(" + repeat(CELL_TYPE, compiled.captures.size()) + ")V";
+        Code init = classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", constructor);
+        init.aload(0);
+        init.ldcString(declaration.name.toString());
+        init.iconst(arity);
+        init.iconst(declaration.isMethod ? 1 : 0);
+        init.iconst(isInitializer ? 1 : 0);
+        init.invoke(INVOKESPECIAL, FUNCTION, "<init>", "(Ljava/lang/String;IZZ)V");
+        for(int i = 0; i < compiled.captures.size(); i++){
+            classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "c" + i, CELL_TYPE);
+            init.aload(0);
+            init.aload(i + 1);
+            init.fieldOp(PUTFIELD, className, "c" + i, CELL_TYPE);
+        }
+        init.op(RETURN);
+        init.end();
+        classes.put(className, classFile.toByteArray());
+
+        code.typeOp(NEW, className);
+        code.op(DUP);
+        for(Variable captured: compiled.captures.keySet()){
+            loadCell(captured);
+        }
+        code.invoke(INVOKESPECIAL, className, "<init>", constructor);
+    }
+
+    private static String repeat(String s, int count){
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++){
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private Scope beginScope(Object node){
+        Scope scope = new Scope(node);
+        scopes.add(scope);
+        return scope;
+    }
+
+    private void endScope(){
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private Variable parameter(Scope scope, int local){
+        Variable variable = new Variable(function, local, analysis.isCaptured(scope.node, scope.variables.size()));
+        scope.variables.add(variable);
+        if(variable.captured){
+            code.aload(local);
+            code.invoke(INVOKESTATIC, CELL, "of", "(" + O + ")" + CELL_TYPE);
+            code.astore(local);
+        }
+        return variable;
+    }
+
+    /**
+     * Declares the next local in the innermost scope. A captured local gets its cell right away, so a function or
+     * class can capture its own name
+     */
+    private Variable declare(){
+        Scope scope = scopes.get(scopes.size() - 1);
+        Variable variable = new Variable(function, code.newLocal(), analysis.isCaptured(scope.node, scope.variables.size()));
+        scope.variables.add(variable);
+        if(variable.captured){
+            code.typeOp(NEW, CELL);
+            code.op(DUP);
+            code.invoke(INVOKESPECIAL, CELL, "<init>", "()V");
+            code.astore(variable.local);
+        }
+        return variable;
+    }
+
+    private Variable resolve(int depth, int slot){
+        return scopes.get(scopes.size() - 1 - depth).variables.get(slot);
+    }
+
+    private int capture(FunctionContext context, Variable variable){
+        return context.captures.computeIfAbsent(variable, v -> context.captures.size());
+    }
+
+    // Cells declared by an enclosing function come from the closure's fields, and the enclosing closures' in turn
+    private void loadCell(Variable variable){
+        if(variable.owner == function){
+            code.aload(variable.local);
+        } else {
+            code.aload(0);
+            code.fieldOp(GETFIELD, function.className, "c" + capture(function, variable), CELL_TYPE);
+        }
+    }
+
+    private void load(Variable variable){
+        if(variable.owner == function && !variable.captured){
+            code.aload(variable.local);
+        } else {
+            loadCell(variable);
+            code.fieldOp(GETFIELD, CELL, "value", O);
+        }
+    }
+
+    /**
+     * Pops the value on top of the stack into the variable
+     */
+    private void store(Variable variable){
+        if(variable.owner == function && !variable.captured){
+            code.astore(variable.local);
+        } else {
+            loadCell(variable);
+            code.op(SWAP);
+            code.fieldOp(PUTFIELD, CELL, "value", O);
+        }
+    }
+
+    private String global(String name){
+        globals.put(name, true);
+        return "g_" + name;
+    }
+
+    private void loadGlobal(Token name){
+        code.fieldOp(GETSTATIC, PROGRAM, global(name.getLexeme()), GLOBAL_TYPE);
+    }
+
+    /**
+     * Defines the value on top of the stack as a global or as the given local. Top level declarations are globals
+     */
+    private void define(Token name, Variable local){
+        if(local == null){
+            loadGlobal(name);
+            code.op(SWAP);
+            code.invoke(INVOKEVIRTUAL, GLOBAL, "define", "(" + O + ")V");
+        } else {
+            store(local);
+        }
+    }
+
+    private Variable declareIfLocal(){
+        return scopes.isEmpty() ? null : declare();
+    }
+
+    private void returnValue(Expr value){
+        if(function.isInitializer){
+            load(function.receiver); // Initializers always return the instance
+        } else if(value == null){
+            code.op(ACONST_NULL);
+        } else {
+            compile(value);
+        }
+        code.op(ARETURN);
+    }
+
+    private void ops(String name, int argc, boolean line){
+        if(line){
+            code.invoke(INVOKESTATIC, OPS, name, "(" + repeat(O, argc) + "I)" + O);
+        } else {
+            code.invoke(INVOKESTATIC, OPS, name, "(" + repeat(O, argc) + ")" + O);
+        }
+    }
+
+    private void truthy(){
+        code.invoke(INVOKESTATIC, OPS, "isTruthy", "(" + O + ")Z");
+    }
+
+    private void jump(int opcode, Label target){
+        if(code.isReachable()){
+            code.jump(opcode, target);
+        }
+    }
+
+    // Leaves the arguments on the stack, or in an array if there's too many for the fixed arity entry points
+    private void arguments(List<Expr> args){
+        if(args.size() > 4){
+            code.iconst(args.size());
+            code.typeOp(ANEWARRAY, OBJECT);
+            for(int i = 0; i < args.size(); i++){
+                code.op(DUP);
+                code.iconst(i);
+                compile(args.get(i));
+                code.op(AASTORE);
+            }
+        } else {
+            for(Expr arg: args){
+                compile(arg);
+            }
+        }
+    }
+
+    private static String callDescriptor(int prefix, int argc){
+        String args = argc > 4 ? "[" + O : repeat(O, argc);
+        return "(" + repeat(O, prefix) + args + "I)" + O;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        switch(expr.operator.getType()){
+            case EQUAL_EQUAL: ops("equal", 2, false); return null;
+            case BANG_EQUAL: ops("notEqual", 2, false); return null;
+        }
+        code.iconst(expr.operator.getLine());
+        switch(expr.operator.getType()){
+            case PLUS: ops("add", 2, true); break;
+            case MINUS: ops("subtract", 2, true); break;
+            case STAR: ops("multiply", 2, true); break;
+            case SLASH: ops("divide", 2, true); break;
+            case GREATER: ops("greater", 2, true); break;
+            case GREATER_EQUAL: ops("greaterEqual", 2, true); break;
+            case LESS: ops("less", 2, true); break;
+            case LESS_EQUAL: ops("lessEqual", 2, true); break;
+            default: throw new IllegalStateException("Found unknown binary operator " + expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if(value == null){
+            code.op(ACONST_NULL);
+        } else if(value instanceof Double){
+            // Boxed once when the program starts rather than every time the literal is evaluated
+            int index = numbers.computeIfAbsent((Double) value, n -> numbers.size());
+            code.fieldOp(GETSTATIC, PROGRAM, "n" + index, O);
+        } else if(value instanceof Boolean){
+            code.fieldOp(GETSTATIC, "java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else {
+            code.ldcString((String) value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        switch(expr.operator.getType()){
+            case MINUS:
+                code.iconst(expr.operator.getLine());
+                ops("negate", 1, true);
+                break;
+            case BANG:
+                ops("not", 1, false);
+                break;
+            default:
+                throw new IllegalStateException("Found unknown unary operator " + expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        if(expr.isGlobal){
+            loadGlobal(expr.name);
+            code.iconst(expr.name.getLine());
+            code.invoke(INVOKEVIRTUAL, GLOBAL, "get", "(I)" + O);
+        } else {
+            load(resolve(expr.depth, expr.slot));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        code.op(DUP);
+        if(expr.isGlobal){
+            loadGlobal(expr.name);
+            code.op(SWAP);
+            code.iconst(expr.name.getLine());
+            code.invoke(INVOKEVIRTUAL, GLOBAL, "set", "(" + O + "I)V");
+        } else {
+            store(resolve(expr.depth, expr.slot));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        // Like the tree walker, and/or give back a boolean rather than one of the operands
+        Label shortCircuit = code.newLabel();
+        Label end = code.newLabel();
+        boolean isOr = expr.operator.getType() == TokenType.OR;
+        compile(expr.left);
+        truthy();
+        code.jump(isOr ? IFNE : IFEQ, shortCircuit);
+        compile(expr.right);
+        truthy();
+        code.jump(isOr ? IFNE : IFEQ, shortCircuit);
+        code.fieldOp(GETSTATIC, "java/lang/Boolean", isOr ? "FALSE" : "TRUE", "Ljava/lang/Boolean;");
+        code.jump(GOTO, end);
+        code.place(shortCircuit);
+        code.fieldOp(GETSTATIC, "java/lang/Boolean", isOr ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int argc = expr.args.size();
+        String suffix = argc > 4 ? "N" : Integer.toString(argc);
+        if(expr.calle instanceof Expr.Get){
+            // obj.method(args) hands the receiver along instead of binding the method
+            Expr.Get get = (Expr.Get) expr.calle;
+            compile(get.target);
+            code.op(DUP);
+            code.ldcString(get.name.getLexeme());
+            code.iconst(get.name.getLine());
+            code.invoke(INVOKESTATIC, OPS, "property", "(" + O + "Ljava/lang/String;I)" + O);
+            arguments(expr.args);
+            code.iconst(expr.paren.getLine());
+            code.invoke(INVOKESTATIC, OPS, "invoke" + suffix, callDescriptor(2, argc));
+        } else {
+            compile(expr.calle);
+            arguments(expr.args);
+            code.iconst(expr.paren.getLine());
+            code.invoke(INVOKESTATIC, OPS, "call" + suffix, callDescriptor(1, argc));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.target);
+        code.ldcString(expr.name.getLexeme());
+        code.iconst(expr.name.getLine());
+        code.invoke(INVOKESTATIC, OPS, "get", "(" + O + "Ljava/lang/String;I)" + O);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.target);
+        code.iconst(expr.name.getLine());
+        code.invoke(INVOKESTATIC, OPS, "setTarget", "(" + O + "I)Llox/runtime/RuntimeInstance;");
+        compile(expr.val);
+        code.ldcString(expr.name.getLexeme());
+        code.invoke(INVOKESTATIC, OPS, "set", "(Llox/runtime/RuntimeInstance;" + O + "Ljava/lang/String;)" + O);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        load(resolve(expr.depth, expr.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        load(resolve(expr.depth, expr.slot));
+        load(resolve(expr.depth - 1, 0));
+        code.ldcString(expr.method.getLexeme());
+        code.iconst(expr.method.getLine());
+        code.invoke(INVOKESTATIC, OPS, "superGet", "(" + O + O + "Ljava/lang/String;I)" + O);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Variable local = declareIfLocal();
+        if(stmt.init != null){
+            compile(stmt.init);
+        } else {
+            code.op(ACONST_NULL);
+        }
+        define(stmt.name, local);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        Variable local = declareIfLocal();
+        Variable superclass = null;
+        if(stmt.superclass != null){
+            compile(stmt.superclass);
+            code.iconst(stmt.superclass.name.getLine());
+            code.invoke(INVOKESTATIC, OPS, "superclass", "(" + O + "I)Llox/runtime/RuntimeClass;");
+            beginScope(stmt);
+            superclass = declare();
+            store(superclass);
+        }
+
+        code.typeOp(NEW, CLASS);
+        code.op(DUP);
+        code.ldcString(stmt.name.getLexeme());
+        if(superclass != null){
+            load(superclass);
+            code.typeOp(CHECKCAST, CLASS);
+        } else {
+            code.op(ACONST_NULL);
+        }
+        code.iconst(stmt.methods.size());
+        code.typeOp(ANEWARRAY, FUNCTION);
+        for(int i = 0; i < stmt.methods.size(); i++){
+            Stmt.Fun method = stmt.methods.get(i);
+            code.op(DUP);
+            code.iconst(i);
+            compileFunction(method, ClassLayout.isInitializer(method.name.getLexeme()));
+            code.op(AASTORE);
+        }
+        code.iconst(stmt.methods.size());
+        code.typeOp(ANEWARRAY, "java/lang/String");
+        for(int i = 0; i < stmt.methods.size(); i++){
+            code.op(DUP);
+            code.iconst(i);
+            code.ldcString(stmt.methods.get(i).name.getLexeme());
+            code.op(AASTORE);
+        }
+        code.invoke(INVOKESPECIAL, CLASS, "<init>",
+                "(Ljava/lang/String;Llox/runtime/RuntimeClass;[Llox/runtime/CompiledFunction;[Ljava/lang/String;)V");
+        if(superclass != null){
+            endScope();
+        }
+        define(stmt.name, local);
+        return null;
+    }
+
+    @Override
+    public Void visitFunStmt(Stmt.Fun stmt) {
+        Variable local = declareIfLocal();
+        compileFunction(stmt, false);
+        define(stmt.name, local);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.op(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        code.invoke(INVOKESTATIC, OPS, "print", "(" + O + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.sharesEnv){
+            // Its locals go in the enclosing scope, and the slots are free again afterwards
+            compileStatements(stmt.statements);
+            if(!scopes.isEmpty()){
+                List<Variable> variables = scopes.get(scopes.size() - 1).variables;
+                while(variables.size() > stmt.firstSlot){
+                    variables.remove(variables.size() - 1);
+                }
+            }
+            return null;
+        }
+        beginScope(stmt);
+        compileStatements(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseCase = code.newLabel();
+        Label end = code.newLabel();
+        compile(stmt.condition);
+        truthy();
+        code.jump(IFEQ, elseCase);
+        stmt.thenCase.accept(this);
+        jump(GOTO, end);
+        code.place(elseCase);
+        if(stmt.elseCase != null){
+            stmt.elseCase.accept(this);
+        }
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label loop = code.newLabel();
+        Label end = code.newLabel();
+        code.place(loop);
+        compile(stmt.cond);
+        truthy();
+        code.jump(IFEQ, end);
+        stmt.body.accept(this);
+        jump(GOTO, loop);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        returnValue(stmt.value);
+        return null;
+    }
+}
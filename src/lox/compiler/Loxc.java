@@ -0,0 +1,98 @@
+package lox.compiler;
+
+import lox.parser.Stmt;
+import lox.runtime.Ops;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Ahead of time compiler: writes a runnable jar holding the compiled program and the lox.runtime classes it needs,
+ * so running it doesn't lex, parse or resolve anything
+ */
+public class Loxc {
+    private static final String RUNTIME = "lox/runtime/";
+
+    public static void compile(List<Stmt> program, String jarPath) throws IOException {
+        Map<String, byte[]> classes = JvmCompiler.compile(program);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, JvmCompiler.PROGRAM);
+        try(OutputStream file = new FileOutputStream(jarPath);
+            JarOutputStream jar = new JarOutputStream(file, manifest)){
+            for(Map.Entry<String, byte[]> compiled: classes.entrySet()){
+                jar.putNextEntry(new JarEntry(compiled.getKey() + ".class"));
+                jar.write(compiled.getValue());
+                jar.closeEntry();
+            }
+            for(String path: runtimeClasses()){
+                try(InputStream in = Loxc.class.getClassLoader().getResourceAsStream(path)){
+                    if(in == null){
+                        throw new IOException("Missing runtime class " + path);
+                    }
+                    jar.putNextEntry(new JarEntry(path));
+                    in.transferTo(jar);
+                    jar.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything compiled code can reach is the lox.runtime package, copied out of our own classpath. It's listed from
+     * wherever that package was loaded from, a directory of classes or a jar
+     * @return the paths of the package's classes, sorted so the jar comes out the same every time
+     */
+    private static List<String> runtimeClasses() throws IOException {
+        URL anchor = Ops.class.getResource(Ops.class.getSimpleName() + ".class");
+        if(anchor == null){
+            throw new IOException("Can't find the " + RUNTIME + " package on the classpath");
+        }
+        List<String> paths = new ArrayList<>();
+        if(anchor.getProtocol().equals("jar")){
+            JarURLConnection connection = (JarURLConnection) anchor.openConnection();
+            connection.setUseCaches(false);
+            try(JarFile jar = connection.getJarFile()){
+                for(Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ){
+                    String name = entries.nextElement().getName();
+                    if(name.startsWith(RUNTIME) && name.endsWith(".class") && name.indexOf('/', RUNTIME.length()) < 0){
+                        paths.add(name);
+                    }
+                }
+            }
+        } else {
+            Path directory;
+            try {
+                directory = Path.of(anchor.toURI()).getParent();
+            } catch (URISyntaxException e){
+                throw new IOException("Can't list " + anchor, e);
+            }
+            try(Stream<Path> files = Files.list(directory)){
+                files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.endsWith(".class"))
+                        .forEach(name -> paths.add(RUNTIME + name));
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+}
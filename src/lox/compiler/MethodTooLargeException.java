@@ -0,0 +1,13 @@
+package lox.compiler;
+
+/**
+ * A method's bytecode went past the 64K the class file format allows. Not a bug in the compiler, the source was just
+ * too big to compile to a single method
+ */
+public class MethodTooLargeException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public MethodTooLargeException(String message){
+        super(message);
+    }
+}
@@ -0,0 +1,1225 @@
+package lox.compiler;
+
+import lox.parser.Expr;
+import lox.parser.Stmt;
+import lox.parser.Token;
+import lox.parser.TokenType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static lox.compiler.Code.*;
+
+/**
+ * Compiles a single hot function body or while loop for the tree walker, to a subclass of lox.execution.CompiledCode
+ * that Tier loads as a hidden class. Unlike JvmCompiler the code works on the interpreter's own objects (Env,
+ * LoxFunction, LoxInstance) so it can be mixed freely with interpreted code
+ *
+ * Scopes that a function or class is declared in get a real Env, like the tree walker would make, since the closure
+ * needs it. All other scopes only exist at compile time, with their locals in JVM locals. Blocks that share their
+ * enclosing Env put their locals in the enclosing scope, and always in JVM locals: nothing can capture them, so they
+ * don't need to be in the Env even when the rest of the scope is
+ *
+ * Locals whose initializer is a number, and arithmetic and comparisons between those, are kept unboxed as doubles. A
+ * local that later gets assigned something else is demoted, and the unit compiled again with it as an Object
+ *
+ * Functions that capture nothing and declare no closures (see isStatic) get compiled to a static method, with their
+ * parameters as JVM locals. Calls to a global that holds one of those, found through the Program when the unit is
+ * compiled, check the global still holds the same function and call its static method directly; anything else goes
+ * through the helpers like any other call. The root function, and every function it calls like that, end up in the
+ * same class
+ */
+public class TierCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String BASE = "lox/execution/CompiledCode";
+    private static final String ENV = "lox/execution/Env";
+    private static final String GLOBALS = "lox/execution/GlobalEnv";
+    private static final String INTERPRETER = "lox/execution/InterpreterVisitor";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String O = "Ljava/lang/Object;";
+    private static final String ENV_TYPE = "Llox/execution/Env;";
+    private static final String TOKEN_TYPE = "Llox/parser/Token;";
+    private static final String CACHE_TYPE = "Llox/execution/PropertyCache;";
+    private static final String INTERPRETER_TYPE = "Llox/execution/InterpreterVisitor;";
+    private static final String CELL = "lox/runtime/Cell";
+    private static final String CELL_TYPE = "Llox/runtime/Cell;";
+    private static final int MAX_DIRECT = 16; // Most functions one class gets static methods for
+
+    // JVM locals of execute(). Static methods take the code object and the interpreter in the same places
+    private static final int THIS = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int ENV_LOCAL = 2; // The call's frame, or the env the loop runs in
+
+    /**
+     * What the compiler gets to see of the running program
+     */
+    public interface Program {
+        /**
+         * @return the value of the global, or null if it isn't defined
+         */
+        Object global(Token name);
+
+        /**
+         * @return the declaration of the function, or null if the value isn't one calls can go straight to
+         */
+        Stmt.Fun declarationOf(Object function);
+    }
+
+    private enum Kind {
+        OBJECT,
+        DOUBLE, // An unboxed double, taking two slots
+        BOOLEAN // An int, 0 or 1
+    }
+
+    private static class Local {
+        final int index;
+        final Kind kind;
+        final Token name; // What gets demoted if a double local is assigned something else, null for Object locals
+
+        Local(int index, Kind kind, Token name){
+            this.index = index;
+            this.kind = kind;
+            this.name = name;
+        }
+    }
+
+    private static class Scope {
+        final Object node;
+        final int envLocal; // -1 if the scope has no Env
+        final List<Local> locals = new ArrayList<>(); // JVM local of each slot, null for slots that are in the Env
+
+        Scope(Object node, int envLocal){
+            this.node = node;
+            this.envLocal = envLocal;
+        }
+    }
+
+    /**
+     * A function compiled to a static method, taking the code object, the interpreter and the parameters
+     */
+    private static class Direct {
+        final Stmt.Fun declaration;
+        final String method;
+        final Kind[] params; // Doubles for the parameters the first call site passed a number for
+
+        Direct(Stmt.Fun declaration, String method, Kind[] params){
+            this.declaration = declaration;
+            this.method = method;
+            this.params = params;
+        }
+
+        String descriptor(){
+            StringBuilder descriptor = new StringBuilder("(L" + BASE + ";" + INTERPRETER_TYPE);
+            for(Kind param: params){
+                descriptor.append(param == Kind.DOUBLE ? "D" : O);
+            }
+            return descriptor.append(")").append(O).toString();
+        }
+    }
+
+    private interface Unit {
+        void compile(TierCompiler compiler);
+    }
+
+    private final Program program;
+    private final Set<Token> demoted; // Locals that have been assigned something other than a number, kept across attempts
+    private boolean retry = false; // Something got demoted, so the code made for it is wrong
+    private final List<Object> constants;
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+    private final ClassFile classFile;
+    private final Map<Stmt.Fun, Direct> directs = new IdentityHashMap<>();
+    private final Map<Stmt.Fun, Boolean> staticFunctions = new IdentityHashMap<>();
+    private final List<Direct> pending = new ArrayList<>(); // Directs whose method hasn't been compiled yet
+
+    // State of the method being compiled
+    private Analysis analysis;
+    private Code code;
+    private final List<Scope> scopes = new ArrayList<>(); // The first is always the one ENV_LOCAL belongs to
+    private int globalsLocal;
+    private boolean inSharedBlock = false; // Declarations borrow slots, and go in JVM locals
+    private Direct current; // The function whose static method this is, null in execute()
+    private Label start; // Start of the static method's body, for tail calls to itself
+    private Kind kind; // What the expression just compiled left on the stack
+
+    private TierCompiler(String name, Program program, Set<Token> demoted, List<Object> constants){
+        this.program = program;
+        this.demoted = demoted;
+        this.constants = constants;
+        this.classFile = new ClassFile("lox/execution/Compiled$" + name, BASE);
+
+        Code init = classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([" + O + ")V");
+        init.aload(0);
+        init.aload(1);
+        init.invoke(INVOKESPECIAL, BASE, "<init>", "([" + O + ")V");
+        init.op(RETURN);
+        init.end();
+    }
+
+    /**
+     * Compiles the body of a function, to be run with the frame LoxFunction made for the call
+     * @param args the arguments of a call to the function, to guess which parameters are numbers
+     * @param constants filled with the objects the code needs, to be handed to the constructor
+     */
+    public static byte[] compile(Stmt.Fun function, Object[] args, Program program, List<Object> constants){
+        return compile(function.name.getLexeme(), program, constants, compiler -> compiler.compileFunction(function, args));
+    }
+
+    /**
+     * Compiles a loop, to be run with the env the loop is in. Loop state is all in that env between iterations, so
+     * the compiled code can take over an interpreted loop after any iteration
+     */
+    public static byte[] compile(Stmt.While loop, Program program, List<Object> constants){
+        return compile("loop", program, constants, compiler -> compiler.compileLoop(loop));
+    }
+
+    // Every demotion removes a double local, so this always ends
+    private static byte[] compile(String name, Program program, List<Object> constants, Unit unit){
+        Set<Token> demoted = Collections.newSetFromMap(new IdentityHashMap<>());
+        while(true){
+            constants.clear();
+            TierCompiler compiler = new TierCompiler(name, program, demoted, constants);
+            unit.compile(compiler);
+            while(!compiler.pending.isEmpty()){
+                compiler.compileDirect(compiler.pending.remove(0));
+            }
+            if(!compiler.retry){
+                return compiler.classFile.toByteArray();
+            }
+        }
+    }
+
+    /**
+     * @return the line of the first token in the expression, or -1 if there isn't one (a literal)
+     */
+    public static int lineOf(Expr expr){
+        if(expr instanceof Expr.Binary) return lineOf(((Expr.Binary) expr).left, ((Expr.Binary) expr).operator);
+        if(expr instanceof Expr.LogicalBinary) return lineOf(((Expr.LogicalBinary) expr).left, ((Expr.LogicalBinary) expr).operator);
+        if(expr instanceof Expr.Grouping) return lineOf(((Expr.Grouping) expr).expression);
+        if(expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.getLine();
+        if(expr instanceof Expr.Var) return ((Expr.Var) expr).name.getLine();
+        if(expr instanceof Expr.Assign) return ((Expr.Assign) expr).name.getLine();
+        if(expr instanceof Expr.Call) return lineOf(((Expr.Call) expr).calle, ((Expr.Call) expr).paren);
+        if(expr instanceof Expr.Get) return lineOf(((Expr.Get) expr).target, ((Expr.Get) expr).name);
+        if(expr instanceof Expr.Set) return lineOf(((Expr.Set) expr).target, ((Expr.Set) expr).name);
+        if(expr instanceof Expr.This) return ((Expr.This) expr).keyword.getLine();
+        if(expr instanceof Expr.Super) return ((Expr.Super) expr).keyword.getLine();
+        return -1;
+    }
+
+    private static int lineOf(Expr first, Token fallback){
+        int line = lineOf(first);
+        return line == -1 ? fallback.getLine() : line;
+    }
+
+    private void begin(int access, String name, String descriptor){
+        code = classFile.addMethod(access, name, descriptor);
+        scopes.clear();
+        inSharedBlock = false;
+    }
+
+    private void loadGlobals(){
+        globalsLocal = code.newLocal();
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "getGlobals", "()" + ENV_TYPE);
+        code.typeOp(CHECKCAST, GLOBALS);
+        code.astore(globalsLocal);
+    }
+
+    private void compileFunction(Stmt.Fun function, Object[] args){
+        if(isStatic(function)){
+            Kind[] kinds = new Kind[args.length];
+            for(int i = 0; i < args.length; i++){
+                kinds[i] = args[i] instanceof Double ? Kind.DOUBLE : Kind.OBJECT;
+            }
+            compileEntry(function, direct(function, kinds));
+            return;
+        }
+        begin(0, "execute", "(" + INTERPRETER_TYPE + ENV_TYPE + ")" + O);
+        analysis = Analysis.of(function);
+        loadGlobals();
+        if(analysis.declaresClosures(function)){
+            scopes.add(new Scope(function, ENV_LOCAL));
+        } else {
+            // Nothing keeps the frame, so 'this' and the parameters are copied out of it into JVM locals
+            Scope scope = new Scope(function, -1);
+            int count = function.params.size() + (function.isMethod ? 1 : 0);
+            for(int slot = 0; slot < count; slot++){
+                int local = code.newLocal();
+                code.aload(ENV_LOCAL);
+                code.iconst(slot);
+                code.invoke(INVOKEVIRTUAL, ENV, "get", "(I)" + O);
+                code.astore(local);
+                scope.locals.add(new Local(local, Kind.OBJECT, null));
+            }
+            scopes.add(scope);
+        }
+        compileStatements(function.body);
+        end();
+    }
+
+    /**
+     * execute() for a function that has a static method: takes the arguments out of the frame and calls it. If a
+     * parameter the method takes as a double got something else the body is interpreted instead
+     */
+    private void compileEntry(Stmt.Fun function, Direct direct){
+        begin(0, "execute", "(" + INTERPRETER_TYPE + ENV_TYPE + ")" + O);
+        Label interpret = code.newLabel();
+        int[] args = new int[direct.params.length];
+        for(int i = 0; i < args.length; i++){
+            args[i] = code.newLocal();
+            code.aload(ENV_LOCAL);
+            code.iconst(i);
+            code.invoke(INVOKEVIRTUAL, ENV, "get", "(I)" + O);
+            code.astore(args[i]);
+            if(direct.params[i] == Kind.DOUBLE){
+                code.aload(args[i]);
+                code.typeOp(INSTANCEOF, DOUBLE);
+                code.jump(IFEQ, interpret);
+            }
+        }
+        code.aload(THIS);
+        code.aload(INTERPRETER_LOCAL);
+        for(int i = 0; i < args.length; i++){
+            code.aload(args[i]);
+            convert(Kind.OBJECT, direct.params[i]);
+        }
+        code.invoke(INVOKESTATIC, classFile.getName(), direct.method, direct.descriptor());
+        code.op(ARETURN);
+        code.place(interpret);
+        code.aload(INTERPRETER_LOCAL);
+        constant(function.body, "java/util/List");
+        code.aload(ENV_LOCAL);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "executeBlock", "(Ljava/util/List;" + ENV_TYPE + ")" + O);
+        code.op(ARETURN);
+        code.end();
+    }
+
+    private void compileDirect(Direct direct){
+        Stmt.Fun function = direct.declaration;
+        begin(ClassFile.ACC_STATIC, direct.method, direct.descriptor());
+        analysis = Analysis.of(function);
+        current = direct;
+        Scope scope = new Scope(function, -1);
+        int local = INTERPRETER_LOCAL + 1;
+        for(int i = 0; i < direct.params.length; i++){
+            scope.locals.add(new Local(local, direct.params[i], function.params.get(i)));
+            local += direct.params[i] == Kind.DOUBLE ? 2 : 1;
+        }
+        scopes.add(scope);
+        loadGlobals();
+        start = code.newLabel();
+        code.place(start);
+        compileStatements(function.body);
+        end();
+        current = null;
+    }
+
+    private void compileLoop(Stmt.While loop){
+        begin(0, "execute", "(" + INTERPRETER_TYPE + ENV_TYPE + ")" + O);
+        analysis = Analysis.of(loop);
+        loadGlobals();
+        scopes.add(new Scope(loop, ENV_LOCAL));
+        loop.accept(this);
+        end();
+    }
+
+    private void end(){
+        if(code.isReachable()){
+            if(current != null){
+                code.op(ACONST_NULL); // Static methods give back what the call does
+            } else {
+                code.fieldOp(GETSTATIC, INTERPRETER, "NORMAL", O);
+            }
+            code.op(ARETURN);
+        }
+        code.end();
+    }
+
+    /**
+     * Functions that can be compiled to a static method: nothing in them is captured and they declare no closures, so
+     * every local can be a JVM local, and the only tail calls in them are to themselves, which jump back to the start
+     */
+    private boolean isStatic(Stmt.Fun function){
+        return staticFunctions.computeIfAbsent(function, f -> !f.isMethod && f.captures.length == 0
+                && f.capturedSlots == null && !Analysis.of(f).hasClosures() && tailCallsOnlyItself(f.body, f.name));
+    }
+
+    private static boolean tailCallsOnlyItself(List<Stmt> statements, Token name){
+        for(Stmt statement: statements){
+            if(statement instanceof Stmt.Block){
+                if(!tailCallsOnlyItself(((Stmt.Block) statement).statements, name)) return false;
+            } else if(statement instanceof Stmt.If){
+                Stmt.If branch = (Stmt.If) statement;
+                if(!tailCallsOnlyItself(Collections.singletonList(branch.thenCase), name)) return false;
+                if(branch.elseCase != null && !tailCallsOnlyItself(Collections.singletonList(branch.elseCase), name)) return false;
+            } else if(statement instanceof Stmt.While){
+                if(!tailCallsOnlyItself(Collections.singletonList(((Stmt.While) statement).body), name)) return false;
+            } else if(statement instanceof Stmt.Return && ((Stmt.Return) statement).isTailCall){
+                Expr callee = ((Expr.Call) ((Stmt.Return) statement).value).calle;
+                if(!(callee instanceof Expr.Var) || !((Expr.Var) callee).isGlobal
+                        || !((Expr.Var) callee).name.getLexeme().equals(name.getLexeme())) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The static method for a function, which gets compiled once the current method is done
+     * @param args what the caller passes, a parameter is a double if its first caller passes one
+     * @return null if the class already has as many as it's allowed
+     */
+    private Direct direct(Stmt.Fun function, Kind[] args){
+        Direct direct = directs.get(function);
+        if(direct == null){
+            if(directs.size() == MAX_DIRECT){
+                return null;
+            }
+            Kind[] params = new Kind[args.length];
+            for(int i = 0; i < args.length; i++){
+                boolean number = args[i] == Kind.DOUBLE && !demoted.contains(function.params.get(i));
+                params[i] = number ? Kind.DOUBLE : Kind.OBJECT;
+            }
+            direct = new Direct(function, "f" + directs.size(), params);
+            directs.put(function, direct);
+            pending.add(direct);
+        }
+        return direct;
+    }
+
+    private void demote(Token name){
+        demoted.add(name);
+        retry = true;
+    }
+
+    private void compileStatements(List<Stmt> statements){
+        for(Stmt statement: statements){
+            if(!code.isReachable()){
+                break; // Anything after a return can't run
+            }
+            statement.accept(this);
+        }
+    }
+
+    /**
+     * Leaves the value of the expression on the stack as an Object
+     */
+    private void compile(Expr expr){
+        expr.accept(this);
+        convert(kind, Kind.OBJECT);
+        kind = Kind.OBJECT;
+    }
+
+    /**
+     * Leaves the value of the expression on the stack as whatever it comes out as
+     * @return what it came out as
+     */
+    private Kind compileRaw(Expr expr){
+        expr.accept(this);
+        return kind;
+    }
+
+    /**
+     * Only asks for a double when kindOf says the expression is one, so unboxing can't fail
+     */
+    private void compileAs(Expr expr, Kind wanted){
+        if(wanted == Kind.DOUBLE && expr instanceof Expr.Literal){
+            code.ldcDouble((double) ((Expr.Literal) expr).value);
+        } else {
+            convert(compileRaw(expr), wanted);
+        }
+        kind = wanted;
+    }
+
+    private void convert(Kind from, Kind to){
+        if(from == to){
+            return;
+        }
+        if(from == Kind.DOUBLE && to == Kind.OBJECT){
+            code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+        } else if(from == Kind.BOOLEAN && to == Kind.OBJECT){
+            code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        } else if(from == Kind.OBJECT && to == Kind.DOUBLE){
+            code.typeOp(CHECKCAST, DOUBLE);
+            code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+        } else {
+            throw new IllegalStateException("Can't convert " + from + " to " + to);
+        }
+    }
+
+    /**
+     * What the expression will come out as, without compiling it
+     */
+    private Kind kindOf(Expr expr){
+        if(expr instanceof Expr.Literal){
+            return ((Expr.Literal) expr).value instanceof Double ? Kind.DOUBLE : Kind.OBJECT;
+        }
+        if(expr instanceof Expr.Grouping){
+            return kindOf(((Expr.Grouping) expr).expression);
+        }
+        if(expr instanceof Expr.Var){
+            Expr.Var var = (Expr.Var) expr;
+            Local local = var.isGlobal || var.upvalue >= 0 || var.inCell ? null : localOf(var.depth, var.slot);
+            return local == null ? Kind.OBJECT : local.kind;
+        }
+        if(expr instanceof Expr.Assign){
+            Expr.Assign assign = (Expr.Assign) expr;
+            Local local = assign.isGlobal || assign.upvalue >= 0 || assign.inCell ? null : localOf(assign.depth, assign.slot);
+            return local == null ? Kind.OBJECT : local.kind;
+        }
+        if(expr instanceof Expr.Unary){
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.getType() == TokenType.MINUS && kindOf(unary.right) == Kind.DOUBLE ? Kind.DOUBLE : Kind.OBJECT;
+        }
+        if(expr instanceof Expr.Binary){
+            Expr.Binary binary = (Expr.Binary) expr;
+            if(!isNumeric(binary)){
+                return Kind.OBJECT;
+            }
+            return isArithmetic(binary.operator.getType()) ? Kind.DOUBLE : Kind.BOOLEAN;
+        }
+        if(expr instanceof Expr.LogicalBinary){
+            return Kind.BOOLEAN;
+        }
+        return Kind.OBJECT;
+    }
+
+    // Both operands are unboxed, so the operator can be done on doubles
+    private boolean isNumeric(Expr.Binary binary){
+        return kindOf(binary.left) == Kind.DOUBLE && kindOf(binary.right) == Kind.DOUBLE;
+    }
+
+    private static boolean isArithmetic(TokenType type){
+        return type == TokenType.PLUS || type == TokenType.MINUS || type == TokenType.STAR || type == TokenType.SLASH;
+    }
+
+    private void constant(Object value, String className){
+        int index = constantIndex.computeIfAbsent(value, v -> {
+            constants.add(v);
+            return constants.size() - 1;
+        });
+        code.aload(THIS);
+        code.fieldOp(GETFIELD, BASE, "constants", "[" + O);
+        code.iconst(index);
+        code.op(AALOAD);
+        if(className != null){
+            code.typeOp(CHECKCAST, className);
+        }
+    }
+
+    private void token(Token token){
+        constant(token, "lox/parser/Token");
+    }
+
+    // Env of the innermost scope that has one
+    private int currentEnv(){
+        for(int i = scopes.size() - 1; i >= 0; i--){
+            if(scopes.get(i).envLocal != -1){
+                return scopes.get(i).envLocal;
+            }
+        }
+        return ENV_LOCAL;
+    }
+
+    // The JVM local a variable is in, null if it's in an Env
+    private Local localOf(int depth, int slot){
+        int index = scopes.size() - 1 - depth;
+        if(index < 0 || !inLocal(scopes.get(index), slot)){
+            return null;
+        }
+        return scopes.get(index).locals.get(slot);
+    }
+
+    private Kind load(int depth, int slot){
+        int index = scopes.size() - 1 - depth;
+        if(index < 0){
+            code.aload(ENV_LOCAL);
+            code.iconst(-index);
+            code.iconst(slot);
+            code.invoke(INVOKEVIRTUAL, ENV, "getAt", "(II)" + O);
+            return Kind.OBJECT;
+        }
+        Scope scope = scopes.get(index);
+        if(!inLocal(scope, slot)){
+            code.aload(scope.envLocal);
+            code.iconst(slot);
+            code.invoke(INVOKEVIRTUAL, ENV, "get", "(I)" + O);
+            return Kind.OBJECT;
+        }
+        return load(scope.locals.get(slot));
+    }
+
+    private Kind load(Local local){
+        if(local.kind == Kind.DOUBLE){
+            code.dload(local.index);
+        } else {
+            code.aload(local.index);
+        }
+        return local.kind;
+    }
+
+    private void store(Local local){
+        if(local.kind == Kind.DOUBLE){
+            code.dstore(local.index);
+        } else {
+            code.astore(local.index);
+        }
+    }
+
+    /**
+     * Stores the Object on top of the stack, leaving it there
+     */
+    private void assign(int depth, int slot){
+        int index = scopes.size() - 1 - depth;
+        if(index >= 0 && inLocal(scopes.get(index), slot)){
+            code.op(DUP);
+            code.astore(scopes.get(index).locals.get(slot).index);
+            return;
+        }
+        if(index < 0){
+            code.aload(ENV_LOCAL);
+            code.iconst(-index);
+        } else {
+            code.aload(scopes.get(index).envLocal);
+            code.iconst(0);
+        }
+        code.iconst(slot);
+        code.invoke(INVOKESTATIC, BASE, "assign", "(" + O + ENV_TYPE + "II)" + O);
+    }
+
+    // The cell for a variable of an enclosing function, out of the ones the closure captured
+    private void loadUpvalue(int index){
+        code.aload(ENV_LOCAL);
+        code.fieldOp(GETFIELD, ENV, "upvalues", "[" + CELL_TYPE);
+        code.iconst(index);
+        code.op(AALOAD);
+    }
+
+    /**
+     * Loads a local (or captured variable) that isn't a global
+     * @return what got loaded, only locals not in a cell can be doubles
+     */
+    private Kind read(int upvalue, boolean inCell, int depth, int slot){
+        if(upvalue >= 0){
+            loadUpvalue(upvalue);
+        } else {
+            Kind loaded = load(depth, slot);
+            if(!inCell){
+                return loaded;
+            }
+            code.typeOp(CHECKCAST, CELL);
+        }
+        code.fieldOp(GETFIELD, CELL, "value", O);
+        return Kind.OBJECT;
+    }
+
+    /**
+     * Stores the value on top of the stack into the cell pushed after it, leaving the value
+     */
+    private void storeCell(){
+        code.op(SWAP);
+        code.op(DUP_X1);
+        code.fieldOp(PUTFIELD, CELL, "value", O);
+    }
+
+    private static boolean inLocal(Scope scope, int slot){
+        return scope.envLocal == -1 || (slot < scope.locals.size() && scope.locals.get(slot) != null);
+    }
+
+    private interface Value {
+        void compile();
+    }
+
+    /**
+     * Defines the next local of the innermost scope
+     */
+    private void declare(Value value){
+        Scope scope = scopes.get(scopes.size() - 1);
+        if(scope.envLocal != -1 && !inSharedBlock){
+            code.aload(scope.envLocal);
+            value.compile();
+            code.invoke(INVOKEVIRTUAL, ENV, "define", "(" + O + ")V");
+        } else {
+            int local = code.newLocal();
+            value.compile();
+            code.astore(local);
+            scope.locals.add(new Local(local, Kind.OBJECT, null));
+        }
+    }
+
+    private void helper(String name, String descriptor){
+        code.invoke(INVOKESTATIC, BASE, name, descriptor);
+    }
+
+    private static String repeat(String s, int count){
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++){
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private void truthy(){
+        code.invoke(INVOKESTATIC, "lox/runtime/Ops", "isTruthy", "(" + O + ")Z");
+    }
+
+    private void jump(int opcode, Label target){
+        if(code.isReachable()){
+            code.jump(opcode, target);
+        }
+    }
+
+    /**
+     * Jumps to the target if the condition is falsey. Comparisons between doubles jump on the comparison itself
+     */
+    private void branchIfFalse(Expr condition, Label target){
+        if(condition instanceof Expr.Grouping){
+            branchIfFalse(((Expr.Grouping) condition).expression, target);
+            return;
+        }
+        if(kindOf(condition) == Kind.BOOLEAN && condition instanceof Expr.Binary){
+            Expr.Binary binary = (Expr.Binary) condition;
+            numbers(binary);
+            compareFalse(binary.operator.getType(), target);
+            return;
+        }
+        Kind compiled = compileRaw(condition);
+        if(compiled == Kind.DOUBLE){
+            code.op(POP2); // Numbers are always truthy
+        } else {
+            if(compiled == Kind.OBJECT){
+                truthy();
+            }
+            code.jump(IFEQ, target);
+        }
+    }
+
+    private void numbers(Expr.Binary binary){
+        compileAs(binary.left, Kind.DOUBLE);
+        compileAs(binary.right, Kind.DOUBLE);
+    }
+
+    /**
+     * Compares the two doubles on the stack, jumping to the target if the comparison is false. NaN makes every
+     * comparison false, so the instruction picked for each gives the result that jumps. Equality goes through
+     * Double.compare, which is what Double.equals does for the tree walker
+     */
+    private void compareFalse(TokenType type, Label target){
+        switch(type){
+            case LESS: code.op(DCMPG); code.jump(IFGE, target); break;
+            case LESS_EQUAL: code.op(DCMPG); code.jump(IFGT, target); break;
+            case GREATER: code.op(DCMPL); code.jump(IFLE, target); break;
+            case GREATER_EQUAL: code.op(DCMPL); code.jump(IFLT, target); break;
+            case EQUAL_EQUAL: compare(); code.jump(IFNE, target); break;
+            case BANG_EQUAL: compare(); code.jump(IFEQ, target); break;
+            default: throw new IllegalStateException("Not a comparison: " + type);
+        }
+    }
+
+    private void compare(){
+        code.invoke(INVOKESTATIC, DOUBLE, "compare", "(DD)I");
+    }
+
+    // 1 if the condition is true, 0 if it isn't
+    private void booleanOf(Expr condition){
+        Label isFalse = code.newLabel();
+        Label end = code.newLabel();
+        branchIfFalse(condition, isFalse);
+        code.iconst(1);
+        code.jump(GOTO, end);
+        code.place(isFalse);
+        code.iconst(0);
+        code.place(end);
+        kind = Kind.BOOLEAN;
+    }
+
+    private void arguments(List<Expr> args, boolean array){
+        if(array){
+            code.iconst(args.size());
+            code.typeOp(ANEWARRAY, "java/lang/Object");
+            for(int i = 0; i < args.size(); i++){
+                code.op(DUP);
+                code.iconst(i);
+                compile(args.get(i));
+                code.op(AASTORE);
+            }
+        } else {
+            for(Expr arg: args){
+                compile(arg);
+            }
+        }
+    }
+
+    /**
+     * Calls and method invocations, with the interpreter, the callee (and for invocations the target) already on the
+     * stack. Tail calls always pass an argument array
+     */
+    private void call(Expr.Call expr, boolean invoke, boolean tail){
+        int argc = expr.args.size();
+        boolean array = tail || argc > 4;
+        arguments(expr.args, array);
+        token(expr.paren);
+        String prefix = INTERPRETER_TYPE + O + (invoke ? O : "");
+        String args = array ? "[" + O : repeat(O, argc);
+        String name;
+        if(tail){
+            name = invoke ? "tailInvoke" : "tailCall";
+        } else {
+            name = (invoke ? "invoke" : "call") + (array ? "N" : Integer.toString(argc));
+        }
+        helper(name, "(" + prefix + args + TOKEN_TYPE + ")" + O);
+    }
+
+    private void compileCall(Expr.Call expr, boolean tail){
+        if(!tail && directCall(expr, false)){
+            return;
+        }
+        code.aload(INTERPRETER_LOCAL);
+        if(expr.calle instanceof Expr.Get){
+            // obj.method(args) hands the receiver along instead of binding the method
+            Expr.Get get = (Expr.Get) expr.calle;
+            compile(get.target);
+            code.op(DUP);
+            constant(get.cache, "lox/execution/PropertyCache");
+            token(get.name);
+            helper("property", "(" + O + CACHE_TYPE + TOKEN_TYPE + ")" + O);
+            call(expr, true, tail);
+        } else {
+            compile(expr.calle);
+            call(expr, false, tail);
+        }
+    }
+
+    /**
+     * A call to a global holding a function with a static method. If the global still holds the function it was
+     * compiled against, and the arguments passed for double parameters are numbers, the static method gets called (or
+     * for a tail call to the function being compiled, the parameters reassigned and the body started over). Otherwise
+     * it's an ordinary call through the helpers
+     * @return false if the call can't be made directly, in which case nothing got compiled
+     */
+    private boolean directCall(Expr.Call expr, boolean tail){
+        if(!(expr.calle instanceof Expr.Var) || !((Expr.Var) expr.calle).isGlobal){
+            return false;
+        }
+        Object function = program.global(((Expr.Var) expr.calle).name);
+        Stmt.Fun declaration = program.declarationOf(function);
+        int argc = expr.args.size();
+        if(declaration == null || declaration.params.size() != argc || !isStatic(declaration)){
+            return false;
+        }
+        Kind[] kinds = new Kind[argc];
+        for(int i = 0; i < argc; i++){
+            kinds[i] = kindOf(expr.args.get(i));
+        }
+        Direct direct = direct(declaration, kinds);
+        if(direct == null || (tail && direct != current)){
+            return false;
+        }
+
+        // Callee first and then the arguments, in the order the helpers would get them
+        int callee = code.newLocal();
+        compile(expr.calle);
+        code.astore(callee);
+        Local[] args = new Local[argc];
+        for(int i = 0; i < argc; i++){
+            if(direct.params[i] == Kind.DOUBLE && kinds[i] == Kind.DOUBLE){
+                args[i] = new Local(code.newDoubleLocal(), Kind.DOUBLE, null);
+                compileAs(expr.args.get(i), Kind.DOUBLE);
+            } else {
+                args[i] = new Local(code.newLocal(), Kind.OBJECT, null);
+                compile(expr.args.get(i));
+            }
+            store(args[i]);
+        }
+
+        Label slow = code.newLabel();
+        Label end = code.newLabel();
+        code.aload(callee);
+        constant(function, null);
+        code.jump(IF_ACMPNE, slow);
+        for(int i = 0; i < argc; i++){
+            if(direct.params[i] == Kind.DOUBLE && args[i].kind == Kind.OBJECT){
+                code.aload(args[i].index);
+                code.typeOp(INSTANCEOF, DOUBLE);
+                code.jump(IFEQ, slow);
+            }
+        }
+        if(tail){
+            List<Local> params = scopes.get(0).locals;
+            for(int i = 0; i < argc; i++){
+                convert(load(args[i]), direct.params[i]);
+                store(params.get(i));
+            }
+            code.jump(GOTO, start);
+        } else {
+            code.aload(THIS);
+            code.aload(INTERPRETER_LOCAL);
+            for(int i = 0; i < argc; i++){
+                convert(load(args[i]), direct.params[i]);
+            }
+            code.invoke(INVOKESTATIC, classFile.getName(), direct.method, direct.descriptor());
+            code.jump(GOTO, end);
+        }
+
+        code.place(slow);
+        code.aload(INTERPRETER_LOCAL);
+        code.aload(callee);
+        boolean array = argc > 4;
+        if(array){
+            code.iconst(argc);
+            code.typeOp(ANEWARRAY, "java/lang/Object");
+        }
+        for(int i = 0; i < argc; i++){
+            if(array){
+                code.op(DUP);
+                code.iconst(i);
+            }
+            convert(load(args[i]), Kind.OBJECT);
+            if(array){
+                code.op(AASTORE);
+            }
+        }
+        token(expr.paren);
+        String descriptor = array ? "[" + O : repeat(O, argc);
+        helper(array ? "callN" : "call" + argc, "(" + INTERPRETER_TYPE + O + descriptor + TOKEN_TYPE + ")" + O);
+        if(tail){
+            code.op(ARETURN);
+        }
+        code.place(end);
+        kind = Kind.OBJECT;
+        return true;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        TokenType type = expr.operator.getType();
+        if(isNumeric(expr)){
+            if(!isArithmetic(type)){
+                booleanOf(expr);
+                return null;
+            }
+            if(type == TokenType.SLASH){
+                token(expr.operator);
+            }
+            numbers(expr);
+            switch(type){
+                case PLUS: code.op(DADD); break;
+                case MINUS: code.op(DSUB); break;
+                case STAR: code.op(DMUL); break;
+                default: code.invoke(INVOKESTATIC, INTERPRETER, "divide", "(" + TOKEN_TYPE + "DD)D");
+            }
+            kind = Kind.DOUBLE;
+            return null;
+        }
+        token(expr.operator);
+        compile(expr.left);
+        compile(expr.right);
+        code.invoke(INVOKESTATIC, INTERPRETER, "binary", "(" + TOKEN_TYPE + O + O + ")" + O);
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compileRaw(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if(value == null){
+            code.op(ACONST_NULL);
+        } else if(value instanceof Boolean){
+            code.fieldOp(GETSTATIC, "java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else if(value instanceof String){
+            code.ldcString((String) value);
+        } else {
+            constant(value, null); // Already boxed by the parser
+        }
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if(kindOf(expr) == Kind.DOUBLE){
+            compileAs(expr.right, Kind.DOUBLE);
+            code.op(DNEG);
+            kind = Kind.DOUBLE;
+            return null;
+        }
+        token(expr.operator);
+        compile(expr.right);
+        code.invoke(INVOKESTATIC, INTERPRETER, "unary", "(" + TOKEN_TYPE + O + ")" + O);
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        if(expr.isGlobal){
+            code.aload(globalsLocal);
+            token(expr.name);
+            code.invoke(INVOKEVIRTUAL, GLOBALS, "get", "(" + TOKEN_TYPE + ")" + O);
+            kind = Kind.OBJECT;
+        } else {
+            kind = read(expr.upvalue, expr.inCell, expr.depth, expr.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        Local local = kindOf(expr) == Kind.DOUBLE ? localOf(expr.depth, expr.slot) : null;
+        if(local != null){
+            if(kindOf(expr.value) == Kind.DOUBLE){
+                compileAs(expr.value, Kind.DOUBLE);
+            } else {
+                // The local can't stay a double, this attempt gets thrown away once it's done
+                demote(local.name);
+                compile(expr.value);
+                code.op(POP);
+                code.op(DCONST_0);
+            }
+            code.op(DUP2);
+            code.dstore(local.index);
+            kind = Kind.DOUBLE;
+            return null;
+        }
+        compile(expr.value);
+        if(expr.isGlobal){
+            code.aload(globalsLocal);
+            token(expr.name);
+            helper("assignGlobal", "(" + O + "L" + GLOBALS + ";" + TOKEN_TYPE + ")" + O);
+        } else if(expr.upvalue >= 0){
+            loadUpvalue(expr.upvalue);
+            storeCell();
+        } else if(expr.inCell){
+            load(expr.depth, expr.slot);
+            code.typeOp(CHECKCAST, CELL);
+            storeCell();
+        } else {
+            assign(expr.depth, expr.slot);
+        }
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        // Like the tree walker, and/or give back a boolean rather than one of the operands
+        Label isFalse = code.newLabel();
+        Label end = code.newLabel();
+        if(expr.operator.getType() == TokenType.OR){
+            Label right = code.newLabel();
+            branchIfFalse(expr.left, right);
+            code.iconst(1);
+            code.jump(GOTO, end);
+            code.place(right);
+            branchIfFalse(expr.right, isFalse);
+        } else {
+            branchIfFalse(expr.left, isFalse);
+            branchIfFalse(expr.right, isFalse);
+        }
+        code.iconst(1);
+        code.jump(GOTO, end);
+        code.place(isFalse);
+        code.iconst(0);
+        code.place(end);
+        kind = Kind.BOOLEAN;
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compileCall(expr, false);
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.target);
+        constant(expr.cache, "lox/execution/PropertyCache");
+        token(expr.name);
+        helper("get", "(" + O + CACHE_TYPE + TOKEN_TYPE + ")" + O);
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.target);
+        token(expr.name);
+        helper("setTarget", "(" + O + TOKEN_TYPE + ")Llox/execution/LoxInstance;");
+        compile(expr.val);
+        constant(expr.cache, "lox/execution/PropertyCache");
+        token(expr.name);
+        helper("set", "(Llox/execution/LoxInstance;" + O + CACHE_TYPE + TOKEN_TYPE + ")" + O);
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        kind = read(expr.upvalue, expr.inCell, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        read(expr.upvalue, false, expr.depth, expr.slot);
+        compile(expr.receiver);
+        token(expr.method);
+        helper("superGet", "(" + O + O + TOKEN_TYPE + ")" + O);
+        kind = Kind.OBJECT;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Scope scope = scopes.get(scopes.size() - 1);
+        boolean inEnv = scope.envLocal != -1 && !inSharedBlock;
+        if(!inEnv && !stmt.isCaptured && stmt.init != null && kindOf(stmt.init) == Kind.DOUBLE && !demoted.contains(stmt.name)){
+            Local local = new Local(code.newDoubleLocal(), Kind.DOUBLE, stmt.name);
+            compileAs(stmt.init, Kind.DOUBLE);
+            store(local);
+            scope.locals.add(local);
+            return null;
+        }
+        declare(() -> {
+            if(stmt.init != null){
+                compile(stmt.init);
+            } else {
+                code.op(ACONST_NULL);
+            }
+            if(stmt.isCaptured){
+                code.invoke(INVOKESTATIC, CELL, "of", "(" + O + ")" + CELL_TYPE);
+            }
+        });
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        constant(stmt, "lox/parser/Stmt$Class");
+        code.aload(declaringEnv());
+        if(stmt.superclass != null){
+            compile(stmt.superclass);
+        } else {
+            code.op(ACONST_NULL);
+        }
+        helper("defineClass", "(Llox/parser/Stmt$Class;" + ENV_TYPE + O + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitFunStmt(Stmt.Fun stmt) {
+        constant(stmt, "lox/parser/Stmt$Fun");
+        code.aload(declaringEnv());
+        helper("defineFunction", "(Llox/parser/Stmt$Fun;" + ENV_TYPE + ")V");
+        return null;
+    }
+
+    // Functions and classes are defined straight into the Env by the helpers, which Analysis made sure there is
+    private int declaringEnv(){
+        Scope scope = scopes.get(scopes.size() - 1);
+        if(scope.envLocal == -1 || inSharedBlock){
+            throw new IllegalStateException("Function declared in a scope without an Env");
+        }
+        return scope.envLocal;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        code.op(compileRaw(stmt.expression) == Kind.DOUBLE ? POP2 : POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        helper("print", "(" + O + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        boolean enclosingShared = inSharedBlock;
+        if(stmt.sharesEnv){
+            List<Local> locals = scopes.get(scopes.size() - 1).locals;
+            while(locals.size() < stmt.firstSlot){
+                locals.add(null); // Slots the Env holds
+            }
+            inSharedBlock = true;
+            compileStatements(stmt.statements);
+            inSharedBlock = enclosingShared;
+            while(locals.size() > stmt.firstSlot){
+                locals.remove(locals.size() - 1);
+            }
+            return null;
+        }
+        inSharedBlock = false;
+        if(analysis.declaresClosures(stmt)){
+            int local = code.newLocal();
+            code.typeOp(NEW, ENV);
+            code.op(DUP);
+            code.aload(currentEnv());
+            code.iconst(stmt.slotCount);
+            code.invoke(INVOKESPECIAL, ENV, "<init>", "(" + ENV_TYPE + "I)V");
+            code.astore(local);
+            scopes.add(new Scope(stmt, local));
+        } else {
+            scopes.add(new Scope(stmt, -1));
+        }
+        compileStatements(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        inSharedBlock = enclosingShared;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseCase = code.newLabel();
+        Label end = code.newLabel();
+        branchIfFalse(stmt.condition, elseCase);
+        stmt.thenCase.accept(this);
+        jump(GOTO, end);
+        code.place(elseCase);
+        if(stmt.elseCase != null){
+            stmt.elseCase.accept(this);
+        }
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label loop = code.newLabel();
+        Label end = code.newLabel();
+        code.place(loop);
+        branchIfFalse(stmt.cond, end);
+        stmt.body.accept(this);
+        jump(GOTO, loop);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.isTailCall && current == null){
+            compileCall((Expr.Call) stmt.value, true);
+        } else if(stmt.isTailCall && directCall((Expr.Call) stmt.value, true)){
+            return null; // Either jumped back to the start or returned
+        } else if(stmt.value == null){
+            code.op(ACONST_NULL);
+        } else {
+            compile(stmt.value);
+        }
+        code.op(ARETURN);
+        return null;
+    }
+}
@@ -4,13 +4,28 @@ import lox.parser.Token;
 
 public class LoxRuntimeException extends RuntimeException{
     private final Token token;
+    private final int line;
 
     public LoxRuntimeException(Token token, String message){
         super(message);
         this.token = token;
+        this.line = token.getLine();
+    }
+
+    /**
+     * For engines that only keep line numbers around at runtime, not the original tokens
+     */
+    public LoxRuntimeException(int line, String message){
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 
     public Token getToken(){
         return token;
     }
+
+    public int getLine(){
+        return line;
+    }
 }
@@ -0,0 +1,35 @@
+package lox.execution;
+
+/**
+ * Counters for the property inline caches
+ */
+public final class CacheStats {
+    static long hits = 0;
+    static long misses = 0;
+    static long megamorphicLookups = 0;
+    static long megamorphicSites = 0;
+
+    private CacheStats(){
+    }
+
+    public static long getHits(){
+        return hits;
+    }
+
+    public static long getMisses(){
+        return misses;
+    }
+
+    public static long getMegamorphicLookups(){
+        return megamorphicLookups;
+    }
+
+    public static long getMegamorphicSites(){
+        return megamorphicSites;
+    }
+
+    public static String report(){
+        return "property caches hit: " + hits + ", missed: " + misses + ", megamorphic lookups: " + megamorphicLookups +
+                " (" + megamorphicSites + " megamorphic sites)";
+    }
+}
@@ -0,0 +1,296 @@
+package lox.execution;
+
+import lox.exception.LoxRuntimeException;
+import lox.parser.Stmt;
+import lox.parser.Token;
+import lox.runtime.Cell;
+import lox.runtime.ClassLayout;
+import lox.runtime.Instance;
+import lox.runtime.Ops;
+import lox.runtime.SymbolMap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Base class of the hidden classes TierCompiler generates for hot functions and loops. execute runs the function body
+ * (with the frame LoxFunction made for the call) or the rest of the loop (with the env the loop runs in), and completes
+ * the same way executeBlock does
+ *
+ * The static methods are what the compiled code calls for anything more than loading and storing variables. They
+ * behave exactly like the matching parts of InterpreterVisitor, messages included. Operators aren't here at all, the
+ * compiled code calls InterpreterVisitor.binary and unary directly
+ */
+abstract class CompiledCode {
+    protected final Object[] constants; // Tokens, caches, declarations and literals the code refers to
+
+    protected CompiledCode(Object[] constants){
+        this.constants = constants;
+    }
+
+    abstract Object execute(InterpreterVisitor interpreter, Env env);
+
+    static Object assign(Object value, Env env, int depth, int slot){
+        env.updateAt(depth, slot, value);
+        return value;
+    }
+
+    static Object assignGlobal(Object value, GlobalEnv globals, Token name){
+        globals.update(name, value);
+        return value;
+    }
+
+    static void print(Object value){
+        System.out.println(Ops.stringify(value));
+    }
+
+    static Object call0(InterpreterVisitor interpreter, Object callee, Token paren){
+        if(callee instanceof LoxFunction && ((LoxFunction) callee).getArity() == 0){
+            LoxFunction fun = (LoxFunction) callee;
+            return fun.run(interpreter, fun.newFrame());
+        } else if(callee instanceof LoxClass && ((LoxClass) callee).getArity() == 0){
+            return construct(interpreter, (LoxClass) callee);
+        }
+        return checkCallable(callee, paren).call0(interpreter);
+    }
+
+    static Object call1(InterpreterVisitor interpreter, Object callee, Object a, Token paren){
+        if(callee instanceof LoxFunction && ((LoxFunction) callee).getArity() == 1){
+            LoxFunction fun = (LoxFunction) callee;
+            return fun.run(interpreter, frame(fun.newFrame(), a));
+        } else if(callee instanceof LoxClass && ((LoxClass) callee).getArity() == 1){
+            return construct(interpreter, (LoxClass) callee, a);
+        }
+        return checkCallable(callee, paren, a).call1(interpreter, a);
+    }
+
+    static Object call2(InterpreterVisitor interpreter, Object callee, Object a, Object b, Token paren){
+        if(callee instanceof LoxFunction && ((LoxFunction) callee).getArity() == 2){
+            LoxFunction fun = (LoxFunction) callee;
+            return fun.run(interpreter, frame(fun.newFrame(), a, b));
+        } else if(callee instanceof LoxClass && ((LoxClass) callee).getArity() == 2){
+            return construct(interpreter, (LoxClass) callee, a, b);
+        }
+        return checkCallable(callee, paren, a, b).call2(interpreter, a, b);
+    }
+
+    static Object call3(InterpreterVisitor interpreter, Object callee, Object a, Object b, Object c, Token paren){
+        if(callee instanceof LoxFunction && ((LoxFunction) callee).getArity() == 3){
+            LoxFunction fun = (LoxFunction) callee;
+            return fun.run(interpreter, frame(fun.newFrame(), a, b, c));
+        } else if(callee instanceof LoxClass && ((LoxClass) callee).getArity() == 3){
+            return construct(interpreter, (LoxClass) callee, a, b, c);
+        }
+        return checkCallable(callee, paren, a, b, c).call3(interpreter, a, b, c);
+    }
+
+    static Object call4(InterpreterVisitor interpreter, Object callee, Object a, Object b, Object c, Object d, Token paren){
+        if(callee instanceof LoxFunction && ((LoxFunction) callee).getArity() == 4){
+            LoxFunction fun = (LoxFunction) callee;
+            return fun.run(interpreter, frame(fun.newFrame(), a, b, c, d));
+        } else if(callee instanceof LoxClass && ((LoxClass) callee).getArity() == 4){
+            return construct(interpreter, (LoxClass) callee, a, b, c, d);
+        }
+        return checkCallable(callee, paren, a, b, c, d).call4(interpreter, a, b, c, d);
+    }
+
+    static Object callN(InterpreterVisitor interpreter, Object callee, Object[] args, Token paren){
+        if(callee instanceof LoxFunction && ((LoxFunction) callee).getArity() == args.length){
+            LoxFunction fun = (LoxFunction) callee;
+            return fun.run(interpreter, frame(fun.newFrame(), args));
+        } else if(callee instanceof LoxClass && ((LoxClass) callee).getArity() == args.length){
+            return construct(interpreter, (LoxClass) callee, args);
+        }
+        List<Object> arguments = Arrays.asList(args);
+        return checkCallable(callee, paren, args).call(interpreter, arguments);
+    }
+
+    private static Env frame(Env frame, Object... args){
+        for(Object arg: args){
+            frame.define(arg);
+        }
+        return frame;
+    }
+
+    private static Object construct(InterpreterVisitor interpreter, LoxClass klass, Object... args){
+        LoxInstance instance = new LoxInstance(klass);
+        LoxFunction initializer = klass.getInitializer();
+        if(initializer != null){
+            initializer.run(interpreter, frame(initializer.newFrame(instance), args));
+        }
+        return instance;
+    }
+
+    private static LoxCallable checkCallable(Object callee, Token paren, Object... args){
+        return InterpreterVisitor.checkCallable(callee, Arrays.asList(args), paren);
+    }
+
+    /**
+     * First half of obj.method(args), before the arguments are evaluated. Methods come back unbound, and invoke calls
+     * them on the target
+     */
+    static Object property(Object target, PropertyCache cache, Token name){
+        if(!(target instanceof LoxInstance)){
+            throw new LoxRuntimeException(name, Instance.notAnInstance("access", target));
+        }
+        LoxInstance instance = (LoxInstance) target;
+        LoxFunction method = cache.getMethod(instance, name);
+        return method != null ? method : instance.get(name);
+    }
+
+    // Only property() hands out methods without a receiver, bound methods and functions are called normally
+    private static LoxFunction method(Object property){
+        if(property instanceof LoxFunction){
+            LoxFunction fun = (LoxFunction) property;
+            if(fun.declaration.isMethod && fun.receiver == null){
+                return fun;
+            }
+        }
+        return null;
+    }
+
+    static Object invoke0(InterpreterVisitor interpreter, Object target, Object property, Token paren){
+        LoxFunction method = method(property);
+        if(method == null){
+            return call0(interpreter, property, paren);
+        }
+        checkCallable(method, paren);
+        return method.run(interpreter, method.newFrame((LoxInstance) target));
+    }
+
+    static Object invoke1(InterpreterVisitor interpreter, Object target, Object property, Object a, Token paren){
+        LoxFunction method = method(property);
+        if(method == null){
+            return call1(interpreter, property, a, paren);
+        }
+        checkCallable(method, paren, a);
+        return method.run(interpreter, frame(method.newFrame((LoxInstance) target), a));
+    }
+
+    static Object invoke2(InterpreterVisitor interpreter, Object target, Object property, Object a, Object b, Token paren){
+        LoxFunction method = method(property);
+        if(method == null){
+            return call2(interpreter, property, a, b, paren);
+        }
+        checkCallable(method, paren, a, b);
+        return method.run(interpreter, frame(method.newFrame((LoxInstance) target), a, b));
+    }
+
+    static Object invoke3(InterpreterVisitor interpreter, Object target, Object property, Object a, Object b, Object c, Token paren){
+        LoxFunction method = method(property);
+        if(method == null){
+            return call3(interpreter, property, a, b, c, paren);
+        }
+        checkCallable(method, paren, a, b, c);
+        return method.run(interpreter, frame(method.newFrame((LoxInstance) target), a, b, c));
+    }
+
+    static Object invoke4(InterpreterVisitor interpreter, Object target, Object property, Object a, Object b, Object c, Object d, Token paren){
+        LoxFunction method = method(property);
+        if(method == null){
+            return call4(interpreter, property, a, b, c, d, paren);
+        }
+        checkCallable(method, paren, a, b, c, d);
+        return method.run(interpreter, frame(method.newFrame((LoxInstance) target), a, b, c, d));
+    }
+
+    static Object invokeN(InterpreterVisitor interpreter, Object target, Object property, Object[] args, Token paren){
+        LoxFunction method = method(property);
+        if(method == null){
+            return callN(interpreter, property, args, paren);
+        }
+        checkCallable(method, paren, args);
+        return method.run(interpreter, frame(method.newFrame((LoxInstance) target), args));
+    }
+
+    /**
+     * 'return f(args);', made by LoxFunction.run like the tree walker's tail calls. Anything that isn't a call to a
+     * Lox function with the right arity is just called here
+     */
+    static Object tailCall(InterpreterVisitor interpreter, Object callee, Object[] args, Token paren){
+        if(callee instanceof LoxFunction && ((LoxFunction) callee).getArity() == args.length){
+            LoxFunction fun = (LoxFunction) callee;
+            return interpreter.tailCall(fun, fun.receiver, args);
+        }
+        return callN(interpreter, callee, args, paren);
+    }
+
+    static Object tailInvoke(InterpreterVisitor interpreter, Object target, Object property, Object[] args, Token paren){
+        LoxFunction method = method(property);
+        if(method == null){
+            return tailCall(interpreter, property, args, paren);
+        }
+        checkCallable(method, paren, args);
+        return interpreter.tailCall(method, (LoxInstance) target, args);
+    }
+
+    static Object get(Object target, PropertyCache cache, Token name){
+        if(!(target instanceof LoxInstance)){
+            throw new LoxRuntimeException(name, Instance.notAnInstance("access", target));
+        }
+        return cache.get((LoxInstance) target, name);
+    }
+
+    static LoxInstance setTarget(Object target, Token name){
+        if(!(target instanceof LoxInstance)){
+            throw new LoxRuntimeException(name, Instance.notAnInstance("set", target));
+        }
+        return (LoxInstance) target;
+    }
+
+    static Object set(LoxInstance target, Object value, PropertyCache cache, Token name){
+        cache.set(target, name, value);
+        return null;
+    }
+
+    static Object superGet(Object superclass, Object instance, Token method){
+        LoxFunction fun = ((LoxClass) superclass).getMethod(method.getSymbol());
+        if(fun == null){
+            throw new LoxRuntimeException(method, ClassLayout.undefinedProperty(method.getLexeme()));
+        }
+        return fun.bind((LoxInstance) instance);
+    }
+
+    /**
+     * Same as visitFunStmt, for a function declared in a local scope
+     */
+    static void defineFunction(Stmt.Fun declaration, Env env){
+        if(declaration.isCaptured){
+            Cell cell = new Cell();
+            env.define(cell);
+            cell.value = new LoxFunction(declaration, env.capture(declaration.captures), false);
+        } else {
+            env.define(new LoxFunction(declaration, env.capture(declaration.captures), false));
+        }
+    }
+
+    /**
+     * Same as visitClassStmt, with the superclass already evaluated
+     */
+    static void defineClass(Stmt.Class stmt, Env env, Object superclass){
+        Cell cell = null;
+        if(stmt.isCaptured){
+            cell = new Cell();
+            env.define(cell);
+        }
+        Env methodEnv = env;
+        if(stmt.superclass != null){
+            if(!(superclass instanceof LoxClass)){
+                throw new LoxRuntimeException(stmt.superclass.name, ClassLayout.notAClass(superclass));
+            }
+            methodEnv = new Env(env, 1);
+            methodEnv.define(Cell.of(superclass));
+        }
+        SymbolMap<LoxFunction> methods = new SymbolMap<>();
+        for(Stmt.Fun method: stmt.methods){
+            methods.put(method.name.getSymbol(),
+                    new LoxFunction(method, methodEnv.capture(method.captures), ClassLayout.isInitializer(method.name.getLexeme())));
+        }
+        LoxClass klass = new LoxClass(stmt.name.getLexeme(), (LoxClass) superclass, methods);
+        if(cell != null){
+            cell.value = klass;
+        } else {
+            env.define(klass);
+        }
+    }
+}
@@ -1,32 +1,122 @@
 package lox.execution;
 
-import lox.exception.LoxRuntimeException;
-import lox.parser.Token;
+import lox.runtime.Cell;
+import lox.semantic.Capture;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * A single lexical scope. Locals are stored by the slot number the Resolver assigned to them, in declaration order
+ *
+ * Numbers can also be stored unboxed: the slot holds the UNBOXED marker and the value lives in a parallel double
+ * array, which is only allocated once the scope actually stores a number that way. Generic reads box on the way out,
+ * so code that never asks for a double doesn't need to know about it
+ *
+ * The chain stops at the function's frame. Variables of enclosing functions that the function uses were captured into
+ * cells when the closure was made, and every Env of a call can get at them directly
+ */
 public class Env {
-    protected final Map<String, Object> values = new HashMap<>();
+    private static final int DEFAULT_CAPACITY = 4;
+    private static final Object UNBOXED = new Object();
+    private static final Cell[] NO_UPVALUES = new Cell[0];
+
+    private Object[] slots;
+    private double[] numbers;
+    private int size = 0;
     private final Env enclosing;
+    public final Cell[] upvalues;
 
     public Env(){
-        enclosing = null;
+        this(null, 0);
     }
 
     public Env(Env enclosing){
+        this(enclosing, DEFAULT_CAPACITY);
+    }
+
+    public Env(Env enclosing, int capacity){
+        this(enclosing, enclosing == null ? null : enclosing.upvalues, capacity);
+    }
+
+    private Env(Env enclosing, Cell[] upvalues, int capacity){
         this.enclosing = enclosing;
+        this.upvalues = upvalues;
+        this.slots = new Object[capacity];
+    }
+
+    /**
+     * The outermost Env of a call
+     */
+    public static Env frame(Cell[] upvalues, int capacity){
+        return new Env(null, upvalues, capacity);
+    }
+
+    /**
+     * The cells for a closure created in this Env
+     */
+    public Cell[] capture(Capture[] captures){
+        if(captures.length == 0){
+            return NO_UPVALUES;
+        }
+        Cell[] cells = new Cell[captures.length];
+        for(int i = 0; i < captures.length; i++){
+            Capture capture = captures[i];
+            cells[i] = capture.isLocal ? (Cell) getAt(capture.depth, capture.slot) : upvalues[capture.index];
+        }
+        return cells;
+    }
+
+    /**
+     * Moves the locals a closure captured into cells, for frames that had them defined by the caller
+     */
+    public void box(boolean[] captured){
+        for(int slot = 0; slot < captured.length; slot++){
+            if(captured[slot]){
+                slots[slot] = Cell.of(get(slot));
+            }
+        }
+    }
+
+    /**
+     * Defines the next local in this scope. The Resolver hands out slots in the same order the declarations execute,
+     * so the slot for a new variable is always the current size
+     */
+    public void define(Object value){
+        if(size == slots.length){
+            grow();
+        }
+        slots[size++] = value;
+    }
+
+    public void defineDouble(double value){
+        if(size == slots.length){
+            grow();
+        }
+        setDouble(size++, value);
     }
 
-    public void define(Token name, Object value){
-        values.put(name.getLexeme(), value);
+    private void grow(){
+        slots = Arrays.copyOf(slots, Math.max(DEFAULT_CAPACITY, size * 2));
+        if(numbers != null){
+            numbers = Arrays.copyOf(numbers, slots.length);
+        }
+    }
+
+    /**
+     * Empties the scope so it can be used for another call to the same function
+     */
+    public void reset(){
+        size = 0;
     }
 
-    public void define(String name, Object value){
-        values.put(name, value);
+    /**
+     * Drops every local from the given slot up, for blocks that borrowed the slots after this scope's own
+     */
+    public void truncate(int size){
+        this.size = size;
     }
 
-    private Env ancestor(int distance){
+    public Env ancestor(int distance){
         Env env = this;
         for(int i = 0; i < distance; i++){
             env = env.enclosing;
@@ -34,11 +124,35 @@ public class Env {
         return env;
     }
 
-    public Object getAt(int dist, String name){
-        return ancestor(dist).values.get(name);
+    public Object getAt(int dist, int slot){
+        return ancestor(dist).get(slot);
+    }
+
+    public void updateAt(int dist, int slot, Object val){
+        ancestor(dist).slots[slot] = val;
+    }
+
+    public Object get(int slot){
+        Object value = slots[slot];
+        return value == UNBOXED ? (Object) numbers[slot] : value;
+    }
+
+    public boolean isDouble(int slot){
+        return slots[slot] == UNBOXED;
+    }
+
+    /**
+     * Only valid if isDouble(slot) is true
+     */
+    public double getDouble(int slot){
+        return numbers[slot];
     }
 
-    public void updateAt(int dist, Token name, Object val){
-        ancestor(dist).values.put(name.getLexeme(), val);
+    public void setDouble(int slot, double value){
+        if(numbers == null){
+            numbers = new double[slots.length];
+        }
+        numbers[slot] = value;
+        slots[slot] = UNBOXED;
     }
 }
@@ -2,24 +2,61 @@ package lox.execution;
 
 import lox.exception.LoxRuntimeException;
 import lox.parser.Token;
+import lox.runtime.Symbols;
+
+import java.util.Arrays;
 
 /**
  * The only Env that can be accessed without requiring any distance specified
+ * Globals aren't resolved statically, so they're still looked up by name. Names are interned, so the values live in
+ * an array indexed by the name's Symbols id
  */
 public class GlobalEnv extends Env {
+    private static final Object UNDEFINED = new Object();
+
+    private Object[] values = new Object[0];
+
+    public void define(Token name, Object value){
+        define(name.getSymbol(), value);
+    }
+
+    public void define(String name, Object value){
+        define(Symbols.intern(name), value);
+    }
+
+    private void define(int symbol, Object value){
+        if(symbol >= values.length){
+            int size = values.length;
+            values = Arrays.copyOf(values, Math.max(symbol + 1, Symbols.count()));
+            Arrays.fill(values, size, values.length, UNDEFINED);
+        }
+        values[symbol] = value;
+    }
+
     public void update(Token name, Object value){
-        if(!values.containsKey(name.getLexeme())){
+        int symbol = name.getSymbol();
+        if(symbol >= values.length || values[symbol] == UNDEFINED){
             throw new LoxRuntimeException(name, "Variable '" + name.getLexeme() + "' does not exist.");
         } else {
-            values.put(name.getLexeme(), value);
+            values[symbol] = value;
         }
     }
 
     public Object get(Token name){
-        if(!values.containsKey(name.getLexeme())){
+        int symbol = name.getSymbol();
+        Object value = symbol < values.length ? values[symbol] : UNDEFINED;
+        if(value == UNDEFINED){
             throw new LoxRuntimeException(name, "Variable '" + name.getLexeme() + "' undefined in scope.");
-        } else {
-            return values.get(name.getLexeme());
         }
+        return value;
+    }
+
+    /**
+     * @return the value, or null if the name isn't defined
+     */
+    public Object lookup(Token name){
+        int symbol = name.getSymbol();
+        Object value = symbol < values.length ? values[symbol] : null;
+        return value == UNDEFINED ? null : value;
     }
 }
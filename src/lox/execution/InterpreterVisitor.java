@@ -2,165 +2,238 @@ package lox.execution;
 
 import lox.Lox;
 import lox.exception.LoxRuntimeException;
-import lox.execution.external.Clock;
+import lox.execution.external.Native;
 import lox.parser.Expr;
 import lox.parser.Stmt;
 import lox.parser.Token;
 import lox.parser.TokenType;
+import lox.runtime.Cell;
+import lox.runtime.ClassLayout;
+import lox.runtime.Clock;
+import lox.runtime.Instance;
+import lox.runtime.LoxError;
+import lox.runtime.Ops;
+import lox.runtime.SymbolMap;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * Tree walk interpreter using the Visitor pattern
+ *
+ * Statements report how they completed instead of throwing to unwind out of a function: NORMAL if execution should
+ * carry on with the next statement, anything else is the value being returned
  */
-public class InterpreterVisitor implements Expr.Visitor<Object>, Stmt.Visitor<Void>{
+public class InterpreterVisitor implements Expr.Visitor<Object>, Stmt.Visitor<Object>{
+    public static final Object NORMAL = new Object();
+    private static final Object UNBOXED = new Object(); // Operand of number that was computed as a double
+
     private final GlobalEnv globals = new GlobalEnv();
     private Env env = globals;
-    private Map<Expr, Integer> locals = new HashMap<>();
-    private boolean isREPL = true;
 
-    public InterpreterVisitor(){
-        env.define(new Token(null, "clock", null, -1), new Clock());
-    }
+    private final TailCall tailCall = new TailCall();
+    private Object[] arguments = new Object[16]; // Arguments of pending tail calls
+    private int argumentCount = 0;
 
-    public InterpreterVisitor(Map<Expr, Integer> resolutions){
-        this();
-        this.locals = resolutions;
-        this.isREPL = false;
+    private TraceRecorder recorder; // Set while recording an iteration of a hot loop
+
+    public InterpreterVisitor(){
+        globals.define("clock", new Native(new Clock()));
     }
 
     public Env getGlobals(){
         return globals;
     }
 
+    Env getEnv(){
+        return env;
+    }
+
+    void setEnv(Env env){
+        this.env = env;
+    }
+
     public void interpret(List<Stmt> program){
         try{
             for(Stmt statement: program){
                 execute(statement);
             }
         } catch (LoxRuntimeException e){
+            argumentCount = 0;
             Lox.runtimeError(e);
         }
     }
 
-    public void executeBlock(List<Stmt> body, Env env){
+    public Object executeBlock(List<Stmt> body, Env env){
         Env enclosing = this.env;
         try {
             this.env = env;
             for(Stmt statement: body){
-                execute(statement);
+                Object completion = execute(statement);
+                if(completion != NORMAL){
+                    return completion;
+                }
             }
+            return NORMAL;
         } finally {
             this.env = enclosing;
         }
     }
 
-    private String stringify(Object x) {
-        if(x == null){
-            return "nil";
-        } else if (x instanceof Double){
-            Double num = (Double) x;
-            if(num == Math.floor(num)){
-                return num.intValue() + "";
-            } else {
-                return num.toString();
-            }
-        } else {
-            return x.toString();
-        }
-    }
-
-    public Void execute(Stmt statement) {return statement.accept(this);}
+    public Object execute(Stmt statement) {return statement.accept(this);}
     public Object evaluate(Expr expression){
         return expression.accept(this);
     }
 
-    /**
-     * False and null are falsey, everything else is truthy
-     * @param val
-     * @return
-     */
-    private boolean isTruthy(Object val){
-        if(val == null) return false;
-        if(val instanceof Boolean && !(Boolean) val) return false;
-        return true;
-    }
-
-    private boolean isEqual(Object left, Object right) {
-        if(left == null){
-            return right == null;
+    private static void checkNumberType(Token operator, Object operand){
+        if(!(operand instanceof Double)){
+            throw new LoxRuntimeException(operator, Ops.notANumber(operand));
         }
-
-        return left.equals(right);
     }
 
-    private void checkNumberType(Token operator, Object operand){
-        if(!(operand instanceof Double)){
-            throw new LoxRuntimeException(operator, "Operand must be a number. Found: " + operand);
+    /**
+     * Top level declarations go into the globals by name, everything else takes the next slot in the current Env
+     */
+    private void define(Token name, Object value){
+        if(env == globals){
+            globals.define(name, value);
+        } else {
+            env.define(value);
         }
     }
 
-    private Object lookUpVariable(Token name, Expr expr){
-        Integer dist = locals.get(expr);
-        if(dist != null){
-            return env.getAt(dist, name.getLexeme());
-//        } else if(isREPL){
-//            return env.get(name);
-        } else {
+    /**
+     * Uses the depth/slot the Resolver wrote onto the node. Anything unresolved (including everything in the REPL)
+     * is looked up in the globals
+     */
+    private Object lookUpVariable(Token name, boolean isGlobal, boolean inCell, int depth, int slot){
+        if(isGlobal){
             return globals.get(name);
+        } else if(inCell){
+            return ((Cell) env.getAt(depth, slot)).value;
+        } else {
+            return env.getAt(depth, slot);
         }
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if(recorder == null && isNumeric(expr)){
+            return number(expr); // Nested arithmetic stays unboxed, only the result gets boxed
+        }
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        if(recorder != null){
+            recorder.operands(expr, left, right);
+        }
+        return binary(expr.operator, left, right);
+    }
 
-        switch(expr.operator.getType()) {
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            case PLUS:
-                if(left instanceof Double && right instanceof Double){
-                    return (double) left + (double) right;
-                } else if(left instanceof String || right instanceof String){
-                    return stringify(left) + stringify(right);
-                } else {
-                    throw new LoxRuntimeException(expr.operator, "Operands must be both numbers or one must be a string. Got: " + left + " and " + right);
-                }
+    /**
+     * Applies a binary operator to operands that have already been evaluated. The semantics are Ops', errors are
+     * reported at the operator
+     */
+    public static Object binary(Token operator, Object left, Object right){
+        int line = operator.getLine();
+        try {
+            switch(operator.getType()) {
+                case BANG_EQUAL: return Ops.notEqual(left, right);
+                case EQUAL_EQUAL: return Ops.equal(left, right);
+                case PLUS: return Ops.add(left, right, line);
+                case MINUS: return Ops.subtract(left, right, line);
+                case SLASH: return Ops.divide(left, right, line);
+                case STAR: return Ops.multiply(left, right, line);
+                case GREATER: return Ops.greater(left, right, line);
+                case GREATER_EQUAL: return Ops.greaterEqual(left, right, line);
+                case LESS: return Ops.less(left, right, line);
+                case LESS_EQUAL: return Ops.lessEqual(left, right, line);
+            }
+        } catch (LoxError e){
+            throw new LoxRuntimeException(operator, e.getMessage());
         }
 
-        // Past this point, all binary operators involve two numbers, so we must check their types here
-        // Throws a LoxRuntimeException if either is not an int
-        checkNumberType(expr.operator, left);
-        checkNumberType(expr.operator, right);
+        throw new LoxRuntimeException(operator, "Found unknown binary operator " + operator);
+    }
 
-        switch(expr.operator.getType()) {
+    /**
+     * True for expressions that always give a number if they don't throw: '-', '*' and '/', and '+' between two of
+     * those or number literals
+     */
+    private static boolean isNumeric(Expr expr){
+        if(expr instanceof Expr.Binary){
+            Expr.Binary binary = (Expr.Binary) expr;
+            if(binary.numeric == 0){
+                binary.numeric = alwaysNumber(binary) ? (byte) 1 : (byte) -1;
+            }
+            return binary.numeric == 1;
+        }
+        if(expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping) expr).expression);
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    private static boolean alwaysNumber(Expr.Binary binary){
+        switch(binary.operator.getType()){
+            case MINUS: case STAR: case SLASH:
+                return true;
+            case PLUS:
+                return isNumeric(binary.left) && isNumeric(binary.right);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Evaluates an expression isNumeric accepted without boxing the numbers in between. Operands that aren't numeric
+     * themselves are evaluated as usual, and checked once both sides have run like binary does
+     */
+    private double number(Expr expr){
+        if(expr instanceof Expr.Grouping) return number(((Expr.Grouping) expr).expression);
+        if(expr instanceof Expr.Literal) return (double) ((Expr.Literal) expr).value;
+        Expr.Binary binary = (Expr.Binary) expr;
+        Token operator = binary.operator;
+        double left = 0;
+        double right = 0;
+        Object boxedLeft = UNBOXED;
+        Object boxedRight = UNBOXED;
+        if(isNumeric(binary.left)){
+            left = number(binary.left);
+        } else {
+            boxedLeft = evaluate(binary.left);
+        }
+        if(isNumeric(binary.right)){
+            right = number(binary.right);
+        } else {
+            boxedRight = evaluate(binary.right);
+        }
+        if(boxedLeft != UNBOXED){
+            checkNumberType(operator, boxedLeft);
+            left = (double) boxedLeft;
+        }
+        if(boxedRight != UNBOXED){
+            checkNumberType(operator, boxedRight);
+            right = (double) boxedRight;
+        }
+        switch(operator.getType()){
+            case PLUS:
+                return left + right;
             case MINUS:
-                return (double) left - (double) right;
-            case SLASH:
-                if((double) right == 0){
-                    throw new LoxRuntimeException(expr.operator, "Division by zero");
-                }
-                return (double) left / (double) right;
+                return left - right;
             case STAR:
-                return (double) left * (double) right;
-            case GREATER:
-                return (double) left > (double) right;
-            case GREATER_EQUAL:
-                return (double) left >= (double) right;
-            case LESS:
-                return (double) left < (double) right;
-            case LESS_EQUAL:
-                return (double) left <= (double) right;
+                return left * right;
+            default:
+                return divide(operator, left, right);
         }
+    }
 
-        throw new LoxRuntimeException(expr.operator, "Found unknown binary operator " + expr.operator);
+    /**
+     * Division is the one arithmetic operator that can fail on two numbers
+     */
+    public static double divide(Token operator, double left, double right){
+        if(right == 0){
+            throw new LoxRuntimeException(operator, Ops.DIVISION_BY_ZERO);
+        }
+        return left / right;
     }
 
 
@@ -182,14 +255,19 @@ public class InterpreterVisitor implements Expr.Visitor<Object>, Stmt.Visitor<Vo
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right); // Evaluate the value inside the unary
+        return unary(expr.operator, evaluate(expr.right));
+    }
 
-        // Apply the unary
-        switch(expr.operator.getType()){
+    /**
+     * Applies a unary operator to an operand that has already been evaluated
+     */
+    public static Object unary(Token operator, Object right){
+        switch(operator.getType()){
             case MINUS:
-                return -1 * (double) right;
+                checkNumberType(operator, right);
+                return -(double) right;
             case BANG:
-                return !isTruthy(right);
+                return Ops.not(right);
         }
 
         return null; // If we get here we somehow parsed something that definitely should not be a unary, into a unary
@@ -197,19 +275,23 @@ public class InterpreterVisitor implements Expr.Visitor<Object>, Stmt.Visitor<Vo
 
     @Override
     public Object visitVarExpr(Expr.Var expr) {
-        return lookUpVariable(expr.name, expr);
+        if(expr.upvalue >= 0){
+            return env.upvalues[expr.upvalue].value;
+        }
+        return lookUpVariable(expr.name, expr.isGlobal, expr.inCell, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object val = evaluate(expr.value);
-        Integer dist = locals.get(expr);
-        if(dist != null){
-            env.updateAt(dist, expr.name, val);
-//        } else if(isREPL) {
-//            env.update(expr.name, val);
-        } else {
+        if(expr.upvalue >= 0){
+            env.upvalues[expr.upvalue].value = val;
+        } else if(expr.isGlobal){
             globals.update(expr.name, val);
+        } else if(expr.inCell){
+            ((Cell) env.getAt(expr.depth, expr.slot)).value = val;
+        } else {
+            env.updateAt(expr.depth, expr.slot, val);
         }
         return val;
     }
@@ -218,118 +300,259 @@ public class InterpreterVisitor implements Expr.Visitor<Object>, Stmt.Visitor<Vo
     public Object visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
         Object left = evaluate(expr.left);
         if(expr.operator.getType() == TokenType.OR){
-            if(isTruthy(left)){
+            if(Ops.isTruthy(left)){
                 return true;
             } else {
-                return isTruthy(evaluate(expr.right));
+                return Ops.isTruthy(evaluate(expr.right));
             }
         } else {
-            if(!isTruthy(left)){
+            if(!Ops.isTruthy(left)){
                 return false;
             } else {
-                return isTruthy(evaluate(expr.right));
+                return Ops.isTruthy(evaluate(expr.right));
             }
         }
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.calle);
-        List<Object> arguments = expr.args.stream().map(this::evaluate).collect(Collectors.toList());
+        if(expr.calle instanceof Expr.Get){
+            return invokeMethod(expr, (Expr.Get) expr.calle, false);
+        }
+        return call(evaluate(expr.calle), expr.args, expr.paren, false);
+    }
+
+    /**
+     * Functions and classes called with the right number of arguments get them evaluated straight into the new frame.
+     * Everything else (natives, and calls that are about to fail) goes through callGeneric
+     */
+    private Object call(Object callee, List<Expr> args, Token paren, boolean tail){
+        if(callee instanceof LoxFunction){
+            LoxFunction fun = (LoxFunction) callee;
+            if(fun.getArity() == args.size()){
+                if(tail){
+                    return tailCall(fun, fun.receiver, args);
+                }
+                return fun.run(this, evaluateInto(fun.newFrame(), args));
+            }
+        } else if(callee instanceof LoxClass){
+            LoxClass klass = (LoxClass) callee;
+            if(klass.getArity() == args.size()){
+                LoxInstance instance = new LoxInstance(klass);
+                LoxFunction initializer = klass.getInitializer();
+                if(initializer != null){
+                    initializer.run(this, evaluateInto(initializer.newFrame(instance), args));
+                }
+                return instance;
+            }
+        }
+        return callGeneric(callee, args, paren);
+    }
+
+    /**
+     * Evaluates the arguments onto the argument stack and hands back the TailCall for LoxFunction.run to make. Nested
+     * calls while evaluating always finish before we get here, so the stack is back to where it started plus our args
+     */
+    private Object tailCall(LoxFunction function, LoxInstance receiver, List<Expr> args){
+        for(Expr arg: args){
+            pushArgument(evaluate(arg));
+        }
+        return pendingTailCall(function, receiver, args.size());
+    }
+
+    /**
+     * Same, for compiled code which has the arguments already
+     */
+    Object tailCall(LoxFunction function, LoxInstance receiver, Object[] args){
+        for(Object arg: args){
+            pushArgument(arg);
+        }
+        return pendingTailCall(function, receiver, args.length);
+    }
+
+    private void pushArgument(Object value){
+        if(argumentCount == arguments.length){
+            arguments = Arrays.copyOf(arguments, argumentCount * 2);
+        }
+        arguments[argumentCount++] = value;
+    }
+
+    private Object pendingTailCall(LoxFunction function, LoxInstance receiver, int argc){
+        tailCall.function = function;
+        tailCall.receiver = receiver;
+        tailCall.argc = argc;
+        return tailCall;
+    }
+
+    /**
+     * Defines the arguments of the pending tail call into the frame, in order
+     */
+    void popArguments(Env frame, int argc){
+        int start = argumentCount - argc;
+        for(int i = start; i < argumentCount; i++){
+            frame.define(arguments[i]);
+            arguments[i] = null;
+        }
+        argumentCount = start;
+    }
+
+    private Env evaluateInto(Env frame, List<Expr> args){
+        for(Expr arg: args){
+            frame.define(evaluate(arg));
+        }
+        return frame;
+    }
+
+    /**
+     * Arguments are all evaluated before the callee gets checked, same as the fast path. Up to 4 of them are passed
+     * through the fixed arity entry points so natives don't need a list either
+     */
+    private Object callGeneric(Object callee, List<Expr> args, Token paren){
+        int argc = args.size();
+        if(argc > 4){
+            List<Object> arguments = new ArrayList<>(argc);
+            for(Expr arg: args){
+                arguments.add(evaluate(arg));
+            }
+            return checkCallable(callee, arguments, paren).call(this, arguments);
+        }
+        Object a = argc > 0 ? evaluate(args.get(0)) : null;
+        Object b = argc > 1 ? evaluate(args.get(1)) : null;
+        Object c = argc > 2 ? evaluate(args.get(2)) : null;
+        Object d = argc > 3 ? evaluate(args.get(3)) : null;
+        LoxCallable fun = checkCallable(callee, Arrays.asList(a, b, c, d).subList(0, argc), paren);
+        switch(argc){
+            case 0: return fun.call0(this);
+            case 1: return fun.call1(this, a);
+            case 2: return fun.call2(this, a, b);
+            case 3: return fun.call3(this, a, b, c);
+            default: return fun.call4(this, a, b, c, d);
+        }
+    }
+
+    /**
+     * The check every call makes before it's made, for the engines that call LoxCallables
+     */
+    public static LoxCallable checkCallable(Object callee, List<Object> arguments, Token paren){
         if(!(callee instanceof LoxCallable))
-            throw new LoxRuntimeException(expr.paren, "Object {" + callee + "} is not callable. Only functions and classes are callable");
+            throw new LoxRuntimeException(paren, Ops.notCallable(callee));
         LoxCallable fun = (LoxCallable) callee;
         if(arguments.size() != fun.getArity())
-            throw new LoxRuntimeException(expr.paren, "Expected " + fun.getArity() + " arguments, got " + arguments.size() + ": " + arguments + " instead");
-        return fun.call(this, arguments);
+            throw new LoxRuntimeException(paren, Ops.wrongArity(fun.getArity(), arguments));
+        return fun;
+    }
+
+    /**
+     * obj.method(args) without creating a bound method: the receiver is handed straight to the call. Falls back to a
+     * normal call if the property turns out to be a field
+     */
+    private Object invokeMethod(Expr.Call expr, Expr.Get get, boolean tail){
+        Object target = evaluate(get.target);
+        if(!(target instanceof LoxInstance)){
+            throw new LoxRuntimeException(get.name, Instance.notAnInstance("access", target));
+        }
+        LoxInstance instance = (LoxInstance) target;
+        LoxFunction method = get.cache.getMethod(instance, get.name);
+        if(method == null){
+            return call(instance.get(get.name), expr.args, expr.paren, tail);
+        }
+        if(method.getArity() != expr.args.size()){
+            return callGeneric(method, expr.args, expr.paren); // Only there to evaluate the arguments and report the error
+        }
+        if(tail){
+            return tailCall(method, instance, expr.args);
+        }
+        return method.run(this, evaluateInto(method.newFrame(instance), expr.args));
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object target = evaluate(expr.target);
         if(!(target instanceof LoxInstance)){
-            throw new LoxRuntimeException(expr.name, "Cannot access property on non-instance object: '" + target +"'.");
+            throw new LoxRuntimeException(expr.name, Instance.notAnInstance("access", target));
         }
-        return ((LoxInstance) target).get(expr.name);
+        return expr.cache.get((LoxInstance) target, expr.name);
     }
 
     @Override
     public Object visitSetExpr(Expr.Set expr) {
         Object target = evaluate(expr.target);
         if(!(target instanceof LoxInstance)){
-            throw new LoxRuntimeException(expr.name, "Cannot set property on non-instance object: '" + target +"'.");
+            throw new LoxRuntimeException(expr.name, Instance.notAnInstance("set", target));
         }
         Object value = evaluate(expr.val);
-        ((LoxInstance) target).set(expr.name, value);
+        expr.cache.set((LoxInstance) target, expr.name, value);
         return null;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        if(expr.upvalue >= 0){
+            return env.upvalues[expr.upvalue].value;
+        }
+        return lookUpVariable(expr.keyword, expr.isGlobal, expr.inCell, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int dist = locals.get(expr);
-        LoxClass superclass = (LoxClass) env.getAt(dist, "super");
-        LoxInstance instance = (LoxInstance) env.getAt(dist - 1, "this"); // ?????????? what the FUCK
+        // 'super' always belongs to the scope around the methods, so it's always captured
+        LoxClass superclass = (LoxClass) env.upvalues[expr.upvalue].value;
+        LoxInstance instance = (LoxInstance) evaluate(expr.receiver);
 
-        if(!superclass.containsMethod(expr.method.getLexeme())){
-            throw new LoxRuntimeException(expr.method, "Undefined property '" + expr.method.getLexeme() + "'.");
-        } else {
-            LoxFunction method = superclass.getMethod(expr.method.getLexeme());
-            return method.bind(instance);
+        LoxFunction method = superclass.getMethod(expr.method.getSymbol());
+        if(method == null){
+            throw new LoxRuntimeException(expr.method, ClassLayout.undefinedProperty(expr.method.getLexeme()));
         }
+        return method.bind(instance);
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object toPrint = evaluate(stmt.expression);
-        System.out.println(stringify(toPrint));
-        return null;
+        System.out.println(Ops.stringify(toPrint));
+        return NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        if(stmt.init != null){
-            env.define(stmt.name, evaluate(stmt.init));
-        } else {
-            env.define(stmt.name, null);
-        }
-
-        return null;
+    public Object visitVarStmt(Stmt.Var stmt) {
+        Object value = stmt.init != null ? evaluate(stmt.init) : null;
+        define(stmt.name, stmt.isCaptured ? Cell.of(value) : value);
+        return NORMAL;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if(stmt.superclass != null){
             superclass = evaluate(stmt.superclass);
             if(!(superclass instanceof LoxClass)){
-                throw new LoxRuntimeException(stmt.superclass.name, "Cannot inherit from a non-class object: '" + superclass + "'.");
+                throw new LoxRuntimeException(stmt.superclass.name, ClassLayout.notAClass(superclass));
             }
         }
 
-        env.define(stmt.name, null);
+        // Methods that use the class capture its cell, so that has to exist first
+        Cell cell = stmt.isCaptured ? new Cell() : null;
+        if(cell != null){
+            define(stmt.name, cell);
+        }
 
         Env enclosing = null;
         if(stmt.superclass != null){
             enclosing = env;
-            env = new Env(env); // Create a new env so the method closures will all have the superclass defined
-            env.define("super", superclass);
+            env = new Env(env, 1); // Create a new env so the method closures will all have the superclass defined
+            env.define(Cell.of(superclass)); // Only ever used by the methods
         }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        SymbolMap<LoxFunction> methods = new SymbolMap<>();
         for(Stmt.Fun method: stmt.methods){
-            LoxFunction fun = new LoxFunction(method, env, method.name.getLexeme().equals("init"));
-            methods.put(method.name.getLexeme(), fun);
+            LoxFunction fun = new LoxFunction(method, env.capture(method.captures), ClassLayout.isInitializer(method.name.getLexeme()));
+            methods.put(method.name.getSymbol(), fun);
         }
 
         LoxClass klass = new LoxClass(stmt.name.getLexeme(), (LoxClass) superclass, methods);
@@ -340,45 +563,113 @@ public class InterpreterVisitor implements Expr.Visitor<Object>, Stmt.Visitor<Vo
             env = enclosing;
         }
 
-        env.define(stmt.name, klass);
-        return null;
+        if(cell != null){
+            cell.value = klass;
+        } else {
+            define(stmt.name, klass);
+        }
+        return NORMAL;
     }
 
     @Override
-    public Void visitFunStmt(Stmt.Fun stmt) {
-        LoxFunction fun = new LoxFunction(stmt, this.env, false); // Uses the env (all defined names) that are present when the function is defined
-        env.define(stmt.name, fun); // Add to the env
-        return null;
+    public Object visitFunStmt(Stmt.Fun stmt) {
+        // A function that calls itself captures its own cell
+        Cell cell = stmt.isCaptured ? new Cell() : null;
+        if(cell != null){
+            define(stmt.name, cell);
+        }
+        LoxFunction fun = new LoxFunction(stmt, env.capture(stmt.captures), false);
+        if(cell != null){
+            cell.value = fun;
+        } else {
+            define(stmt.name, fun);
+        }
+        return NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Env(this.env));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.sharesEnv){
+            try {
+                for(Stmt statement: stmt.statements){
+                    Object completion = execute(statement);
+                    if(completion != NORMAL){
+                        return completion;
+                    }
+                }
+                return NORMAL;
+            } finally {
+                env.truncate(stmt.firstSlot);
+            }
+        }
+        return executeBlock(stmt.statements, new Env(this.env, stmt.slotCount));
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         Object cond = evaluate(stmt.condition);
-        if(isTruthy(cond)){
-            execute(stmt.thenCase);
+        if(recorder != null){
+            recorder.branch(stmt, Ops.isTruthy(cond));
+        }
+        if(Ops.isTruthy(cond)){
+            return execute(stmt.thenCase);
         } else if (stmt.elseCase != null){
-            execute(stmt.elseCase);
+            return execute(stmt.elseCase);
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while(isTruthy(evaluate(stmt.cond))){
-            execute(stmt.body);
+    public Object visitWhileStmt(Stmt.While stmt) {
+        if(stmt.tier.getCode() != null){
+            return stmt.tier.getCode().execute(this, env);
         }
-        return null;
+        while(true){
+            if(stmt.tier.getTrace() != null){
+                return stmt.tier.getTrace().run(this); // The rest of the loop runs along the trace
+            }
+            if(!Ops.isTruthy(evaluate(stmt.cond))){
+                return NORMAL;
+            }
+            Object completion = stmt.tier.shouldTrace() && recorder == null ? recordIteration(stmt) : execute(stmt.body);
+            if(completion != NORMAL){
+                return completion;
+            }
+            if(stmt.tier.backEdge(stmt, this)){
+                return stmt.tier.getCode().execute(this, env); // The rest of the loop runs in the compiled code
+            }
+        }
+    }
+
+    /**
+     * Runs one iteration of the loop body, keeping track of the path it takes so the loop can be traced
+     */
+    private Object recordIteration(Stmt.While stmt){
+        TraceRecorder recording = new TraceRecorder();
+        recorder = recording;
+        Object completion;
+        try {
+            completion = execute(stmt.body);
+        } finally {
+            recorder = null;
+        }
+        if(completion == NORMAL){
+            stmt.tier.traced(Trace.build(stmt, recording));
+        } else {
+            stmt.tier.traceAbandoned();
+        }
+        return completion;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object returnValue = stmt.value == null ? null: evaluate(stmt.value);
-        throw new FunctionReturn(returnValue);
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.isTailCall){
+            Expr.Call call = (Expr.Call) stmt.value;
+            if(call.calle instanceof Expr.Get){
+                return invokeMethod(call, (Expr.Get) call.calle, true);
+            }
+            return call(evaluate(call.calle), call.args, call.paren, true);
+        }
+        return stmt.value == null ? null: evaluate(stmt.value);
     }
 }
@@ -1,8 +1,38 @@
 package lox.execution;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * The List version of call is the general protocol. The fixed arity versions are for call sites that know how many
+ * arguments they have and don't want to build a list for them. By default they adapt to the List version, callables
+ * that care about the cost override them
+ *
+ * Strings built with + can arrive as a lox.runtime.Rope. Natives that look at a string argument should go through
+ * Rope.flatten first
+ */
 public interface LoxCallable {
     Object call(InterpreterVisitor interpreter, List<Object> args);
     int getArity();
+
+    default Object call0(InterpreterVisitor interpreter){
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(InterpreterVisitor interpreter, Object a){
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(InterpreterVisitor interpreter, Object a, Object b){
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(InterpreterVisitor interpreter, Object a, Object b, Object c){
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
+    default Object call4(InterpreterVisitor interpreter, Object a, Object b, Object c, Object d){
+        return call(interpreter, Arrays.asList(a, b, c, d));
+    }
 }
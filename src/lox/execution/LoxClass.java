@@ -1,67 +1,68 @@
 package lox.execution;
 
+import lox.runtime.ClassLayout;
+import lox.runtime.SymbolMap;
+
 import java.util.List;
-import java.util.Map;
 
 /**
  * Call to generate a new instance of this class
  */
 public class LoxClass implements LoxCallable{
-    private final String name;
-    private final Map<String, LoxFunction> methods;
-    private final LoxClass superclass;
+    private final ClassLayout<LoxFunction> layout;
+    private final LoxFunction initializer; // null if the class has no init
 
-    public LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods){
-        this.superclass = superclass;
-        this.name = name;
-        this.methods = methods;
+    /**
+     * Built once the class statement runs, see ClassLayout for how the method table is put together
+     */
+    public LoxClass(String name, LoxClass superclass, SymbolMap<LoxFunction> methods){
+        this.layout = new ClassLayout<>(name, superclass == null ? null : superclass.layout, methods);
+        this.initializer = layout.getInitializer();
     }
 
     @Override
     public Object call(InterpreterVisitor interpreter, List<Object> args) {
         LoxInstance instance = new LoxInstance(this);
         // Run constructor (init())
-        if(containsMethod("init")){
-            LoxFunction initializer = getMethod("init");
-            initializer.bind(instance).call(interpreter, args); // Bind to be able to update the instance object
+        if(initializer != null){
+            initializer.callMethod(instance, interpreter, args); // Called on the instance so it can update it
             // The return value is the LoxInstance so we just discard it
         }
         return instance;
     }
 
+    public LoxFunction getInitializer(){
+        return initializer;
+    }
+
     @Override
     public int getArity() {
-        if(containsMethod("init")){
-            return getMethod("init").getArity();
-        } else {
-            return 0;
-        }
+        return initializer == null ? 0 : initializer.getArity();
     }
 
-    public boolean containsMethod(String name){
-        if(superclass != null){
-            return methods.containsKey(name) || superclass.containsMethod(name);
-        } else {
-            return methods.containsKey(name);
-        }
+    public boolean containsMethod(int symbol){
+        return layout.containsMethod(symbol);
     }
 
-    public LoxFunction getMethod(String name){
-        if(!methods.containsKey(name) && superclass != null){ // Check first to see if the method is overridden
-            return superclass.getMethod(name);
-        } else {
-            return methods.get(name); // could we have just binded super to this.superclass right here and be done with it?
-        }
+    /**
+     * @return the method, or null if neither this class nor any superclass has it
+     */
+    public LoxFunction getMethod(int symbol){
+        return layout.getMethod(symbol);
     }
 
     public String getName(){
-        return name;
+        return layout.getName();
+    }
+
+    ClassLayout<LoxFunction> getLayout(){
+        return layout;
     }
 
     @Override
     public String toString() {
         return "LoxClass{" +
-                "name='" + name + '\'' +
+                "name='" + layout.getName() + '\'' +
                 '}';
     }
 }
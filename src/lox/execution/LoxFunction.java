@@ -1,44 +1,142 @@
 package lox.execution;
 
 import lox.parser.Stmt;
+import lox.runtime.Cell;
 
 import java.util.List;
 
 public class LoxFunction implements LoxCallable{
 
-    private final Stmt.Fun declaration;
-    private final Env closure;
-    private final boolean isInitializer;
+    protected final Stmt.Fun declaration;
+    protected final Cell[] upvalues; // What it captured, see Stmt.Fun.captures
+    protected final boolean isInitializer;
+    protected final LoxInstance receiver; // Set for bound methods, null for functions and methods still in their class
 
-    public LoxFunction(Stmt.Fun fun, Env closure, boolean isInitializer){
+    public LoxFunction(Stmt.Fun fun, Cell[] upvalues, boolean isInitializer){
+        this(fun, upvalues, isInitializer, null);
+    }
+
+    protected LoxFunction(Stmt.Fun fun, Cell[] upvalues, boolean isInitializer, LoxInstance receiver){
         this.declaration = fun;
-        this.closure = closure;
+        this.upvalues = upvalues;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
     public Object call(InterpreterVisitor interpreter, List<Object> args) {
-        Env functionEnv = new Env(closure); // Create a new env to define the parameter names to the argument values, parent is the env present during function def
+        return callMethod(receiver, interpreter, args);
+    }
+
+    /**
+     * Calls the function with 'this' set to the receiver, which is how obj.method() gets called without binding first
+     */
+    public Object callMethod(LoxInstance receiver, InterpreterVisitor interpreter, List<Object> args) {
+        Env frame = newFrame(receiver);
         for(int i=0; i<declaration.params.size(); i++){
-            functionEnv.define(declaration.params.get(i), args.get(i));
+            frame.define(args.get(i)); // Parameters take the next slots, in order
         }
+        return run(interpreter, frame);
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, functionEnv); // Discard the env from the callee and to go the new env (which only has the parameters + globals)
-            if(isInitializer){
-                return closure.getAt(0, "this");
-            } else {
-                return null;
+    @Override
+    public Object call0(InterpreterVisitor interpreter) {
+        return run(interpreter, newFrame());
+    }
+
+    @Override
+    public Object call1(InterpreterVisitor interpreter, Object a) {
+        Env frame = newFrame();
+        frame.define(a);
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(InterpreterVisitor interpreter, Object a, Object b) {
+        Env frame = newFrame();
+        frame.define(a);
+        frame.define(b);
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(InterpreterVisitor interpreter, Object a, Object b, Object c) {
+        Env frame = newFrame();
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call4(InterpreterVisitor interpreter, Object a, Object b, Object c, Object d) {
+        Env frame = newFrame();
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        frame.define(d);
+        return run(interpreter, frame);
+    }
+
+    public Env newFrame() {
+        return newFrame(receiver);
+    }
+
+    /**
+     * Creates the env for a call, with 'this' already in slot 0 for methods. Call sites define the arguments straight
+     * into it, in order, and then hand it to run
+     */
+    public Env newFrame(LoxInstance receiver) {
+        Env frame = Env.frame(upvalues, declaration.slotCount);
+        if(declaration.isMethod){
+            frame.define(receiver);
+        }
+        return frame;
+    }
+
+    /**
+     * Tail calls come back from the body as a TailCall and get made here in a loop, so a chain of them runs in constant
+     * Java stack. A function tail calling itself reuses its frame, closures only ever hold on to the cells in it
+     */
+    public Object run(InterpreterVisitor interpreter, Env frame) {
+        LoxFunction function = this;
+        while(true){
+            if(function.declaration.capturedSlots != null){
+                frame.box(function.declaration.capturedSlots);
             }
-        } catch (FunctionReturn ret) {
-            if(isInitializer) { // The resolver handles making sure the user doesn't try to return a value from the init
-                return closure.getAt(0, "this");
+            CompiledCode compiled = function.declaration.tier.invoked(function.declaration, interpreter, frame);
+            Object completion = compiled != null
+                    ? compiled.execute(interpreter, frame)
+                    : interpreter.executeBlock(function.declaration.body, frame); // Discard the env from the callee and to go the new env (which only has the parameters + globals)
+            if(completion instanceof TailCall){
+                TailCall call = (TailCall) completion;
+                LoxFunction next = call.function;
+                if(next.declaration == function.declaration && next.upvalues == function.upvalues){
+                    frame.reset();
+                    if(next.declaration.isMethod){
+                        frame.define(call.receiver);
+                    }
+                } else {
+                    frame = next.newFrame(call.receiver);
+                }
+                interpreter.popArguments(frame, call.argc);
+                function = next;
+            } else if(function.isInitializer){ // The resolver handles making sure the user doesn't try to return a value from the init
+                return receiverOf(frame);
+            } else if(completion == InterpreterVisitor.NORMAL){
+                return null;
             } else {
-                return ret.returnValue;
+                return completion;
             }
         }
     }
 
+    // Slot 0 holds the receiver, in a Cell if a closure captured 'this'
+    protected static Object receiverOf(Env frame){
+        Object receiver = frame.get(0);
+        return receiver instanceof Cell ? ((Cell) receiver).value : receiver;
+    }
+
     @Override
     public int getArity() {
         return declaration.params.size();
@@ -51,9 +149,11 @@ public class LoxFunction implements LoxCallable{
                 '}';
     }
 
+    /**
+     * Only needed when a method is used as a value, eg 'var f = obj.method;'. Calls made directly on an object go
+     * through callMethod instead
+     */
     public LoxFunction bind(LoxInstance instance) {
-        Env bindedEnv = new Env(closure);
-        bindedEnv.define("this", instance);
-        return new LoxFunction(declaration, bindedEnv, isInitializer);
+        return new LoxFunction(declaration, upvalues, isInitializer, instance);
     }
 }
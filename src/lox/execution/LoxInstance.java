@@ -2,35 +2,36 @@ package lox.execution;
 
 import lox.exception.LoxRuntimeException;
 import lox.parser.Token;
+import lox.runtime.Instance;
 
-import java.util.HashMap;
-import java.util.Map;
+/**
+ * An instance of a LoxClass. The fields are kept by Instance, this adds looking up methods and binding them
+ */
+public class LoxInstance extends Instance {
+    private final LoxClass klass;
 
-public class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
     public LoxInstance(LoxClass klass){
+        super(klass.getLayout());
         this.klass = klass;
     }
 
     public Object get(Token name){
-        if (fields.containsKey(name.getLexeme())){
-            return fields.get(name.getLexeme());
-        } else if(klass.containsMethod(name.getLexeme())){
-            return klass.getMethod(name.getLexeme()).bind(this);  // Return a new LoxFunction object with 'this' binded
+        int slot = slotOf(name.getSymbol());
+        if (slot != -1){
+            return getField(slot);
         }
-        throw new LoxRuntimeException(name, "Instance does not contain property '" + name.getLexeme() + "'");
+        LoxFunction method = klass.getMethod(name.getSymbol());
+        if(method != null){
+            return method.bind(this);  // Return a new LoxFunction object with 'this' binded
+        }
+        throw new LoxRuntimeException(name, missingProperty(name.getLexeme()));
     }
 
     public void set(Token name, Object value){
-        fields.put(name.getLexeme(), value);
+        set(name.getSymbol(), value);
     }
 
-    @Override
-    public String toString() {
-        return "LoxInstance{" +
-                "instanceof='" + klass.getName() + "', " +
-                "fields=" + fields.entrySet() +
-                '}';
+    public LoxClass getKlass(){
+        return klass;
     }
 }
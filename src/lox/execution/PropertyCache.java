@@ -0,0 +1,113 @@
+package lox.execution;
+
+import lox.parser.Token;
+import lox.runtime.Shape;
+
+/**
+ * Inline cache for a single property get or set site, keyed on the receiver's Shape. Every class has its own root
+ * shape, so a shape also pins down the class and with it which method a name resolves to
+ *
+ * Starts empty, remembers up to MAX_ENTRIES shapes it has seen and after that gives up and goes megamorphic, where every
+ * access takes the normal LoxInstance path
+ */
+public final class PropertyCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    private final int[] slots = new int[MAX_ENTRIES]; // -1 if the name is a method
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES]; // Get only
+    private final Shape[] nextShapes = new Shape[MAX_ENTRIES]; // Set only, shape after the write
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    public Object get(LoxInstance instance, Token name){
+        Shape shape = instance.getShape();
+        for(int i = 0; i < size; i++){
+            if(shapes[i] == shape){
+                CacheStats.hits++;
+                return slots[i] == -1 ? methods[i].bind(instance) : instance.getField(slots[i]);
+            }
+        }
+        if(megamorphic){
+            CacheStats.megamorphicLookups++;
+            return instance.get(name);
+        }
+        CacheStats.misses++;
+        Object value = instance.get(name); // Throws if the property doesn't exist, so we only cache real hits
+        int entry = addEntry(shape);
+        if(entry != -1){
+            slots[entry] = shape.slotOf(name.getSymbol());
+            if(slots[entry] == -1){
+                methods[entry] = instance.getKlass().getMethod(name.getSymbol());
+            }
+        }
+        return value;
+    }
+
+    /**
+     * For call sites like obj.name(), which can call the method on the instance without binding it first
+     *
+     * @return the method the name resolves to, or null if it's a field (or doesn't exist), in which case the caller
+     * should fall back to get
+     */
+    public LoxFunction getMethod(LoxInstance instance, Token name){
+        Shape shape = instance.getShape();
+        for(int i = 0; i < size; i++){
+            if(shapes[i] == shape){
+                CacheStats.hits++;
+                return slots[i] == -1 ? methods[i] : null;
+            }
+        }
+        int slot = shape.slotOf(name.getSymbol());
+        LoxFunction method = slot == -1 ? instance.getKlass().getMethod(name.getSymbol()) : null;
+        if(megamorphic){
+            CacheStats.megamorphicLookups++;
+            return method;
+        }
+        CacheStats.misses++;
+        if(slot != -1 || method != null){
+            int entry = addEntry(shape);
+            if(entry != -1){
+                slots[entry] = slot;
+                methods[entry] = method;
+            }
+        }
+        return method;
+    }
+
+    public void set(LoxInstance instance, Token name, Object value){
+        Shape shape = instance.getShape();
+        for(int i = 0; i < size; i++){
+            if(shapes[i] == shape){
+                CacheStats.hits++;
+                instance.setField(nextShapes[i], slots[i], value);
+                return;
+            }
+        }
+        if(megamorphic){
+            CacheStats.megamorphicLookups++;
+            instance.set(name, value);
+            return;
+        }
+        CacheStats.misses++;
+        instance.set(name, value);
+        int entry = addEntry(shape);
+        if(entry != -1){
+            nextShapes[entry] = instance.getShape();
+            slots[entry] = nextShapes[entry].slotOf(name.getSymbol());
+        }
+    }
+
+    /**
+     * @return the index of the new entry, or -1 if the cache is full and just went megamorphic
+     */
+    private int addEntry(Shape shape){
+        if(size == MAX_ENTRIES){
+            megamorphic = true;
+            CacheStats.megamorphicSites++;
+            return -1;
+        }
+        shapes[size] = shape;
+        return size++;
+    }
+}
@@ -0,0 +1,14 @@
+package lox.execution;
+
+/**
+ * Completion of a 'return f(args);' statement. Instead of calling f, the return hands this back to LoxFunction.run,
+ * which makes the call in its own loop so the Java stack doesn't grow
+ *
+ * There is only one per interpreter, it gets consumed by the run loop before anything else can execute. The arguments
+ * are waiting on the interpreter's argument stack
+ */
+final class TailCall {
+    LoxFunction function;
+    LoxInstance receiver; // For methods, null otherwise
+    int argc;
+}
@@ -0,0 +1,154 @@
+package lox.execution;
+
+import lox.compiler.MethodTooLargeException;
+import lox.compiler.TierCompiler;
+import lox.parser.Stmt;
+import lox.parser.Token;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Invocation (for a function) or back-edge (for a while loop) count of a declaration, and its compiled code once the
+ * count reaches the threshold. Lives on the Stmt so every closure of a function shares it
+ *
+ * Compiled code is loaded as a hidden class, which gets unloaded along with the code object if it's ever dropped
+ */
+public final class Tier {
+    public static final int DEFAULT_CALL_THRESHOLD = 1000;
+    public static final int DEFAULT_LOOP_THRESHOLD = 10000;
+    public static final int DEFAULT_TRACE_THRESHOLD = 100; // Iterations before a loop gets traced, long before it's compiled
+
+    private static int callThreshold = DEFAULT_CALL_THRESHOLD;
+    private static int loopThreshold = DEFAULT_LOOP_THRESHOLD;
+    private static int traceThreshold = DEFAULT_TRACE_THRESHOLD;
+    private static boolean log = false;
+
+    private int count = 0;
+    private CompiledCode code;
+    private boolean failed = false; // Don't keep trying to compile something we can't
+    private Trace trace;
+    private boolean traceAbandoned = false;
+
+    /**
+     * A threshold of 0 turns that kind of compilation (or tracing) off
+     */
+    public static void configure(int calls, int loops, int traces, boolean logTierUps){
+        callThreshold = calls;
+        loopThreshold = loops;
+        traceThreshold = traces;
+        log = logTierUps;
+    }
+
+    /**
+     * Counts a call to the function
+     * @return the code to run instead of interpreting the body, or null to interpret it
+     */
+    CompiledCode invoked(Stmt.Fun function, InterpreterVisitor interpreter, Env frame){
+        if(code != null || failed || callThreshold <= 0 || ++count < callThreshold){
+            return code;
+        }
+        // The arguments of the call that made it hot are what the compiled code expects to be called with
+        Object[] args = new Object[function.params.size()];
+        for(int i = 0; i < args.length; i++){
+            args[i] = frame.get(i + (function.isMethod ? 1 : 0));
+        }
+        List<Object> constants = new ArrayList<>();
+        install(() -> TierCompiler.compile(function, args, program(interpreter), constants), constants,
+                "fun " + function.name.getLexeme() + " (line " + function.name.getLine() + ") after " + count + " calls");
+        return code;
+    }
+
+    CompiledCode getCode(){
+        return code;
+    }
+
+    /**
+     * Counts an iteration of an interpreted loop
+     * @return true if the loop just got compiled, in which case the rest of it should run in the compiled code
+     */
+    boolean backEdge(Stmt.While loop, InterpreterVisitor interpreter){
+        if(++count < loopThreshold || code != null || failed || loopThreshold <= 0){
+            return false;
+        }
+        List<Object> constants = new ArrayList<>();
+        install(() -> TierCompiler.compile(loop, program(interpreter), constants), constants,
+                "while loop (line " + TierCompiler.lineOf(loop.cond) + ") after " + count + " iterations");
+        return code != null;
+    }
+
+    /**
+     * Loops get traced once they're warm, well before they're hot enough to be compiled
+     */
+    boolean shouldTrace(){
+        return trace == null && !traceAbandoned && traceThreshold > 0 && count >= traceThreshold;
+    }
+
+    Trace getTrace(){
+        return trace;
+    }
+
+    void traced(Trace trace){
+        this.trace = trace;
+        TraceStats.traces.add(trace);
+        if(log) System.err.println("[tier] traced " + trace.describe());
+    }
+
+    /**
+     * The recorded iteration didn't finish normally, so there's no complete path to trace
+     */
+    void traceAbandoned(){
+        traceAbandoned = true;
+        TraceStats.abandoned++;
+    }
+
+    /**
+     * The functions calls can go straight to are found through the globals, as the program is when it gets compiled.
+     * Only plain LoxFunctions are handed out, the compiled code runs them the way LoxFunction.run would
+     */
+    private static TierCompiler.Program program(InterpreterVisitor interpreter){
+        GlobalEnv globals = (GlobalEnv) interpreter.getGlobals();
+        return new TierCompiler.Program() {
+            @Override
+            public Object global(Token name) {
+                return globals.lookup(name);
+            }
+
+            @Override
+            public Stmt.Fun declarationOf(Object value) {
+                return value != null && value.getClass() == LoxFunction.class ? ((LoxFunction) value).declaration : null;
+            }
+        };
+    }
+
+    private interface Compilation {
+        byte[] compile();
+    }
+
+    /**
+     * Code that is too big for the class file format, or that the JVM won't load, is left to the interpreter. The JVM
+     * refusing a class means the compiler made bad code though, so that gets reported even without logging. Anything
+     * else going wrong is a bug too, and propagates
+     */
+    private void install(Compilation compilation, List<Object> constants, String what){
+        try {
+            byte[] bytes = compilation.compile();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            code = (CompiledCode) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Object[].class))
+                    .invoke(constants.toArray());
+            if(log) System.err.println("[tier] compiled " + what);
+        } catch (MethodTooLargeException e){
+            failed = true;
+            if(log) System.err.println("[tier] could not compile " + what + ": " + e);
+        } catch (LinkageError | IllegalAccessException e){
+            failed = true;
+            System.err.println("[tier] could not load compiled " + what + ": " + e);
+        } catch (RuntimeException | Error e){
+            throw e;
+        } catch (Throwable e){
+            throw new IllegalStateException(e); // Only MethodHandle.invoke declares it
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package lox.execution;
+
+import lox.compiler.TierCompiler;
+import lox.parser.Expr;
+import lox.parser.Stmt;
+import lox.parser.Token;
+import lox.parser.TokenType;
+import lox.runtime.Ops;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One iteration of a hot loop as a straight line of ops, following the path the recorded iteration took. Each if
+ * along the way becomes a guard on its condition, and arithmetic that only saw numbers skips the type checks
+ *
+ * When a guard fails the other branch is interpreted as usual (a side exit), and the trace picks up again right after
+ * the if, since that's where both branches end up anyway. Operators that suddenly get something other than numbers
+ * just do what the interpreter would, and count as a side exit too
+ */
+final class Trace {
+    private final Stmt.While loop;
+    private final Value cond;
+    private final Op[] ops;
+    private final List<Guard> guards;
+    private final List<NumberOp> numberOps;
+    private long iterations = 0;
+
+    private Trace(Stmt.While loop, Value cond, List<Op> ops, List<Guard> guards, List<NumberOp> numberOps){
+        this.loop = loop;
+        this.cond = cond;
+        this.ops = ops.toArray(new Op[0]);
+        this.guards = guards;
+        this.numberOps = numberOps;
+    }
+
+    static Trace build(Stmt.While loop, TraceRecorder recorder){
+        Builder builder = new Builder(recorder);
+        Value cond = builder.value(loop.cond);
+        builder.add(loop.body);
+        return new Trace(loop, cond, builder.ops, builder.guards, builder.numberOps);
+    }
+
+    /**
+     * Runs the rest of the loop, in the env the loop runs in. Hands over to compiled code if the loop gets hot enough
+     * for that while we're at it
+     */
+    Object run(InterpreterVisitor interpreter){
+        Env env = interpreter.getEnv();
+        try {
+            while(Ops.isTruthy(cond.evaluate(interpreter))){
+                iterations++;
+                Object completion = iteration(interpreter);
+                if(completion != InterpreterVisitor.NORMAL){
+                    return completion;
+                }
+                if(loop.tier.backEdge(loop, interpreter)){
+                    return loop.tier.getCode().execute(interpreter, env);
+                }
+            }
+            return InterpreterVisitor.NORMAL;
+        } finally {
+            interpreter.setEnv(env); // In case we left from inside a block
+        }
+    }
+
+    private Object iteration(InterpreterVisitor interpreter){
+        for(int pc = 0; pc < ops.length; pc++){
+            Op op = ops[pc];
+            if(op instanceof Guard){
+                Guard guard = (Guard) op;
+                if(Ops.isTruthy(guard.cond.evaluate(interpreter)) == guard.expected){
+                    continue;
+                }
+                guard.exits++;
+                if(guard.offTrace != null){
+                    Object completion = interpreter.execute(guard.offTrace);
+                    if(completion != InterpreterVisitor.NORMAL){
+                        return completion;
+                    }
+                }
+                pc = guard.rejoin - 1;
+            } else {
+                Object completion = op.execute(interpreter);
+                if(completion != InterpreterVisitor.NORMAL){
+                    return completion;
+                }
+            }
+        }
+        return InterpreterVisitor.NORMAL;
+    }
+
+    int getLength(){
+        return ops.length;
+    }
+
+    long getIterations(){
+        return iterations;
+    }
+
+    long getSideExits(){
+        long exits = 0;
+        for(Guard guard: guards){
+            exits += guard.exits;
+        }
+        for(NumberOp op: numberOps){
+            exits += op.exits;
+        }
+        return exits;
+    }
+
+    String describe(){
+        StringBuilder description = new StringBuilder();
+        description.append("loop at line ").append(TierCompiler.lineOf(loop.cond))
+                .append(": ").append(ops.length).append(" ops, ")
+                .append(iterations).append(" iterations, ")
+                .append(getSideExits()).append(" side exits");
+        if(iterations > 0){
+            description.append(String.format(" (%.2f per iteration)", (double) getSideExits() / iterations));
+        }
+        for(Guard guard: guards){
+            if(guard.exits > 0){
+                description.append(", guard at line ").append(guard.line).append(": ").append(guard.exits);
+            }
+        }
+        long typeExits = 0;
+        for(NumberOp op: numberOps){
+            typeExits += op.exits;
+        }
+        if(typeExits > 0){
+            description.append(", non-numbers: ").append(typeExits);
+        }
+        return description.toString();
+    }
+
+    private static class Builder {
+        private final TraceRecorder recorder;
+        private final List<Op> ops = new ArrayList<>();
+        private final List<Guard> guards = new ArrayList<>();
+        private final List<NumberOp> numberOps = new ArrayList<>();
+        private int blockDepth = 0;
+
+        Builder(TraceRecorder recorder){
+            this.recorder = recorder;
+        }
+
+        void add(Stmt stmt){
+            if(stmt instanceof Stmt.Block){
+                Stmt.Block block = (Stmt.Block) stmt;
+                if(!block.sharesEnv){
+                    ops.add(new EnterBlock(block.slotCount));
+                }
+                blockDepth++;
+                for(Stmt statement: block.statements){
+                    add(statement);
+                }
+                blockDepth--;
+                if(!block.sharesEnv){
+                    ops.add(new ExitBlock());
+                } else if(declaresLocals(block)){
+                    ops.add(new Truncate(block.firstSlot));
+                }
+            } else if(stmt instanceof Stmt.If && recorder.branchTaken((Stmt.If) stmt) != null){
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                boolean taken = recorder.branchTaken(ifStmt);
+                Guard guard = new Guard(value(ifStmt.condition), taken, taken ? ifStmt.elseCase : ifStmt.thenCase,
+                        TierCompiler.lineOf(ifStmt.condition));
+                ops.add(guard);
+                guards.add(guard);
+                Stmt branch = taken ? ifStmt.thenCase : ifStmt.elseCase;
+                if(branch != null){
+                    add(branch);
+                }
+                guard.rejoin = ops.size();
+            } else if(stmt instanceof Stmt.Expression){
+                ops.add(new Evaluate(value(((Stmt.Expression) stmt).expression)));
+            } else if(stmt instanceof Stmt.Print){
+                ops.add(new Print(value(((Stmt.Print) stmt).expression)));
+            } else if(stmt instanceof Stmt.Var && blockDepth > 0 && !((Stmt.Var) stmt).isCaptured){
+                Expr init = ((Stmt.Var) stmt).init;
+                ops.add(new Define(init == null ? new Constant(null) : value(init)));
+            } else if(stmt instanceof Stmt.Return && !((Stmt.Return) stmt).isTailCall){
+                Expr value = ((Stmt.Return) stmt).value;
+                ops.add(new Return(value == null ? new Constant(null) : value(value)));
+            } else {
+                ops.add(new Interpret(stmt)); // Declarations, nested loops, tail calls and ifs that didn't run
+            }
+        }
+
+        // Captured variables are left to the interpreter
+        private static boolean isPlain(Expr.Var var){
+            return var.upvalue < 0 && !var.inCell;
+        }
+
+        private static boolean isPlain(Expr.Assign assign){
+            return assign.upvalue < 0 && !assign.inCell;
+        }
+
+        private static boolean declaresLocals(Stmt.Block block){
+            for(Stmt statement: block.statements){
+                if(statement instanceof Stmt.Var){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Value value(Expr expr){
+            if(expr instanceof Expr.Literal){
+                return new Constant(((Expr.Literal) expr).value);
+            } else if(expr instanceof Expr.Grouping){
+                return value(((Expr.Grouping) expr).expression);
+            } else if(expr instanceof Expr.Var && isPlain((Expr.Var) expr)){
+                Expr.Var var = (Expr.Var) expr;
+                return var.isGlobal ? new Global(var.name) : new Local(var.depth, var.slot);
+            } else if(expr instanceof Expr.Assign && isPlain((Expr.Assign) expr)){
+                Expr.Assign assign = (Expr.Assign) expr;
+                return assign.isGlobal
+                        ? new AssignGlobal(assign.name, value(assign.value))
+                        : new AssignLocal(assign.depth, assign.slot, value(assign.value));
+            } else if(expr instanceof Expr.Binary && recorder.wasRecorded((Expr.Binary) expr)){
+                Expr.Binary binary = (Expr.Binary) expr;
+                Value left = value(binary.left);
+                Value right = value(binary.right);
+                if(recorder.onlySawNumbers(binary) && NumberOp.handles(binary.operator.getType())){
+                    NumberOp op = new NumberOp(binary.operator, left, right);
+                    numberOps.add(op);
+                    return op;
+                }
+                return new Binary(binary.operator, left, right);
+            }
+            return new Interpreted(expr);
+        }
+    }
+
+    private interface Value {
+        Object evaluate(InterpreterVisitor interpreter);
+    }
+
+    private static final class Constant implements Value {
+        private final Object value;
+
+        Constant(Object value){
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            return value;
+        }
+    }
+
+    private static final class Local implements Value {
+        private final int depth;
+        private final int slot;
+
+        Local(int depth, int slot){
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            return interpreter.getEnv().getAt(depth, slot);
+        }
+    }
+
+    private static final class Global implements Value {
+        private final Token name;
+
+        Global(Token name){
+            this.name = name;
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            return ((GlobalEnv) interpreter.getGlobals()).get(name);
+        }
+    }
+
+    private static final class AssignLocal implements Value {
+        private final int depth;
+        private final int slot;
+        private final Value value;
+
+        AssignLocal(int depth, int slot, Value value){
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            Object val = value.evaluate(interpreter);
+            interpreter.getEnv().updateAt(depth, slot, val);
+            return val;
+        }
+    }
+
+    private static final class AssignGlobal implements Value {
+        private final Token name;
+        private final Value value;
+
+        AssignGlobal(Token name, Value value){
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            Object val = value.evaluate(interpreter);
+            ((GlobalEnv) interpreter.getGlobals()).update(name, val);
+            return val;
+        }
+    }
+
+    private static final class Binary implements Value {
+        private final Token operator;
+        private final Value left;
+        private final Value right;
+
+        Binary(Token operator, Value left, Value right){
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            Object l = left.evaluate(interpreter);
+            Object r = right.evaluate(interpreter);
+            return InterpreterVisitor.binary(operator, l, r);
+        }
+    }
+
+    /**
+     * Arithmetic or comparison that only ever saw numbers while recording
+     */
+    private static final class NumberOp implements Value {
+        private final Token operator;
+        private final TokenType type;
+        private final Value left;
+        private final Value right;
+        private long exits = 0;
+
+        NumberOp(Token operator, Value left, Value right){
+            this.operator = operator;
+            this.type = operator.getType();
+            this.left = left;
+            this.right = right;
+        }
+
+        static boolean handles(TokenType type){
+            switch(type){
+                case PLUS: case MINUS: case STAR: case SLASH:
+                case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            Object l = left.evaluate(interpreter);
+            Object r = right.evaluate(interpreter);
+            if(!(l instanceof Double && r instanceof Double)){
+                exits++;
+                return InterpreterVisitor.binary(operator, l, r);
+            }
+            double a = (Double) l;
+            double b = (Double) r;
+            switch(type){
+                case PLUS: return a + b;
+                case MINUS: return a - b;
+                case STAR: return a * b;
+                case SLASH: return InterpreterVisitor.divide(operator, a, b);
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                default: return a <= b;
+            }
+        }
+    }
+
+    private static final class Interpreted implements Value {
+        private final Expr expr;
+
+        Interpreted(Expr expr){
+            this.expr = expr;
+        }
+
+        @Override
+        public Object evaluate(InterpreterVisitor interpreter) {
+            return interpreter.evaluate(expr);
+        }
+    }
+
+    /**
+     * A statement in the trace. Completes like the interpreter's statements do
+     */
+    private static abstract class Op {
+        abstract Object execute(InterpreterVisitor interpreter);
+    }
+
+    private static final class Guard extends Op {
+        private final Value cond;
+        private final boolean expected;
+        private final Stmt offTrace; // The branch the recording didn't take, null if there's nothing to run
+        private final int line;
+        private int rejoin; // Op after the traced branch
+        private long exits = 0;
+
+        Guard(Value cond, boolean expected, Stmt offTrace, int line){
+            this.cond = cond;
+            this.expected = expected;
+            this.offTrace = offTrace;
+            this.line = line;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            throw new IllegalStateException("Guards are handled by the trace");
+        }
+    }
+
+    private static final class EnterBlock extends Op {
+        private final int slotCount;
+
+        EnterBlock(int slotCount){
+            this.slotCount = slotCount;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            interpreter.setEnv(new Env(interpreter.getEnv(), slotCount));
+            return InterpreterVisitor.NORMAL;
+        }
+    }
+
+    private static final class ExitBlock extends Op {
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            interpreter.setEnv(interpreter.getEnv().ancestor(1));
+            return InterpreterVisitor.NORMAL;
+        }
+    }
+
+    private static final class Truncate extends Op {
+        private final int size;
+
+        Truncate(int size){
+            this.size = size;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            interpreter.getEnv().truncate(size);
+            return InterpreterVisitor.NORMAL;
+        }
+    }
+
+    private static final class Evaluate extends Op {
+        private final Value value;
+
+        Evaluate(Value value){
+            this.value = value;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            value.evaluate(interpreter);
+            return InterpreterVisitor.NORMAL;
+        }
+    }
+
+    private static final class Print extends Op {
+        private final Value value;
+
+        Print(Value value){
+            this.value = value;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            System.out.println(Ops.stringify(value.evaluate(interpreter)));
+            return InterpreterVisitor.NORMAL;
+        }
+    }
+
+    private static final class Define extends Op {
+        private final Value value;
+
+        Define(Value value){
+            this.value = value;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            Object val = value.evaluate(interpreter);
+            interpreter.getEnv().define(val);
+            return InterpreterVisitor.NORMAL;
+        }
+    }
+
+    private static final class Return extends Op {
+        private final Value value;
+
+        Return(Value value){
+            this.value = value;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            return value.evaluate(interpreter);
+        }
+    }
+
+    private static final class Interpret extends Op {
+        private final Stmt stmt;
+
+        Interpret(Stmt stmt){
+            this.stmt = stmt;
+        }
+
+        @Override
+        Object execute(InterpreterVisitor interpreter) {
+            return interpreter.execute(stmt);
+        }
+    }
+}
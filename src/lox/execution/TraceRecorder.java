@@ -0,0 +1,43 @@
+package lox.execution;
+
+import lox.parser.Expr;
+import lox.parser.Stmt;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * What the interpreter saw while running one iteration of a hot loop: which way each if went, and whether each binary
+ * operator only ever got numbers. Trace.build turns it into a trace
+ *
+ * Anything run during the iteration gets recorded, including the bodies of functions it calls, but only the nodes in
+ * the loop itself end up being used
+ */
+final class TraceRecorder {
+    private final Map<Stmt.If, Boolean> branches = new IdentityHashMap<>();
+    private final Map<Expr.Binary, Boolean> numeric = new IdentityHashMap<>();
+
+    void branch(Stmt.If stmt, boolean taken){
+        branches.putIfAbsent(stmt, taken);
+    }
+
+    void operands(Expr.Binary expr, Object left, Object right){
+        boolean numbers = left instanceof Double && right instanceof Double;
+        numeric.merge(expr, numbers, Boolean::logicalAnd);
+    }
+
+    /**
+     * @return the branch taken the first time the if ran, or null if it didn't run
+     */
+    Boolean branchTaken(Stmt.If stmt){
+        return branches.get(stmt);
+    }
+
+    boolean wasRecorded(Expr.Binary expr){
+        return numeric.containsKey(expr);
+    }
+
+    boolean onlySawNumbers(Expr.Binary expr){
+        return numeric.getOrDefault(expr, false);
+    }
+}
@@ -0,0 +1,46 @@
+package lox.execution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counters for the loop traces the tree walker recorded
+ */
+public final class TraceStats {
+    static final List<Trace> traces = new ArrayList<>();
+    static long abandoned = 0; // Recordings that didn't make it into a trace
+
+    private TraceStats(){
+    }
+
+    public static int getTraces(){
+        return traces.size();
+    }
+
+    public static long getSideExits(){
+        long exits = 0;
+        for(Trace trace: traces){
+            exits += trace.getSideExits();
+        }
+        return exits;
+    }
+
+    public static String report(){
+        long ops = 0;
+        long iterations = 0;
+        for(Trace trace: traces){
+            ops += trace.getLength();
+            iterations += trace.getIterations();
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("traces recorded: ").append(traces.size())
+                .append(", abandoned: ").append(abandoned)
+                .append(", ops: ").append(ops)
+                .append(", iterations: ").append(iterations)
+                .append(", side exits: ").append(getSideExits());
+        for(Trace trace: traces){
+            report.append("\n  ").append(trace.describe());
+        }
+        return report.toString();
+    }
+}
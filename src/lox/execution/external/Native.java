@@ -0,0 +1,65 @@
+package lox.execution.external;
+
+import lox.execution.InterpreterVisitor;
+import lox.execution.LoxCallable;
+import lox.runtime.Callable;
+
+import java.util.List;
+
+/**
+ * Hands a lox.runtime native to the interpreters, so natives like clock are only written once for every engine
+ */
+public class Native implements LoxCallable {
+    private final Callable function;
+
+    public Native(Callable function){
+        this.function = function;
+    }
+
+    @Override
+    public Object call(InterpreterVisitor interpreter, List<Object> args) {
+        switch(args.size()){
+            case 0: return function.call0();
+            case 1: return function.call1(args.get(0));
+            case 2: return function.call2(args.get(0), args.get(1));
+            case 3: return function.call3(args.get(0), args.get(1), args.get(2));
+            case 4: return function.call4(args.get(0), args.get(1), args.get(2), args.get(3));
+            default: return function.callN(args.toArray());
+        }
+    }
+
+    @Override
+    public Object call0(InterpreterVisitor interpreter) {
+        return function.call0();
+    }
+
+    @Override
+    public Object call1(InterpreterVisitor interpreter, Object a) {
+        return function.call1(a);
+    }
+
+    @Override
+    public Object call2(InterpreterVisitor interpreter, Object a, Object b) {
+        return function.call2(a, b);
+    }
+
+    @Override
+    public Object call3(InterpreterVisitor interpreter, Object a, Object b, Object c) {
+        return function.call3(a, b, c);
+    }
+
+    @Override
+    public Object call4(InterpreterVisitor interpreter, Object a, Object b, Object c, Object d) {
+        return function.call4(a, b, c, d);
+    }
+
+    @Override
+    public int getArity() {
+        return function.arity();
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,976 @@
+package lox.nodes;
+
+import lox.exception.LoxRuntimeException;
+import lox.execution.Env;
+import lox.execution.GlobalEnv;
+import lox.execution.InterpreterVisitor;
+import lox.execution.LoxCallable;
+import lox.execution.LoxClass;
+import lox.execution.LoxFunction;
+import lox.execution.LoxInstance;
+import lox.execution.PropertyCache;
+import lox.parser.Token;
+import lox.runtime.Cell;
+import lox.runtime.ClassLayout;
+import lox.runtime.Instance;
+import lox.runtime.Ops;
+import lox.runtime.Rope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static lox.runtime.Ops.isEqual;
+import static lox.runtime.Ops.isTruthy;
+
+/**
+ * Executable expression node. Everything the tree walker works out on each visit (which operator, local or global,
+ * depth and slot) is decided once by the NodeCompiler and baked into which node class gets created
+ *
+ * Operators whose behaviour depends on their operand types ('+', '==', '!=', '!') start out uninitialized. The first
+ * execution looks at the operands and rewrites the node into a version specialized for those types. If a later
+ * execution sees types the specialization can't handle, it deoptimizes into the generic version for good
+ *
+ * Numbers also have an unboxed path, executeDouble. Arithmetic nodes ask their children for doubles and only box when
+ * someone calls the generic execute, so an expression like 'a * b + c' doesn't allocate a Double per operator
+ */
+public abstract class ExprNode extends Node {
+    public abstract Object execute(Env env);
+
+    /**
+     * Runs the node expecting a number. Nodes that can produce one without boxing override this, anything that turns
+     * out not to be a number is handed back through the exception
+     */
+    public double executeDouble(Env env) throws UnexpectedResultException {
+        Object value = execute(env);
+        if(value instanceof Double){
+            return (double) value;
+        }
+        throw new UnexpectedResultException(value);
+    }
+
+    /**
+     * Runs the node when nobody needs the result, eg an expression statement. Lets assignments skip boxing the value
+     */
+    public void executeVoid(Env env){
+        execute(env);
+    }
+
+    private boolean replaced = false;
+
+    /**
+     * A node can still be executing further up the Java stack when it gets replaced (eg in a recursive call), so only
+     * the first replacement of a node takes effect. Later attempts from those older executions are ignored
+     */
+    private boolean replace(ExprNode replacement){
+        if(replaced) return false;
+        replaced = true;
+        parent.replaceChild(this, replacement);
+        replacement.parent = parent;
+        return true;
+    }
+
+    void specialize(ExprNode replacement){
+        if(replace(replacement)) NodeStats.specialized++;
+    }
+
+    void deoptimize(ExprNode replacement){
+        if(replace(replacement)) NodeStats.deoptimized++;
+    }
+
+    static double checkNumber(Token operator, Object operand){
+        if(!(operand instanceof Double)){
+            throw new LoxRuntimeException(operator, Ops.notANumber(operand));
+        }
+        return (double) operand;
+    }
+
+    static class Constant extends ExprNode {
+        private final Object value;
+
+        Constant(Object value){
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return value;
+        }
+    }
+
+    static class NumberConstant extends ExprNode {
+        private final Double boxed;
+        private final double value;
+
+        NumberConstant(Double value){
+            this.boxed = value;
+            this.value = value;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return boxed;
+        }
+
+        @Override
+        public double executeDouble(Env env) {
+            return value;
+        }
+    }
+
+    // VARIABLES
+
+    static class LocalRead extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        LocalRead(int depth, int slot){
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return env.getAt(depth, slot);
+        }
+
+        @Override
+        public double executeDouble(Env env) throws UnexpectedResultException {
+            Env scope = env.ancestor(depth);
+            if(scope.isDouble(slot)){
+                return scope.getDouble(slot);
+            }
+            Object value = scope.get(slot);
+            if(value instanceof Double){
+                return (double) value;
+            }
+            throw new UnexpectedResultException(value);
+        }
+    }
+
+    /**
+     * Assignment to a local before it has run, rewrites into LocalWriteNumber if the first value assigned is a number
+     */
+    static class LocalWrite extends ExprNode {
+        final int depth;
+        final int slot;
+        ExprNode value;
+
+        LocalWrite(int depth, int slot, ExprNode value){
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object val = value.execute(env);
+            if(val instanceof Double){
+                specialize(new LocalWriteNumber(depth, slot, value));
+                env.ancestor(depth).setDouble(slot, (double) val);
+            } else {
+                specialize(new LocalWriteGeneric(depth, slot, value));
+                env.updateAt(depth, slot, val);
+            }
+            return val;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(value == oldChild) value = newChild;
+        }
+    }
+
+    /**
+     * Stores the value unboxed, only boxes if the assignment's own result is used as an object
+     */
+    static class LocalWriteNumber extends LocalWrite {
+        LocalWriteNumber(int depth, int slot, ExprNode value){
+            super(depth, slot, value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            try {
+                return executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        public void executeVoid(Env env) {
+            try {
+                executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                // Already stored by the generic path, nothing else to do
+            }
+        }
+
+        @Override
+        public double executeDouble(Env env) throws UnexpectedResultException {
+            double val;
+            try {
+                val = value.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                deoptimize(new LocalWriteGeneric(depth, slot, value));
+                env.updateAt(depth, slot, e.getResult());
+                throw e;
+            }
+            env.ancestor(depth).setDouble(slot, val);
+            return val;
+        }
+    }
+
+    static class LocalWriteGeneric extends LocalWrite {
+        LocalWriteGeneric(int depth, int slot, ExprNode value){
+            super(depth, slot, value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object val = value.execute(env);
+            env.updateAt(depth, slot, val);
+            return val;
+        }
+    }
+
+    /**
+     * A local that a closure captured, so its slot holds a Cell. Captured variables can change under any call, so
+     * these don't get specialised on numbers
+     */
+    static class CellRead extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        CellRead(int depth, int slot){
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return ((Cell) env.getAt(depth, slot)).value;
+        }
+    }
+
+    static class CellWrite extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private ExprNode value;
+
+        CellWrite(int depth, int slot, ExprNode value){
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object val = value.execute(env);
+            ((Cell) env.getAt(depth, slot)).value = val;
+            return val;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(value == oldChild) value = newChild;
+        }
+    }
+
+    /**
+     * A variable of an enclosing function, from the cells the closure captured
+     */
+    static class UpvalueRead extends ExprNode {
+        private final int index;
+
+        UpvalueRead(int index){
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return env.upvalues[index].value;
+        }
+    }
+
+    static class UpvalueWrite extends ExprNode {
+        private final int index;
+        private ExprNode value;
+
+        UpvalueWrite(int index, ExprNode value){
+            this.index = index;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object val = value.execute(env);
+            env.upvalues[index].value = val;
+            return val;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(value == oldChild) value = newChild;
+        }
+    }
+
+    static class GlobalRead extends ExprNode {
+        private final GlobalEnv globals;
+        private final Token name;
+
+        GlobalRead(GlobalEnv globals, Token name){
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return globals.get(name);
+        }
+    }
+
+    static class GlobalWrite extends ExprNode {
+        private final GlobalEnv globals;
+        private final Token name;
+        private ExprNode value;
+
+        GlobalWrite(GlobalEnv globals, Token name, ExprNode value){
+            this.globals = globals;
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object val = value.execute(env);
+            globals.update(name, val);
+            return val;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(value == oldChild) value = newChild;
+        }
+    }
+
+    // OPERATORS
+
+    abstract static class Binary extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+        final Token operator;
+
+        Binary(ExprNode left, ExprNode right, Token operator){
+            this.left = adopt(left);
+            this.right = adopt(right);
+            this.operator = operator;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(left == oldChild){
+                left = newChild;
+            } else if(right == oldChild){
+                right = newChild;
+            }
+        }
+
+        /**
+         * Left operand of a numeric operator. Both operands are always evaluated before either gets type checked, so
+         * if the left one isn't a number the right one still runs before the error is thrown
+         */
+        double leftNumber(Env env){
+            try {
+                return left.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                right.execute(env);
+                return checkNumber(operator, e.getResult());
+            }
+        }
+
+        double rightNumber(Env env){
+            try {
+                return right.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return checkNumber(operator, e.getResult());
+            }
+        }
+    }
+
+    /**
+     * '+' before it has run, rewrites itself into AddNumbers, AddStrings or AddGeneric depending on the first operands
+     */
+    static class Add extends Binary {
+        Add(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object l = left.execute(env);
+            Object r = right.execute(env);
+            if(l instanceof Double && r instanceof Double){
+                specialize(new AddNumbers(left, right, operator));
+            } else if(Rope.isText(l) || Rope.isText(r)){
+                specialize(new AddStrings(left, right, operator));
+            } else {
+                specialize(new AddGeneric(left, right, operator));
+            }
+            // Finish the execution that triggered the rewrite, the operands have already been evaluated
+            return AddGeneric.add(operator, l, r);
+        }
+    }
+
+    static class AddNumbers extends Add {
+        AddNumbers(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            try {
+                return executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return e.getResult();
+            }
+        }
+
+        @Override
+        public double executeDouble(Env env) throws UnexpectedResultException {
+            double l;
+            try {
+                l = left.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return generic(e.getResult(), right.execute(env));
+            }
+            try {
+                return l + right.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return generic(l, e.getResult());
+            }
+        }
+
+        private double generic(Object l, Object r) throws UnexpectedResultException {
+            deoptimize(new AddGeneric(left, right, operator));
+            Object result = AddGeneric.add(operator, l, r);
+            if(result instanceof Double){
+                return (double) result;
+            }
+            throw new UnexpectedResultException(result);
+        }
+    }
+
+    static class AddStrings extends Add {
+        AddStrings(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object l = left.execute(env);
+            Object r = right.execute(env);
+            if(Rope.isText(l) || Rope.isText(r)){
+                return Rope.concat(l, r);
+            }
+            deoptimize(new AddGeneric(left, right, operator));
+            return AddGeneric.add(operator, l, r);
+        }
+    }
+
+    static class AddGeneric extends Add {
+        AddGeneric(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return add(operator, left.execute(env), right.execute(env));
+        }
+
+        static Object add(Token operator, Object l, Object r){
+            return InterpreterVisitor.binary(operator, l, r);
+        }
+    }
+
+    static class Subtract extends Binary {
+        Subtract(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return executeDouble(env);
+        }
+
+        @Override
+        public double executeDouble(Env env) {
+            return leftNumber(env) - rightNumber(env);
+        }
+    }
+
+    static class Multiply extends Binary {
+        Multiply(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return executeDouble(env);
+        }
+
+        @Override
+        public double executeDouble(Env env) {
+            return leftNumber(env) * rightNumber(env);
+        }
+    }
+
+    static class Divide extends Binary {
+        Divide(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return executeDouble(env);
+        }
+
+        @Override
+        public double executeDouble(Env env) {
+            double dividend = leftNumber(env);
+            return InterpreterVisitor.divide(operator, dividend, rightNumber(env));
+        }
+    }
+
+    static class Greater extends Binary {
+        Greater(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return leftNumber(env) > rightNumber(env);
+        }
+    }
+
+    static class GreaterEqual extends Binary {
+        GreaterEqual(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return leftNumber(env) >= rightNumber(env);
+        }
+    }
+
+    static class Less extends Binary {
+        Less(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return leftNumber(env) < rightNumber(env);
+        }
+    }
+
+    static class LessEqual extends Binary {
+        LessEqual(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return leftNumber(env) <= rightNumber(env);
+        }
+    }
+
+    /**
+     * '==' and '!=' before they have run, rewrites into EqualNumbers if the first operands are both numbers
+     */
+    static class Equal extends Binary {
+        final boolean negated;
+
+        Equal(ExprNode left, ExprNode right, Token operator, boolean negated){
+            super(left, right, operator);
+            this.negated = negated;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object l = left.execute(env);
+            Object r = right.execute(env);
+            if(l instanceof Double && r instanceof Double){
+                specialize(new EqualNumbers(left, right, operator, negated));
+            } else {
+                specialize(new EqualGeneric(left, right, operator, negated));
+            }
+            return isEqual(l, r) != negated;
+        }
+    }
+
+    static class EqualNumbers extends Equal {
+        EqualNumbers(ExprNode left, ExprNode right, Token operator, boolean negated){
+            super(left, right, operator, negated);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            double l;
+            try {
+                l = left.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return generic(e.getResult(), right.execute(env));
+            }
+            double r;
+            try {
+                r = right.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return generic(l, e.getResult());
+            }
+            return isEqual(l, r) != negated;
+        }
+
+        private Object generic(Object l, Object r){
+            deoptimize(new EqualGeneric(left, right, operator, negated));
+            return isEqual(l, r) != negated;
+        }
+    }
+
+    static class EqualGeneric extends Equal {
+        EqualGeneric(ExprNode left, ExprNode right, Token operator, boolean negated){
+            super(left, right, operator, negated);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return isEqual(left.execute(env), right.execute(env)) != negated;
+        }
+    }
+
+    static class And extends Binary {
+        And(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return isTruthy(left.execute(env)) && isTruthy(right.execute(env));
+        }
+    }
+
+    static class Or extends Binary {
+        Or(ExprNode left, ExprNode right, Token operator){
+            super(left, right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return isTruthy(left.execute(env)) || isTruthy(right.execute(env));
+        }
+    }
+
+    abstract static class Unary extends ExprNode {
+        ExprNode right;
+        final Token operator;
+
+        Unary(ExprNode right, Token operator){
+            this.right = adopt(right);
+            this.operator = operator;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(right == oldChild) right = newChild;
+        }
+    }
+
+    static class Negate extends Unary {
+        Negate(ExprNode right, Token operator){
+            super(right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return executeDouble(env);
+        }
+
+        @Override
+        public double executeDouble(Env env) {
+            try {
+                return -right.executeDouble(env);
+            } catch (UnexpectedResultException e) {
+                return -checkNumber(operator, e.getResult());
+            }
+        }
+    }
+
+    /**
+     * '!' before it has run, rewrites into NotBoolean if the first operand is a boolean
+     */
+    static class Not extends Unary {
+        Not(ExprNode right, Token operator){
+            super(right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object value = right.execute(env);
+            if(value instanceof Boolean){
+                specialize(new NotBoolean(right, operator));
+            } else {
+                specialize(new NotGeneric(right, operator));
+            }
+            return !isTruthy(value);
+        }
+    }
+
+    static class NotBoolean extends Not {
+        NotBoolean(ExprNode right, Token operator){
+            super(right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object value = right.execute(env);
+            if(value instanceof Boolean){
+                return !(Boolean) value;
+            }
+            deoptimize(new NotGeneric(right, operator));
+            return !isTruthy(value);
+        }
+    }
+
+    static class NotGeneric extends Not {
+        NotGeneric(ExprNode right, Token operator){
+            super(right, operator);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return !isTruthy(right.execute(env));
+        }
+    }
+
+    // CALLS AND PROPERTIES
+
+    static class Call extends ExprNode {
+        private ExprNode callee;
+        private final ExprNode[] args;
+        private final Token paren;
+
+        Call(ExprNode callee, ExprNode[] args, Token paren){
+            this.callee = adopt(callee);
+            this.args = adoptAll(args);
+            this.paren = paren;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return call(callee.execute(env), args, paren, env);
+        }
+
+        /**
+         * Same protocol as the tree walker: functions and classes with a matching arity get their arguments evaluated
+         * straight into the new frame, anything else evaluates them first and then checks the callee
+         */
+        static Object call(Object callee, ExprNode[] args, Token paren, Env env){
+            if(callee instanceof LoxFunction){
+                LoxFunction fun = (LoxFunction) callee;
+                if(fun.getArity() == args.length){
+                    return fun.run(null, evaluateInto(fun.newFrame(), args, env));
+                }
+            } else if(callee instanceof LoxClass){
+                LoxClass klass = (LoxClass) callee;
+                if(klass.getArity() == args.length){
+                    LoxInstance instance = new LoxInstance(klass);
+                    LoxFunction initializer = klass.getInitializer();
+                    if(initializer != null){
+                        initializer.run(null, evaluateInto(initializer.newFrame(instance), args, env));
+                    }
+                    return instance;
+                }
+            }
+            return callGeneric(callee, args, paren, env);
+        }
+
+        static Env evaluateInto(Env frame, ExprNode[] args, Env env){
+            for(ExprNode arg: args){
+                frame.define(arg.execute(env));
+            }
+            return frame;
+        }
+
+        static Object callGeneric(Object callee, ExprNode[] args, Token paren, Env env){
+            int argc = args.length;
+            if(argc > 4){
+                List<Object> arguments = new ArrayList<>(argc);
+                for(ExprNode arg: args){
+                    arguments.add(arg.execute(env));
+                }
+                return InterpreterVisitor.checkCallable(callee, arguments, paren).call(null, arguments);
+            }
+            Object a = argc > 0 ? args[0].execute(env) : null;
+            Object b = argc > 1 ? args[1].execute(env) : null;
+            Object c = argc > 2 ? args[2].execute(env) : null;
+            Object d = argc > 3 ? args[3].execute(env) : null;
+            LoxCallable fun = InterpreterVisitor.checkCallable(callee, Arrays.asList(a, b, c, d).subList(0, argc), paren);
+            switch(argc){
+                case 0: return fun.call0(null);
+                case 1: return fun.call1(null, a);
+                case 2: return fun.call2(null, a, b);
+                case 3: return fun.call3(null, a, b, c);
+                default: return fun.call4(null, a, b, c, d);
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(callee == oldChild){
+                callee = newChild;
+                return;
+            }
+            for(int i = 0; i < args.length; i++){
+                if(args[i] == oldChild){
+                    args[i] = newChild;
+                }
+            }
+        }
+    }
+
+    /**
+     * obj.method(args), calls the method on the instance directly instead of binding it first
+     */
+    static class Invoke extends ExprNode {
+        private ExprNode target;
+        private final Token name;
+        private final ExprNode[] args;
+        private final Token paren;
+        private final PropertyCache cache = new PropertyCache();
+
+        Invoke(ExprNode target, Token name, ExprNode[] args, Token paren){
+            this.target = adopt(target);
+            this.name = name;
+            this.args = adoptAll(args);
+            this.paren = paren;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object object = target.execute(env);
+            if(!(object instanceof LoxInstance)){
+                throw new LoxRuntimeException(name, Instance.notAnInstance("access", object));
+            }
+            LoxInstance instance = (LoxInstance) object;
+            LoxFunction method = cache.getMethod(instance, name);
+            if(method == null){
+                return Call.call(instance.get(name), args, paren, env);
+            }
+            if(method.getArity() != args.length){
+                return Call.callGeneric(method, args, paren, env); // Only there to evaluate the arguments and report the error
+            }
+            return method.run(null, Call.evaluateInto(method.newFrame(instance), args, env));
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(target == oldChild){
+                target = newChild;
+                return;
+            }
+            for(int i = 0; i < args.length; i++){
+                if(args[i] == oldChild){
+                    args[i] = newChild;
+                }
+            }
+        }
+    }
+
+    static class Get extends ExprNode {
+        private ExprNode target;
+        private final Token name;
+        private final PropertyCache cache = new PropertyCache();
+
+        Get(ExprNode target, Token name){
+            this.target = adopt(target);
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object object = target.execute(env);
+            if(!(object instanceof LoxInstance)){
+                throw new LoxRuntimeException(name, Instance.notAnInstance("access", object));
+            }
+            return cache.get((LoxInstance) object, name);
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(target == oldChild) target = newChild;
+        }
+    }
+
+    static class Set extends ExprNode {
+        private ExprNode target;
+        private final Token name;
+        private final PropertyCache cache = new PropertyCache();
+        private ExprNode value;
+
+        Set(ExprNode target, Token name, ExprNode value){
+            this.target = adopt(target);
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Object object = target.execute(env);
+            if(!(object instanceof LoxInstance)){
+                throw new LoxRuntimeException(name, Instance.notAnInstance("set", object));
+            }
+            cache.set((LoxInstance) object, name, value.execute(env));
+            return null;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(target == oldChild){
+                target = newChild;
+            } else if(value == oldChild){
+                value = newChild;
+            }
+        }
+    }
+
+    static class Super extends ExprNode {
+        private final int upvalue;
+        private ExprNode receiver;
+        private final Token method;
+
+        Super(int upvalue, ExprNode receiver, Token method){
+            this.upvalue = upvalue;
+            this.receiver = adopt(receiver);
+            this.method = method;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(receiver == oldChild) receiver = newChild;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            // 'super' always belongs to the scope around the methods, so it's always captured
+            LoxClass superclass = (LoxClass) env.upvalues[upvalue].value;
+            LoxInstance instance = (LoxInstance) receiver.execute(env);
+            LoxFunction fun = superclass.getMethod(method.getSymbol());
+            if(fun == null){
+                throw new LoxRuntimeException(method, ClassLayout.undefinedProperty(method.getLexeme()));
+            }
+            return fun.bind(instance);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package lox.nodes;
+
+/**
+ * Common base of ExprNode and StmtNode. Nodes know their parent so an expression node can rewrite itself into a more
+ * specialized version by swapping itself out of its parent's child slot
+ */
+abstract class Node {
+    Node parent;
+
+    <T extends Node> T adopt(T child){
+        if(child != null){
+            child.parent = this;
+        }
+        return child;
+    }
+
+    <T extends Node> T[] adoptAll(T[] children){
+        for(T child: children){
+            adopt(child);
+        }
+        return children;
+    }
+
+    /**
+     * Only nodes with expression children need to override this, those are the only ones that can be rewritten
+     */
+    void replaceChild(ExprNode oldChild, ExprNode newChild){
+        throw new IllegalStateException(getClass().getSimpleName() + " has no child " + oldChild);
+    }
+}
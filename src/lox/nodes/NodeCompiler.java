@@ -0,0 +1,230 @@
+package lox.nodes;
+
+import lox.execution.GlobalEnv;
+import lox.parser.Expr;
+import lox.parser.Stmt;
+
+import java.util.List;
+
+/**
+ * Converts the resolved AST into a tree of executable nodes. Runs once up front, so none of the decisions made here
+ * (operator, local vs global, where a declaration goes) are repeated while the program runs
+ */
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final GlobalEnv globals;
+    private int scopeDepth = 0; // 0 means declarations go into the globals
+
+    NodeCompiler(GlobalEnv globals){
+        this.globals = globals;
+    }
+
+    StmtNode[] compile(List<Stmt> statements){
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for(int i = 0; i < nodes.length; i++){
+            nodes[i] = statements.get(i).accept(this);
+        }
+        return nodes;
+    }
+
+    private ExprNode compile(Expr expr){
+        return expr.accept(this);
+    }
+
+    private StmtNode[] compileScoped(List<Stmt> statements){
+        scopeDepth++;
+        StmtNode[] nodes = compile(statements);
+        scopeDepth--;
+        return nodes;
+    }
+
+    private GlobalEnv globalsIfTopLevel(){
+        return scopeDepth == 0 ? globals : null;
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        switch(expr.operator.getType()){
+            case BANG_EQUAL: return new ExprNode.Equal(left, right, expr.operator, true);
+            case EQUAL_EQUAL: return new ExprNode.Equal(left, right, expr.operator, false);
+            case PLUS: return new ExprNode.Add(left, right, expr.operator);
+            case MINUS: return new ExprNode.Subtract(left, right, expr.operator);
+            case SLASH: return new ExprNode.Divide(left, right, expr.operator);
+            case STAR: return new ExprNode.Multiply(left, right, expr.operator);
+            case GREATER: return new ExprNode.Greater(left, right, expr.operator);
+            case GREATER_EQUAL: return new ExprNode.GreaterEqual(left, right, expr.operator);
+            case LESS: return new ExprNode.Less(left, right, expr.operator);
+            case LESS_EQUAL: return new ExprNode.LessEqual(left, right, expr.operator);
+            default:
+                throw new IllegalStateException("Found unknown binary operator " + expr.operator);
+        }
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value instanceof Double){
+            return new ExprNode.NumberConstant((Double) expr.value);
+        }
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = compile(expr.right);
+        switch(expr.operator.getType()){
+            case MINUS: return new ExprNode.Negate(right, expr.operator);
+            case BANG: return new ExprNode.Not(right, expr.operator);
+            default:
+                throw new IllegalStateException("Found unknown unary operator " + expr.operator);
+        }
+    }
+
+    @Override
+    public ExprNode visitVarExpr(Expr.Var expr) {
+        if(expr.isGlobal){
+            return new ExprNode.GlobalRead(globals, expr.name);
+        } else {
+            return local(expr.upvalue, expr.inCell, expr.depth, expr.slot);
+        }
+    }
+
+    private static ExprNode local(int upvalue, boolean inCell, int depth, int slot){
+        if(upvalue >= 0){
+            return new ExprNode.UpvalueRead(upvalue);
+        } else if(inCell){
+            return new ExprNode.CellRead(depth, slot);
+        }
+        return new ExprNode.LocalRead(depth, slot);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+        if(expr.isGlobal){
+            return new ExprNode.GlobalWrite(globals, expr.name, value);
+        } else if(expr.upvalue >= 0){
+            return new ExprNode.UpvalueWrite(expr.upvalue, value);
+        } else if(expr.inCell){
+            return new ExprNode.CellWrite(expr.depth, expr.slot, value);
+        } else {
+            return new ExprNode.LocalWrite(expr.depth, expr.slot, value);
+        }
+    }
+
+    @Override
+    public ExprNode visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        switch(expr.operator.getType()){
+            case OR: return new ExprNode.Or(left, right, expr.operator);
+            default: return new ExprNode.And(left, right, expr.operator);
+        }
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        ExprNode[] args = new ExprNode[expr.args.size()];
+        if(expr.calle instanceof Expr.Get){
+            Expr.Get get = (Expr.Get) expr.calle;
+            ExprNode target = compile(get.target);
+            for(int i = 0; i < args.length; i++){
+                args[i] = compile(expr.args.get(i));
+            }
+            return new ExprNode.Invoke(target, get.name, args, expr.paren);
+        }
+        ExprNode callee = compile(expr.calle);
+        for(int i = 0; i < args.length; i++){
+            args[i] = compile(expr.args.get(i));
+        }
+        return new ExprNode.Call(callee, args, expr.paren);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        return new ExprNode.Get(compile(expr.target), expr.name);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        return new ExprNode.Set(compile(expr.target), expr.name, compile(expr.val));
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return local(expr.upvalue, expr.inCell, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        return new ExprNode.Super(expr.upvalue, compile(expr.receiver), expr.method);
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        ExprNode init = stmt.init == null ? null : compile(stmt.init);
+        if(scopeDepth == 0){
+            return new StmtNode.GlobalDefine(globals, stmt.name, init);
+        } else {
+            return stmt.isCaptured ? new StmtNode.CellDefine(init) : new StmtNode.LocalDefine(init);
+        }
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        ExprNode superclass = stmt.superclass == null ? null : compile(stmt.superclass);
+        Stmt.Fun[] methods = stmt.methods.toArray(new Stmt.Fun[0]);
+        StmtNode[][] bodies = new StmtNode[methods.length][];
+        for(int i = 0; i < methods.length; i++){
+            bodies[i] = compileScoped(methods[i].body);
+        }
+        return new StmtNode.ClassDefine(stmt.name, superclass, stmt.superclass == null ? null : stmt.superclass.name,
+                methods, bodies, globalsIfTopLevel(), stmt.isCaptured);
+    }
+
+    @Override
+    public StmtNode visitFunStmt(Stmt.Fun stmt) {
+        return new StmtNode.FunDefine(stmt, compileScoped(stmt.body), globalsIfTopLevel());
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        if(stmt.sharesEnv){
+            return new StmtNode.SharedBlock(compile(stmt.statements), stmt.firstSlot);
+        }
+        return new StmtNode.Block(compileScoped(stmt.statements), stmt.slotCount);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenCase = stmt.thenCase.accept(this);
+        StmtNode elseCase = stmt.elseCase == null ? null : stmt.elseCase.accept(this);
+        return new StmtNode.If(condition, thenCase, elseCase);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(compile(stmt.cond), stmt.body.accept(this));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        return new StmtNode.Return(stmt.value == null ? null : compile(stmt.value));
+    }
+}
@@ -0,0 +1,44 @@
+package lox.nodes;
+
+import lox.execution.Env;
+import lox.execution.InterpreterVisitor;
+import lox.execution.LoxFunction;
+import lox.execution.LoxInstance;
+import lox.parser.Stmt;
+import lox.runtime.Cell;
+
+/**
+ * A LoxFunction whose body has already been compiled into nodes, so LoxClass and LoxInstance work unchanged with it
+ */
+class NodeFunction extends LoxFunction {
+    private final StmtNode[] body;
+
+    NodeFunction(Stmt.Fun declaration, Cell[] upvalues, boolean isInitializer, StmtNode[] body){
+        this(declaration, upvalues, isInitializer, null, body);
+    }
+
+    private NodeFunction(Stmt.Fun declaration, Cell[] upvalues, boolean isInitializer, LoxInstance receiver, StmtNode[] body){
+        super(declaration, upvalues, isInitializer, receiver);
+        this.body = body;
+    }
+
+    @Override
+    public Object run(InterpreterVisitor interpreter, Env frame) {
+        if(declaration.capturedSlots != null){
+            frame.box(declaration.capturedSlots);
+        }
+        Object completion = StmtNode.executeAll(body, frame);
+        if(isInitializer){
+            return receiverOf(frame);
+        } else if(completion == StmtNode.NORMAL){
+            return null;
+        } else {
+            return completion;
+        }
+    }
+
+    @Override
+    public LoxFunction bind(LoxInstance instance) {
+        return new NodeFunction(declaration, upvalues, isInitializer, instance, body);
+    }
+}
@@ -0,0 +1,31 @@
+package lox.nodes;
+
+import lox.Lox;
+import lox.exception.LoxRuntimeException;
+import lox.execution.GlobalEnv;
+import lox.execution.external.Native;
+import lox.parser.Stmt;
+import lox.runtime.Clock;
+
+import java.util.List;
+
+/**
+ * Runs a program by first compiling it into a tree of executable nodes with NodeCompiler, as a lighter weight
+ * alternative to the VM. It shares the runtime (Env, LoxClass, LoxInstance) with the tree walker
+ */
+public class NodeInterpreter {
+    private final GlobalEnv globals = new GlobalEnv();
+
+    public NodeInterpreter(){
+        globals.define("clock", new Native(new Clock()));
+    }
+
+    public void interpret(List<Stmt> program){
+        StmtNode[] nodes = new NodeCompiler(globals).compile(program);
+        try{
+            StmtNode.executeAll(nodes, globals);
+        } catch (LoxRuntimeException e){
+            Lox.runtimeError(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package lox.nodes;
+
+/**
+ * Counters for how the node tree rewrote itself while running
+ */
+public final class NodeStats {
+    static long specialized = 0;
+    static long deoptimized = 0;
+
+    private NodeStats(){
+    }
+
+    public static long getSpecialized(){
+        return specialized;
+    }
+
+    public static long getDeoptimized(){
+        return deoptimized;
+    }
+
+    public static String report(){
+        return "nodes specialized: " + specialized + ", deoptimized: " + deoptimized;
+    }
+}
@@ -0,0 +1,344 @@
+package lox.nodes;
+
+import lox.exception.LoxRuntimeException;
+import lox.execution.Env;
+import lox.execution.GlobalEnv;
+import lox.execution.LoxClass;
+import lox.execution.LoxFunction;
+import lox.parser.Stmt;
+import lox.parser.Token;
+import lox.runtime.Cell;
+import lox.runtime.ClassLayout;
+import lox.runtime.SymbolMap;
+
+import static lox.runtime.Ops.isTruthy;
+import static lox.runtime.Ops.stringify;
+
+/**
+ * Executable statement node
+ *
+ * Instead of throwing to unwind out of a function, statements report how they completed: NORMAL if execution should
+ * carry on with the next statement, anything else is the value being returned
+ */
+public abstract class StmtNode extends Node {
+    public static final Object NORMAL = new Object();
+
+    public abstract Object execute(Env env);
+
+    static Object executeAll(StmtNode[] statements, Env env){
+        for(StmtNode statement: statements){
+            Object completion = statement.execute(env);
+            if(completion != NORMAL){
+                return completion;
+            }
+        }
+        return NORMAL;
+    }
+
+    static class Expression extends StmtNode {
+        private ExprNode expression;
+
+        Expression(ExprNode expression){
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            expression.executeVoid(env);
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(expression == oldChild) expression = newChild;
+        }
+    }
+
+    static class Print extends StmtNode {
+        private ExprNode expression;
+
+        Print(ExprNode expression){
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            System.out.println(stringify(expression.execute(env)));
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(expression == oldChild) expression = newChild;
+        }
+    }
+
+    static class LocalDefine extends StmtNode {
+        private ExprNode init;
+        private boolean numeric = true; // Cleared for good the first time the initializer isn't a number
+
+        LocalDefine(ExprNode init){
+            this.init = adopt(init);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            if(init == null){
+                env.define(null);
+            } else if(numeric){
+                try {
+                    env.defineDouble(init.executeDouble(env));
+                } catch (UnexpectedResultException e) {
+                    numeric = false;
+                    env.define(e.getResult());
+                }
+            } else {
+                env.define(init.execute(env));
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(init == oldChild) init = newChild;
+        }
+    }
+
+    static class CellDefine extends StmtNode {
+        private ExprNode init;
+
+        CellDefine(ExprNode init){
+            this.init = adopt(init);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            env.define(Cell.of(init == null ? null : init.execute(env)));
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(init == oldChild) init = newChild;
+        }
+    }
+
+    static class GlobalDefine extends StmtNode {
+        private final GlobalEnv globals;
+        private final Token name;
+        private ExprNode init;
+
+        GlobalDefine(GlobalEnv globals, Token name, ExprNode init){
+            this.globals = globals;
+            this.name = name;
+            this.init = adopt(init);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            globals.define(name, init == null ? null : init.execute(env));
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(init == oldChild) init = newChild;
+        }
+    }
+
+    static class FunDefine extends StmtNode {
+        private final Stmt.Fun declaration;
+        private final StmtNode[] body;
+        private final GlobalEnv globals; // null for local functions
+
+        FunDefine(Stmt.Fun declaration, StmtNode[] body, GlobalEnv globals){
+            this.declaration = declaration;
+            this.body = body;
+            this.globals = globals;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            if(globals != null){
+                globals.define(declaration.name, new NodeFunction(declaration, env.capture(declaration.captures), false, body));
+            } else if(declaration.isCaptured){
+                Cell cell = new Cell(); // It can call itself
+                env.define(cell);
+                cell.value = new NodeFunction(declaration, env.capture(declaration.captures), false, body);
+            } else {
+                env.define(new NodeFunction(declaration, env.capture(declaration.captures), false, body));
+            }
+            return NORMAL;
+        }
+    }
+
+    static class ClassDefine extends StmtNode {
+        private final Token name;
+        private ExprNode superclass; // null if the class doesn't inherit
+        private final Token superclassName;
+        private final Stmt.Fun[] methods;
+        private final StmtNode[][] bodies;
+        private final GlobalEnv globals; // null for local classes
+        private final boolean isCaptured;
+
+        ClassDefine(Token name, ExprNode superclass, Token superclassName, Stmt.Fun[] methods, StmtNode[][] bodies,
+                    GlobalEnv globals, boolean isCaptured){
+            this.name = name;
+            this.superclass = adopt(superclass);
+            this.superclassName = superclassName;
+            this.methods = methods;
+            this.bodies = bodies;
+            this.globals = globals;
+            this.isCaptured = isCaptured;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            Cell cell = null; // For methods that use the class
+            if(isCaptured){
+                cell = new Cell();
+                env.define(cell);
+            }
+            Object parent = null;
+            Env methodEnv = env;
+            if(superclass != null){
+                parent = superclass.execute(env);
+                if(!(parent instanceof LoxClass)){
+                    throw new LoxRuntimeException(superclassName, ClassLayout.notAClass(parent));
+                }
+                methodEnv = new Env(env, 1); // Holds 'super' for the method closures
+                methodEnv.define(Cell.of(parent));
+            }
+
+            SymbolMap<LoxFunction> table = new SymbolMap<>();
+            for(int i = 0; i < methods.length; i++){
+                String methodName = methods[i].name.getLexeme();
+                table.put(methods[i].name.getSymbol(), new NodeFunction(methods[i], methodEnv.capture(methods[i].captures),
+                        ClassLayout.isInitializer(methodName), bodies[i]));
+            }
+
+            LoxClass klass = new LoxClass(name.getLexeme(), (LoxClass) parent, table);
+            if(globals != null){
+                globals.define(name, klass);
+            } else if(cell != null){
+                cell.value = klass;
+            } else {
+                env.define(klass);
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(superclass == oldChild) superclass = newChild;
+        }
+    }
+
+    static class Block extends StmtNode {
+        private final StmtNode[] statements;
+        private final int slotCount;
+
+        Block(StmtNode[] statements, int slotCount){
+            this.statements = statements;
+            this.slotCount = slotCount;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return executeAll(statements, new Env(env, slotCount));
+        }
+    }
+
+    /**
+     * A block the Resolver put in the enclosing Env, its locals just get dropped again at the end
+     */
+    static class SharedBlock extends StmtNode {
+        private final StmtNode[] statements;
+        private final int firstSlot;
+
+        SharedBlock(StmtNode[] statements, int firstSlot){
+            this.statements = statements;
+            this.firstSlot = firstSlot;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            try {
+                return executeAll(statements, env);
+            } finally {
+                env.truncate(firstSlot);
+            }
+        }
+    }
+
+    static class If extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode thenCase;
+        private final StmtNode elseCase;
+
+        If(ExprNode condition, StmtNode thenCase, StmtNode elseCase){
+            this.condition = adopt(condition);
+            this.thenCase = thenCase;
+            this.elseCase = elseCase;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            if(isTruthy(condition.execute(env))){
+                return thenCase.execute(env);
+            } else if(elseCase != null){
+                return elseCase.execute(env);
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(condition == oldChild) condition = newChild;
+        }
+    }
+
+    static class While extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode body;
+
+        While(ExprNode condition, StmtNode body){
+            this.condition = adopt(condition);
+            this.body = body;
+        }
+
+        @Override
+        public Object execute(Env env) {
+            while(isTruthy(condition.execute(env))){
+                Object completion = body.execute(env);
+                if(completion != NORMAL){
+                    return completion;
+                }
+            }
+            return NORMAL;
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(condition == oldChild) condition = newChild;
+        }
+    }
+
+    static class Return extends StmtNode {
+        private ExprNode value;
+
+        Return(ExprNode value){
+            this.value = adopt(value);
+        }
+
+        @Override
+        public Object execute(Env env) {
+            return value == null ? null : value.execute(env);
+        }
+
+        @Override
+        void replaceChild(ExprNode oldChild, ExprNode newChild) {
+            if(value == oldChild) value = newChild;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package lox.nodes;
+
+/**
+ * Thrown by ExprNode.executeDouble when the node produced something other than a number. Carries the value that was
+ * actually produced so the caller can fall back to the generic path without evaluating anything twice
+ */
+public class UnexpectedResultException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final Object result;
+
+    UnexpectedResultException(Object result){
+        super(null, null, false, false);
+        this.result = result;
+    }
+
+    public Object getResult() {
+        return result;
+    }
+}
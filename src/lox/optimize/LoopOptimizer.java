@@ -0,0 +1,477 @@
+package lox.optimize;
+
+import lox.parser.Expr;
+import lox.parser.Stmt;
+import lox.parser.Token;
+import lox.parser.TokenType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loop invariant code motion and strength reduction for while loops at the end of a block, which is where
+ * Parser.forStatement puts them. New locals for the results are declared in that block right before the loop, so
+ * they take the slots after everything else in it
+ *
+ * Only expressions that can't fail and don't have side effects get hoisted: arithmetic and comparisons on variables
+ * that only ever hold numbers, and reads of variables the loop can't change. Since they can't fail, it doesn't matter
+ * if they're computed when the loop runs zero times or from a branch that never runs
+ */
+public class LoopOptimizer extends Rewriter {
+    // Keeps the derived induction variables exact: it takes ~2^43 iterations for them to get anywhere near 2^53
+    private static final double MAX_DERIVED_STEP = 1024;
+    private static final double MAX_DERIVED_START = 1 << 30;
+
+    private final boolean wholeProgram;
+    private Variables variables;
+    private final Set<String> definedGlobals = new HashSet<>(); // Top level declarations run so far
+    private int functionDepth = 0;
+    private int temporaries = 0;
+
+    public LoopOptimizer(){
+        this(true);
+    }
+
+    /**
+     * @param wholeProgram false if optimize gets called on each piece of the program as it's read, so nothing can be
+     * assumed about what the rest of it does to globals
+     */
+    public LoopOptimizer(boolean wholeProgram){
+        this.wholeProgram = wholeProgram;
+    }
+
+    public List<Stmt> optimize(List<Stmt> program){
+        variables = Variables.of(program, wholeProgram);
+        List<Stmt> optimized = new ArrayList<>(program.size());
+        for(Stmt statement: program){
+            Stmt result = rewrite(statement);
+            if(result != null){
+                optimized.add(result);
+            }
+            if(statement instanceof Stmt.Var){
+                definedGlobals.add(((Stmt.Var) statement).name.getLexeme());
+            } else if(statement instanceof Stmt.Fun){
+                definedGlobals.add(((Stmt.Fun) statement).name.getLexeme());
+            } else if(statement instanceof Stmt.Class){
+                definedGlobals.add(((Stmt.Class) statement).name.getLexeme());
+            }
+        }
+        return optimized;
+    }
+
+    @Override
+    void copied(Expr original, Expr copy){
+        variables.copied(original, copy);
+    }
+
+    @Override
+    public Stmt visitFunStmt(Stmt.Fun stmt) {
+        functionDepth++;
+        try {
+            return super.visitFunStmt(stmt);
+        } finally {
+            functionDepth--;
+        }
+    }
+
+    /**
+     * Loops inside the body are done first, so whatever they hoisted can move further out if it's invariant here too
+     */
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block block = (Stmt.Block) super.visitBlockStmt(stmt);
+        List<Stmt> statements = block.statements;
+        if(!statements.isEmpty() && statements.get(statements.size() - 1) instanceof Stmt.While){
+            return optimizeLoop(block);
+        }
+        return block;
+    }
+
+    private Stmt.Block optimizeLoop(Stmt.Block block){
+        List<Stmt> statements = block.statements;
+        Stmt.While loop = (Stmt.While) statements.get(statements.size() - 1);
+        LoopScan scan = new LoopScan();
+        scan.rewrite(loop);
+        if(scan.declaresFunctions){
+            return block; // Closures could change anything
+        }
+
+        Hoister hoister = new Hoister(scan, block.slotCount, functionDepth == 0);
+        List<Stmt> updates = reduceInductionVariable(block, loop, scan, hoister);
+        Expr cond = hoister.rewrite(loop.cond);
+        Stmt body = hoister.rewriteRequired(loop.body);
+        if(hoister.declarations.isEmpty()){
+            return block;
+        }
+        if(!updates.isEmpty()){
+            Stmt.Block original = (Stmt.Block) body;
+            List<Stmt> bodyStatements = new ArrayList<>(original.statements);
+            bodyStatements.addAll(updates);
+            Stmt.Block updated = new Stmt.Block(bodyStatements);
+            updated.slotCount = original.slotCount;
+            body = updated;
+        }
+
+        List<Stmt> rewritten = new ArrayList<>(statements.subList(0, statements.size() - 1));
+        rewritten.addAll(hoister.declarations);
+        rewritten.add(new Stmt.While(cond, body));
+        Stmt.Block result = new Stmt.Block(rewritten);
+        result.slotCount = block.slotCount + hoister.declarations.size();
+        return result;
+    }
+
+    /**
+     * For a loop counting i from a constant by a constant step (like the ones for statements make), products i * k
+     * used more than once per iteration get their own variable that's stepped along with i. A multiply costs about
+     * the same as the add that replaces it here, so a single use isn't worth it
+     * @return the statements that step the new variables, to go after the increment
+     */
+    private List<Stmt> reduceInductionVariable(Stmt.Block block, Stmt.While loop, LoopScan scan, Hoister hoister){
+        List<Stmt> updates = new ArrayList<>();
+        if(!(loop.body instanceof Stmt.Block)){
+            return updates;
+        }
+        List<Stmt> body = ((Stmt.Block) loop.body).statements;
+        if(body.isEmpty() || !(body.get(body.size() - 1) instanceof Stmt.Expression)){
+            return updates;
+        }
+        Expr last = ((Stmt.Expression) body.get(body.size() - 1)).expression;
+        if(!(last instanceof Expr.Assign) || ((Expr.Assign) last).isGlobal || ((Expr.Assign) last).depth != 1){
+            return updates; // Only a counter declared in the block around the loop
+        }
+        Expr.Assign increment = (Expr.Assign) last;
+        Variables.Variable counter = variables.of(increment);
+        if(!(increment.value instanceof Expr.Binary)){
+            return updates;
+        }
+        Expr.Binary next = (Expr.Binary) increment.value;
+        if(next.operator.getType() != TokenType.PLUS || variables.of(next.left) != counter
+                || !isInteger(next.right) || counter.getAssignments() != 1
+                || (scan.hasCalls && !counter.isCaptureFree())){
+            return updates;
+        }
+        Double start = initialValue(block, increment.slot);
+        if(start == null || Double.doubleToRawLongBits(start) == Double.doubleToRawLongBits(-0.0)){
+            return updates;
+        }
+        double step = (Double) ((Expr.Literal) next.right).value;
+
+        Map<Double, Integer> uses = new HashMap<>();
+        for(Map.Entry<Expr.Binary, Double> product: scan.products.entrySet()){
+            if(scan.factors.get(product.getKey()) == counter){
+                uses.merge(product.getValue(), 1, Integer::sum);
+            }
+        }
+        for(Map.Entry<Double, Integer> use: uses.entrySet()){
+            double k = use.getKey();
+            if(use.getValue() < 2 || k * Math.abs(step) > MAX_DERIVED_STEP || Math.abs(start * k) > MAX_DERIVED_START){
+                continue;
+            }
+            Temporary derived = hoister.declare(new Expr.Literal(start * k), true, increment.name.getLine());
+            hoister.derived.put(k, derived);
+            hoister.counter = counter;
+            Expr.Assign update = new Expr.Assign(derived.name,
+                    new Expr.Binary(derived.reference(1), next.operator, new Expr.Literal(step * k)));
+            update.depth = 1;
+            update.slot = derived.slot;
+            update.isGlobal = false;
+            variables.bind(update, derived.variable);
+            updates.add(new Stmt.Expression(update));
+        }
+        return updates;
+    }
+
+    /**
+     * @return the constant a local of the block gets declared with, if it is one
+     */
+    private static Double initialValue(Stmt.Block block, int slot){
+        int declarations = 0;
+        for(Stmt statement: block.statements){
+            if(statement instanceof Stmt.Var || statement instanceof Stmt.Fun || statement instanceof Stmt.Class){
+                if(declarations++ == slot){
+                    Expr init = statement instanceof Stmt.Var ? ((Stmt.Var) statement).init : null;
+                    return isInteger(init) ? (Double) ((Expr.Literal) init).value : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isInteger(Expr expr){
+        if(!(expr instanceof Expr.Literal) || !(((Expr.Literal) expr).value instanceof Double)){
+            return false;
+        }
+        double value = (Double) ((Expr.Literal) expr).value;
+        return value == Math.rint(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * What a loop does: whether it calls or declares anything, which variables it assigns and which products
+     * of a variable and a positive integer it computes
+     */
+    private class LoopScan extends Rewriter {
+        private boolean hasCalls = false;
+        private boolean declaresFunctions = false;
+        private final Map<Variables.Variable, Integer> assigned = new HashMap<>();
+        private final Map<Expr.Binary, Double> products = new IdentityHashMap<>();
+        private final Map<Expr.Binary, Variables.Variable> factors = new IdentityHashMap<>();
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            hasCalls = true;
+            return super.visitCallExpr(expr);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            assigned.merge(variables.of(expr), 1, Integer::sum);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            if(expr.operator.getType() == TokenType.STAR){
+                product(expr, expr.left, expr.right);
+                product(expr, expr.right, expr.left);
+            }
+            return super.visitBinaryExpr(expr);
+        }
+
+        private void product(Expr.Binary expr, Expr variable, Expr factor){
+            if(variable instanceof Expr.Var && isInteger(factor) && (Double) ((Expr.Literal) factor).value > 0){
+                products.put(expr, (Double) ((Expr.Literal) factor).value);
+                factors.put(expr, variables.of(variable));
+            }
+        }
+
+        @Override
+        public Stmt visitFunStmt(Stmt.Fun stmt) {
+            declaresFunctions = true;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            declaresFunctions = true;
+            return stmt;
+        }
+    }
+
+    private enum Kind {
+        NONE,   // Can't be hoisted
+        NUMBER, // Hoistable and always a number
+        VALUE   // Hoistable, might be anything
+    }
+
+    /**
+     * A local declared in the block around the loop
+     */
+    private class Temporary {
+        private final Token name;
+        private final int slot;
+        private final Variables.Variable variable;
+
+        Temporary(Token name, int slot, Variables.Variable variable){
+            this.name = name;
+            this.slot = slot;
+            this.variable = variable;
+        }
+
+        Expr.Var reference(int depth){
+            Expr.Var reference = new Expr.Var(name);
+            reference.depth = depth;
+            reference.slot = slot;
+            reference.isGlobal = false;
+            variables.bind(reference, variable);
+            return reference;
+        }
+    }
+
+    /**
+     * Replaces invariant expressions (and products of the counter) in the loop with reads of temporaries
+     */
+    private class Hoister extends Rewriter {
+        private final LoopScan scan;
+        private final int firstSlot;
+        private final boolean topLevel;
+        private final List<Stmt> declarations = new ArrayList<>();
+        private final Map<Double, Temporary> derived = new HashMap<>();
+        private final Map<String, Temporary> hoisted = new HashMap<>(); // Computing the same thing twice is pointless
+        private Variables.Variable counter;
+        private int depth = 0; // Blocks between here and the block around the loop
+
+        Hoister(LoopScan scan, int firstSlot, boolean topLevel){
+            this.scan = scan;
+            this.firstSlot = firstSlot;
+            this.topLevel = topLevel;
+        }
+
+        Temporary declare(Expr init, boolean numeric, int line){
+            Token name = new Token(TokenType.IDENTIFIER, "$loop" + temporaries++, null, line);
+            Temporary temporary = new Temporary(name, firstSlot + declarations.size(), variables.temporary(numeric));
+            declarations.add(new Stmt.Var(name, init));
+            return temporary;
+        }
+
+        @Override
+        void copied(Expr original, Expr copy){
+            variables.copied(original, copy);
+        }
+
+        @Override
+        Expr rewrite(Expr expr){
+            if(scan.products.containsKey(expr) && scan.factors.get(expr) == counter
+                    && derived.containsKey(scan.products.get(expr))){
+                return derived.get(scan.products.get(expr)).reference(depth);
+            }
+            Kind kind = classify(expr);
+            if(kind != Kind.NONE && !(expr instanceof Expr.Literal)
+                    && !(expr instanceof Expr.Var && !((Expr.Var) expr).isGlobal)){
+                Expr relocated = relocate(expr);
+                String key = key(relocated);
+                Temporary temporary = hoisted.get(key);
+                if(temporary == null){
+                    temporary = declare(relocated, kind == Kind.NUMBER, lineOf(expr));
+                    hoisted.put(key, temporary);
+                }
+                return temporary.reference(depth);
+            }
+            return super.rewrite(expr);
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            depth++;
+            try {
+                return super.visitBlockStmt(stmt);
+            } finally {
+                depth--;
+            }
+        }
+
+        private boolean isInvariant(Expr.Var expr){
+            Variables.Variable variable = variables.of(expr);
+            if(variable == null){
+                return false;
+            } else if(expr.isGlobal){
+                // Has to be defined already, and nothing can ever change it
+                return topLevel && definedGlobals.contains(expr.name.getLexeme()) && variable.getAssignments() == 0;
+            } else if(expr.depth < depth){
+                return false; // Declared inside the loop
+            }
+            return !scan.assigned.containsKey(variable) && (!scan.hasCalls || variable.isCaptureFree());
+        }
+
+        private Kind classify(Expr expr){
+            if(expr instanceof Expr.Literal){
+                return ((Expr.Literal) expr).value instanceof Double ? Kind.NUMBER : Kind.VALUE;
+            } else if(expr instanceof Expr.Var){
+                if(!isInvariant((Expr.Var) expr)){
+                    return Kind.NONE;
+                }
+                return variables.of(expr).isNumeric() ? Kind.NUMBER : Kind.VALUE;
+            } else if(expr instanceof Expr.Unary){
+                Expr.Unary unary = (Expr.Unary) expr;
+                Kind right = classify(unary.right);
+                if(unary.operator.getType() == TokenType.MINUS){
+                    return right == Kind.NUMBER ? Kind.NUMBER : Kind.NONE;
+                }
+                return right == Kind.NONE ? Kind.NONE : Kind.VALUE;
+            } else if(expr instanceof Expr.LogicalBinary){
+                Expr.LogicalBinary logical = (Expr.LogicalBinary) expr;
+                boolean pure = classify(logical.left) != Kind.NONE && classify(logical.right) != Kind.NONE;
+                return pure ? Kind.VALUE : Kind.NONE;
+            } else if(expr instanceof Expr.Binary){
+                Expr.Binary binary = (Expr.Binary) expr;
+                Kind left = classify(binary.left);
+                Kind right = classify(binary.right);
+                if(left == Kind.NONE || right == Kind.NONE){
+                    return Kind.NONE;
+                }
+                boolean numbers = left == Kind.NUMBER && right == Kind.NUMBER;
+                switch(binary.operator.getType()){
+                    case EQUAL_EQUAL: case BANG_EQUAL:
+                        return Kind.VALUE;
+                    case PLUS: case MINUS: case STAR:
+                        return numbers ? Kind.NUMBER : Kind.NONE;
+                    case SLASH:
+                        // Can only fail dividing by zero
+                        boolean constant = numbers && binary.right instanceof Expr.Literal;
+                        return constant && (Double) ((Expr.Literal) binary.right).value != 0 ? Kind.NUMBER : Kind.NONE;
+                    case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+                        return numbers ? Kind.VALUE : Kind.NONE;
+                    default:
+                        return Kind.NONE;
+                }
+            }
+            return Kind.NONE;
+        }
+
+        /**
+         * Copies an invariant expression so its locals are relative to the block around the loop
+         */
+        private Expr relocate(Expr expr){
+            if(expr instanceof Expr.Var){
+                Expr.Var var = (Expr.Var) expr;
+                if(var.isGlobal){
+                    return var;
+                }
+                Expr.Var copy = new Expr.Var(var.name);
+                copy.depth = var.depth - depth;
+                copy.slot = var.slot;
+                copy.isGlobal = false;
+                variables.copied(var, copy);
+                return copy;
+            } else if(expr instanceof Expr.Unary){
+                Expr.Unary unary = (Expr.Unary) expr;
+                return new Expr.Unary(unary.operator, relocate(unary.right));
+            } else if(expr instanceof Expr.Binary){
+                Expr.Binary binary = (Expr.Binary) expr;
+                return new Expr.Binary(relocate(binary.left), binary.operator, relocate(binary.right));
+            } else if(expr instanceof Expr.LogicalBinary){
+                Expr.LogicalBinary logical = (Expr.LogicalBinary) expr;
+                return new Expr.LogicalBinary(relocate(logical.left), logical.operator, relocate(logical.right));
+            }
+            return expr; // Literals
+        }
+
+        /**
+         * Same for relocated expressions that compute the same thing
+         */
+        private String key(Expr expr){
+            if(expr instanceof Expr.Var){
+                Expr.Var var = (Expr.Var) expr;
+                return var.isGlobal ? "(global " + var.name.getLexeme() + ")" : "(" + var.depth + " " + var.slot + ")";
+            } else if(expr instanceof Expr.Literal){
+                Object value = ((Expr.Literal) expr).value;
+                return value instanceof String ? "\"" + value + "\"" : String.valueOf(value);
+            } else if(expr instanceof Expr.Unary){
+                Expr.Unary unary = (Expr.Unary) expr;
+                return "(" + unary.operator.getLexeme() + " " + key(unary.right) + ")";
+            } else if(expr instanceof Expr.Binary){
+                Expr.Binary binary = (Expr.Binary) expr;
+                return "(" + binary.operator.getLexeme() + " " + key(binary.left) + " " + key(binary.right) + ")";
+            }
+            Expr.LogicalBinary logical = (Expr.LogicalBinary) expr;
+            return "(" + logical.operator.getLexeme() + " " + key(logical.left) + " " + key(logical.right) + ")";
+        }
+
+        private int lineOf(Expr expr){
+            if(expr instanceof Expr.Var){
+                return ((Expr.Var) expr).name.getLine();
+            } else if(expr instanceof Expr.Unary){
+                return ((Expr.Unary) expr).operator.getLine();
+            } else if(expr instanceof Expr.Binary){
+                return ((Expr.Binary) expr).operator.getLine();
+            } else if(expr instanceof Expr.LogicalBinary){
+                return ((Expr.LogicalBinary) expr).operator.getLine();
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package lox.optimize;
+
+import lox.exception.LoxRuntimeException;
+import lox.execution.InterpreterVisitor;
+import lox.parser.Expr;
+import lox.parser.Stmt;
+import lox.parser.TokenType;
+import lox.runtime.Ops;
+import lox.runtime.Rope;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies the program before it runs: folds constant expressions, prunes branches and loops with constant
+ * conditions, drops statements after a return and gets rid of groupings
+ *
+ * Runs after the Resolver, so a node only gets rebuilt when something under it changed, and then it keeps whatever
+ * the Resolver wrote on the original. Anything that would fail at runtime (like 1 / 0) is left alone so it still
+ * fails at runtime, on the same line
+ */
+public class Optimizer extends Rewriter {
+
+    public List<Stmt> optimize(List<Stmt> program){
+        return rewriteAll(program);
+    }
+
+    @Override
+    List<Stmt> rewriteAll(List<Stmt> statements){
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for(Stmt statement: statements){
+            Stmt result = rewrite(statement);
+            if(result == null || isEmptyBlock(result)){
+                continue;
+            }
+            optimized.add(result);
+            if(result instanceof Stmt.Return){
+                break; // Nothing after it can run
+            }
+        }
+        return optimized;
+    }
+
+    private static boolean isEmptyBlock(Stmt stmt){
+        return stmt instanceof Stmt.Block && ((Stmt.Block) stmt).statements.isEmpty();
+    }
+
+    private static boolean isLiteral(Expr expr){
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr literal){
+        return ((Expr.Literal) literal).value;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if(isLiteral(left) && isLiteral(right)){
+            try {
+                // Literals hold plain Strings, the compilers put them straight into the constant pool
+                Object value = InterpreterVisitor.binary(expr.operator, valueOf(left), valueOf(right));
+                return new Expr.Literal(Rope.flatten(value));
+            } catch (LoxRuntimeException e){
+                // Leave it for the runtime to report
+            }
+        }
+        if(left == expr.left && right == expr.right){
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return rewrite(expr.expression);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if(isLiteral(right)){
+            Object value = valueOf(right);
+            if(expr.operator.getType() == TokenType.BANG){
+                return new Expr.Literal(!Ops.isTruthy(value));
+            } else if(value instanceof Double){
+                return new Expr.Literal(-1 * (double) value); // Exactly what the interpreter does
+            }
+        }
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    /**
+     * 'and'/'or' always produce a boolean, so these only fold when the result doesn't depend on evaluating anything
+     */
+    @Override
+    public Expr visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if(isLiteral(left)){
+            boolean isOr = expr.operator.getType() == TokenType.OR;
+            if(Ops.isTruthy(valueOf(left)) == isOr){
+                return new Expr.Literal(isOr); // Short circuits
+            } else if(isLiteral(right)){
+                return new Expr.Literal(Ops.isTruthy(valueOf(right)));
+            }
+        }
+        if(left == expr.left && right == expr.right){
+            return expr;
+        }
+        return new Expr.LogicalBinary(left, expr.operator, right);
+    }
+
+    /**
+     * Expression statements that are just a constant don't do anything
+     */
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if(isLiteral(expression)){
+            return null;
+        }
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if(isLiteral(condition)){
+            if(Ops.isTruthy(valueOf(condition))){
+                return rewrite(stmt.thenCase);
+            }
+            return stmt.elseCase == null ? null : rewrite(stmt.elseCase);
+        }
+        Stmt thenCase = rewriteRequired(stmt.thenCase);
+        Stmt elseCase = stmt.elseCase == null ? null : rewrite(stmt.elseCase);
+        if(condition == stmt.condition && thenCase == stmt.thenCase && elseCase == stmt.elseCase){
+            return stmt;
+        }
+        return new Stmt.If(condition, thenCase, elseCase);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr cond = rewrite(stmt.cond);
+        if(isLiteral(cond) && !Ops.isTruthy(valueOf(cond))){
+            return null;
+        }
+        Stmt body = rewriteRequired(stmt.body);
+        if(cond == stmt.cond && body == stmt.body){
+            return stmt;
+        }
+        return new Stmt.While(cond, body);
+    }
+}
@@ -0,0 +1,247 @@
+package lox.optimize;
+
+import lox.parser.Expr;
+import lox.parser.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rebuilds the tree bottom up, keeping every node nothing under it changed. Rebuilt nodes keep whatever the Resolver
+ * wrote on the originals. The passes override the nodes they actually simplify
+ */
+abstract class Rewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    Expr rewrite(Expr expr){
+        return expr.accept(this);
+    }
+
+    /**
+     * @return the rewritten statement, or null if it doesn't do anything
+     */
+    Stmt rewrite(Stmt stmt){
+        return stmt.accept(this);
+    }
+
+    List<Stmt> rewriteAll(List<Stmt> statements){
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        for(Stmt statement: statements){
+            Stmt result = rewrite(statement);
+            if(result != null){
+                rewritten.add(result);
+            }
+        }
+        return rewritten;
+    }
+
+    // For places a statement is required
+    Stmt rewriteRequired(Stmt stmt){
+        Stmt result = rewrite(stmt);
+        return result == null ? new Stmt.Block(new ArrayList<>()) : result;
+    }
+
+    /**
+     * Called whenever a node gets rebuilt, for passes that keep track of nodes
+     */
+    void copied(Expr original, Expr copy){
+    }
+
+    static boolean same(List<?> original, List<?> rewritten){
+        if(original.size() != rewritten.size()){
+            return false;
+        }
+        for(int i = 0; i < original.size(); i++){
+            if(original.get(i) != rewritten.get(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if(value == expr.value){
+            return expr;
+        }
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.isGlobal = expr.isGlobal;
+        copied(expr, assign);
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if(left == expr.left && right == expr.right){
+            return expr;
+        }
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        return expression == expr.expression ? expr : new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVarExpr(Expr.Var expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if(left == expr.left && right == expr.right){
+            return expr;
+        }
+        return new Expr.LogicalBinary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.calle);
+        boolean changed = callee != expr.calle;
+        List<Expr> args = new ArrayList<>(expr.args.size());
+        for(Expr arg: expr.args){
+            Expr rewritten = rewrite(arg);
+            changed |= rewritten != arg;
+            args.add(rewritten);
+        }
+        return changed ? new Expr.Call(callee, expr.paren, args) : expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr target = rewrite(expr.target);
+        return target == expr.target ? expr : new Expr.Get(target, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr target = rewrite(expr.target);
+        Expr val = rewrite(expr.val);
+        if(target == expr.target && val == expr.val){
+            return expr;
+        }
+        return new Expr.Set(target, expr.name, val);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if(stmt.init == null){
+            return stmt;
+        }
+        Expr init = rewrite(stmt.init);
+        return init == stmt.init ? stmt : new Stmt.Var(stmt.name, init);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        boolean changed = false;
+        List<Stmt.Fun> methods = new ArrayList<>(stmt.methods.size());
+        for(Stmt.Fun method: stmt.methods){
+            Stmt.Fun rewritten = (Stmt.Fun) rewrite(method);
+            changed |= rewritten != method;
+            methods.add(rewritten);
+        }
+        return changed ? new Stmt.Class(stmt.name, stmt.superclass, methods) : stmt;
+    }
+
+    @Override
+    public Stmt visitFunStmt(Stmt.Fun stmt) {
+        List<Stmt> body = rewriteAll(stmt.body);
+        if(same(stmt.body, body)){
+            return stmt;
+        }
+        Stmt.Fun function = new Stmt.Fun(stmt.name, stmt.params, body);
+        function.slotCount = stmt.slotCount;
+        function.isMethod = stmt.isMethod;
+        function.hasClosures = stmt.hasClosures;
+        return function;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewriteAll(stmt.statements);
+        if(same(stmt.statements, statements)){
+            return stmt;
+        }
+        Stmt.Block block = new Stmt.Block(statements);
+        block.slotCount = stmt.slotCount;
+        return block;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenCase = rewriteRequired(stmt.thenCase);
+        Stmt elseCase = stmt.elseCase == null ? null : rewrite(stmt.elseCase);
+        if(condition == stmt.condition && thenCase == stmt.thenCase && elseCase == stmt.elseCase){
+            return stmt;
+        }
+        return new Stmt.If(condition, thenCase, elseCase);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr cond = rewrite(stmt.cond);
+        Stmt body = rewriteRequired(stmt.body);
+        if(cond == stmt.cond && body == stmt.body){
+            return stmt;
+        }
+        return new Stmt.While(cond, body);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value == null){
+            return stmt;
+        }
+        Expr value = rewrite(stmt.value);
+        if(value == stmt.value){
+            return stmt;
+        }
+        Stmt.Return ret = new Stmt.Return(stmt.ret, value);
+        ret.isTailCall = stmt.isTailCall;
+        return ret;
+    }
+}
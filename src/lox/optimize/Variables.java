@@ -0,0 +1,428 @@
+package lox.optimize;
+
+import lox.parser.Expr;
+import lox.parser.Stmt;
+import lox.parser.TokenType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every variable in the program, worked out from the depth/slot the Resolver wrote on each reference, along with
+ * what gets written to it. That's enough to tell which variables only ever hold numbers, and which ones nothing but
+ * their own function can touch
+ *
+ * When the program comes in a piece at a time, globals are left open: code that hasn't been seen yet can assign them
+ * anything, so they're never numeric and always count as assigned
+ */
+final class Variables implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    static final class Variable {
+        private final Scope scope; // Null for globals and temporaries
+        private final boolean captureFree;
+        // Each write is the set of variables the written value adds up, or null if it might not be a number
+        private final List<Set<Variable>> writes = new ArrayList<>();
+        private boolean numeric = true;
+        private int assignments = 0; // Not counting declarations
+        private boolean open = false; // A global code outside this piece of the program can write to
+
+        private Variable(Scope scope, boolean captureFree){
+            this.scope = scope;
+            this.captureFree = captureFree;
+        }
+
+        boolean isNumeric(){
+            return numeric;
+        }
+
+        int getAssignments(){
+            return open ? Integer.MAX_VALUE : assignments;
+        }
+
+        /**
+         * Nothing declared outside the variable's own function can see it, so calls can't change it
+         */
+        boolean isCaptureFree(){
+            if(scope == null){
+                return captureFree;
+            }
+            return scope.function != null ? !scope.function.hasClosures : !scope.topLevel.hasClosures;
+        }
+    }
+
+    private static final class TopLevel {
+        private boolean hasClosures = false; // A function declared inside a top level block can capture its locals
+    }
+
+    private static final class Scope {
+        private final Stmt.Fun function;
+        private final TopLevel topLevel;
+        private final List<Variable> slots = new ArrayList<>();
+
+        Scope(Stmt.Fun function, TopLevel topLevel){
+            this.function = function;
+            this.topLevel = topLevel;
+        }
+    }
+
+    private final Map<Expr, Variable> references = new IdentityHashMap<>();
+    private final Map<String, Variable> globals = new HashMap<>();
+    private final List<Variable> all = new ArrayList<>();
+    private final List<Scope> scopes = new ArrayList<>();
+    private Stmt.Fun function = null;
+    private TopLevel topLevel = null;
+    private final boolean wholeProgram;
+
+    private Variables(boolean wholeProgram){
+        this.wholeProgram = wholeProgram;
+    }
+
+    static Variables of(List<Stmt> program, boolean wholeProgram){
+        Variables variables = new Variables(wholeProgram);
+        for(Stmt statement: program){
+            variables.topLevel = new TopLevel();
+            statement.accept(variables);
+        }
+        variables.inferNumbers();
+        return variables;
+    }
+
+    /**
+     * @return the variable an Expr.Var or Expr.Assign refers to
+     */
+    Variable of(Expr reference){
+        return references.get(reference);
+    }
+
+    /**
+     * Rewritten nodes refer to the same variable as the originals
+     */
+    void copied(Expr original, Expr copy){
+        Variable variable = references.get(original);
+        if(variable != null){
+            references.put(copy, variable);
+        }
+    }
+
+    void bind(Expr reference, Variable variable){
+        references.put(reference, variable);
+    }
+
+    /**
+     * A local the optimizer introduced, assigned once and never captured
+     */
+    Variable temporary(boolean numeric){
+        Variable variable = new Variable(null, true);
+        variable.numeric = numeric;
+        return variable;
+    }
+
+    Variable global(String name){
+        return globals.computeIfAbsent(name, key -> {
+            Variable variable = add(new Variable(null, false));
+            variable.open = !wholeProgram;
+            return variable;
+        });
+    }
+
+    private Variable add(Variable variable){
+        all.add(variable);
+        return variable;
+    }
+
+    /**
+     * Everything starts out numeric, then anything with a write that might not be a number (or that adds up
+     * something that might not be) loses it, until nothing changes
+     */
+    private void inferNumbers(){
+        for(Variable variable: all){
+            variable.numeric = !variable.open && !variable.writes.isEmpty() && !variable.writes.contains(null);
+        }
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            for(Variable variable: all){
+                if(variable.numeric && !writesNumbers(variable)){
+                    variable.numeric = false;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static boolean writesNumbers(Variable variable){
+        for(Set<Variable> write: variable.writes){
+            for(Variable dependency: write){
+                if(!dependency.numeric){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the variables a value adds up, if it's a number as long as they are, otherwise null
+     */
+    private Set<Variable> numberDependencies(Expr expr){
+        if(expr instanceof Expr.Literal){
+            return ((Expr.Literal) expr).value instanceof Double ? new HashSet<>() : null;
+        } else if(expr instanceof Expr.Grouping){
+            return numberDependencies(((Expr.Grouping) expr).expression);
+        } else if(expr instanceof Expr.Assign){
+            return numberDependencies(((Expr.Assign) expr).value);
+        } else if(expr instanceof Expr.Var){
+            Variable variable = references.get(expr);
+            if(variable == null){
+                return null;
+            }
+            Set<Variable> dependencies = new HashSet<>();
+            dependencies.add(variable);
+            return dependencies;
+        } else if(expr instanceof Expr.Unary){
+            // Negating anything other than a number fails, so what comes out is always a number
+            return ((Expr.Unary) expr).operator.getType() == TokenType.MINUS ? new HashSet<>() : null;
+        } else if(expr instanceof Expr.Binary){
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch(binary.operator.getType()){
+                case MINUS: case STAR: case SLASH:
+                    return new HashSet<>();
+                case PLUS:
+                    Set<Variable> left = numberDependencies(binary.left);
+                    Set<Variable> right = numberDependencies(binary.right);
+                    if(left == null || right == null){
+                        return null;
+                    }
+                    left.addAll(right);
+                    return left;
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    private void beginScope(){
+        scopes.add(new Scope(function, topLevel));
+    }
+
+    private void endScope(){
+        scopes.remove(scopes.size() - 1);
+    }
+
+    /**
+     * Declarations take the next slot of the innermost scope, same as in the Resolver
+     */
+    private Variable declare(String name, Set<Variable> write){
+        Variable variable;
+        if(scopes.isEmpty()){
+            variable = global(name);
+        } else {
+            Scope scope = scopes.get(scopes.size() - 1);
+            variable = add(new Variable(scope, false));
+            scope.slots.add(variable);
+        }
+        variable.writes.add(write);
+        return variable;
+    }
+
+    private Variable resolve(boolean isGlobal, String name, int depth, int slot){
+        if(isGlobal){
+            return global(name);
+        }
+        return scopes.get(scopes.size() - 1 - depth).slots.get(slot);
+    }
+
+    // The Resolver already marks functions that declare closures, but not top level blocks
+    private void markClosure(){
+        if(function == null && !scopes.isEmpty()){
+            topLevel.hasClosures = true;
+        }
+    }
+
+    private void function(Stmt.Fun stmt){
+        markClosure();
+        Stmt.Fun enclosing = function;
+        function = stmt;
+        beginScope();
+        if(stmt.isMethod){
+            declare("this", null);
+        }
+        for(int i = 0; i < stmt.params.size(); i++){
+            declare(stmt.params.get(i).getLexeme(), null);
+        }
+        for(Stmt statement: stmt.body){
+            statement.accept(this);
+        }
+        endScope();
+        function = enclosing;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        Variable variable = resolve(expr.isGlobal, expr.name.getLexeme(), expr.depth, expr.slot);
+        variable.writes.add(numberDependencies(expr.value));
+        variable.assignments++;
+        references.put(expr, variable);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        references.put(expr, resolve(expr.isGlobal, expr.name.getLexeme(), expr.depth, expr.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        expr.calle.accept(this);
+        for(Expr arg: expr.args){
+            arg.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        expr.target.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        expr.target.accept(this);
+        expr.val.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Set<Variable> write;
+        if(stmt.init != null){
+            stmt.init.accept(this);
+            write = numberDependencies(stmt.init);
+        } else {
+            write = null; // nil
+        }
+        declare(stmt.name.getLexeme(), write);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name.getLexeme(), null);
+        if(stmt.superclass != null){
+            stmt.superclass.accept(this);
+            beginScope();
+            declare("super", null);
+        }
+        for(Stmt.Fun method: stmt.methods){
+            function(method);
+        }
+        if(stmt.superclass != null){
+            endScope();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunStmt(Stmt.Fun stmt) {
+        declare(stmt.name.getLexeme(), null);
+        function(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for(Stmt statement: stmt.statements){
+            statement.accept(this);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        stmt.thenCase.accept(this);
+        if(stmt.elseCase != null){
+            stmt.elseCase.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.cond.accept(this);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if(stmt.value != null){
+            stmt.value.accept(this);
+        }
+        return null;
+    }
+}
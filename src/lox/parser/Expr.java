@@ -1,5 +1,7 @@
 package lox.parser;
 
+import lox.execution.PropertyCache;
+
 import java.util.List;
 
 public abstract class Expr implements ASTNode{
@@ -21,7 +23,7 @@ public abstract class Expr implements ASTNode{
     public abstract <R> R accept(Visitor<R> visitor);
 
     public static class Assign extends Expr {
-        Assign(Token name,Expr value) {
+        public Assign(Token name,Expr value) {
             this.name=name;
             this.value=value;
         }
@@ -32,10 +34,15 @@ public abstract class Expr implements ASTNode{
         }
         public final Token name;
         public final Expr value;
+        public int depth = -1;
+        public int slot = -1;
+        public boolean isGlobal = true;
+        public int upvalue = -1;
+        public boolean inCell = false;
     }
 
     public static class Binary extends Expr {
-        Binary(Expr left,Token operator,Expr right) {
+        public Binary(Expr left,Token operator,Expr right) {
             this.left=left;
             this.operator=operator;
             this.right=right;
@@ -48,10 +55,11 @@ public abstract class Expr implements ASTNode{
         public final Expr left;
         public final Token operator;
         public final Expr right;
+        public byte numeric = 0;
     }
 
     public static class Grouping extends Expr {
-        Grouping(Expr expression) {
+        public Grouping(Expr expression) {
             this.expression=expression;
         }
 
@@ -63,7 +71,7 @@ public abstract class Expr implements ASTNode{
     }
 
     public static class Literal extends Expr {
-        Literal(Object value) {
+        public Literal(Object value) {
             this.value=value;
         }
 
@@ -75,7 +83,7 @@ public abstract class Expr implements ASTNode{
     }
 
     public static class Unary extends Expr {
-        Unary(Token operator,Expr right) {
+        public Unary(Token operator,Expr right) {
             this.operator=operator;
             this.right=right;
         }
@@ -89,7 +97,7 @@ public abstract class Expr implements ASTNode{
     }
 
     public static class Var extends Expr {
-        Var(Token name) {
+        public Var(Token name) {
             this.name=name;
         }
 
@@ -98,10 +106,15 @@ public abstract class Expr implements ASTNode{
             return visitor.visitVarExpr(this);
         }
         public final Token name;
+        public int depth = -1;
+        public int slot = -1;
+        public boolean isGlobal = true;
+        public int upvalue = -1;
+        public boolean inCell = false;
     }
 
     public static class LogicalBinary extends Expr {
-        LogicalBinary(Expr left,Token operator,Expr right) {
+        public LogicalBinary(Expr left,Token operator,Expr right) {
             this.left=left;
             this.operator=operator;
             this.right=right;
@@ -117,7 +130,7 @@ public abstract class Expr implements ASTNode{
     }
 
     public static class Call extends Expr {
-        Call(Expr calle, Token paren, List<Expr> args) {
+        public Call(Expr calle, Token paren, List<Expr> args) {
             this.calle=calle;
             this.paren=paren;
             this.args=args;
@@ -133,7 +146,7 @@ public abstract class Expr implements ASTNode{
     }
 
     public static class Get extends Expr {
-        Get(Expr target,Token name) {
+        public Get(Expr target,Token name) {
             this.target=target;
             this.name=name;
         }
@@ -144,10 +157,11 @@ public abstract class Expr implements ASTNode{
         }
         public final Expr target;
         public final Token name;
+        public PropertyCache cache = new PropertyCache();
     }
 
     public static class Set extends Expr {
-        Set(Expr target,Token name,Expr val) {
+        public Set(Expr target,Token name,Expr val) {
             this.target=target;
             this.name=name;
             this.val=val;
@@ -160,10 +174,11 @@ public abstract class Expr implements ASTNode{
         public final Expr target;
         public final Token name;
         public final Expr val;
+        public PropertyCache cache = new PropertyCache();
     }
 
     public static class This extends Expr {
-        This(Token keyword) {
+        public This(Token keyword) {
             this.keyword=keyword;
         }
 
@@ -172,10 +187,15 @@ public abstract class Expr implements ASTNode{
             return visitor.visitThisExpr(this);
         }
         public final Token keyword;
+        public int depth = -1;
+        public int slot = -1;
+        public boolean isGlobal = true;
+        public int upvalue = -1;
+        public boolean inCell = false;
     }
 
     public static class Super extends Expr {
-        Super(Token keyword,Token method) {
+        public Super(Token keyword,Token method) {
             this.keyword=keyword;
             this.method=method;
         }
@@ -186,5 +206,10 @@ public abstract class Expr implements ASTNode{
         }
         public final Token keyword;
         public final Token method;
+        public int depth = -1;
+        public int slot = -1;
+        public boolean isGlobal = true;
+        public int upvalue = -1;
+        public Expr.This receiver = null;
     }
 }
@@ -1,109 +1,237 @@
 package lox.parser;
 
 import lox.Lox;
+import lox.runtime.Symbols;
 
-import java.util.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static lox.parser.TokenType.*;
 
 /**
  *  Scanner/Lexer class
  *
- *  I thought it would be a good idea to make a (mostly) stateless lexer (unlike the one in the book) with just an iterator
- *  I think it turned out to be more messy than what it was worth
+ *  Works straight on chars in a buffer and writes each token into a Tokens stream as parallel array entries, so apart
+ *  from names it hasn't seen before nothing gets allocated per token. Sources that come from a Reader are read a
+ *  buffer at a time, which only has to hold the token being lexed, so how big the source is doesn't matter
  */
 public class Lexer {
-    private static final Map<String, TokenType> keywords;
+    // Keywords are found by a hash of their first and last letters and length, which is perfect for the set we have.
+    // Adding a keyword that collides fails when the class loads, pick new multipliers in keywordHash if that happens
+    private static final int KEYWORD_MASK = 31;
+    private static final char[][] keywordText = new char[KEYWORD_MASK + 1][];
+    private static final TokenType[] keywordTypes = new TokenType[KEYWORD_MASK + 1];
 
     static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
-
-
-    public static List<Token> parseTokens(String script) {
-        CharacterIterator it = new CharacterIterator(script);
-        List<Token> tokens = new ArrayList<>();
-        while (it.hasNext()){
-            parseNextToken(tokens, it);
-        }
-        tokens.add(new Token(EOF, "", null, it.line()));
+        keyword("and",    AND);
+        keyword("class",  CLASS);
+        keyword("else",   ELSE);
+        keyword("false",  FALSE);
+        keyword("for",    FOR);
+        keyword("fun",    FUN);
+        keyword("if",     IF);
+        keyword("nil",    NIL);
+        keyword("or",     OR);
+        keyword("print",  PRINT);
+        keyword("return", RETURN);
+        keyword("super",  SUPER);
+        keyword("this",   THIS);
+        keyword("true",   TRUE);
+        keyword("var",    VAR);
+        keyword("while",  WHILE);
+    }
+
+    private static void keyword(String text, TokenType type){
+        int hash = keywordHash(text.charAt(0), text.charAt(text.length() - 1), text.length());
+        if(keywordText[hash] != null){
+            throw new IllegalStateException("Keywords '" + text + "' and '" + new String(keywordText[hash]) + "' hash the same");
+        }
+        keywordText[hash] = text.toCharArray();
+        keywordTypes[hash] = type;
+    }
+
+    private static int keywordHash(char first, char last, int length){
+        return (first + 5 * last + length) & KEYWORD_MASK;
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Reader reader; // null if the whole source is already in the buffer
+    private boolean exhausted = false;
+    private boolean finished = false; // EOF was added
+    private char[] source;
+    private int end; // Chars in the buffer
+    private int pos = 0;
+    private int mark = 0; // Start of the token being lexed, a refill keeps everything from here on
+    private int line = 1;
+    private final Tokens tokens;
+
+    private Lexer(Reader reader, char[] source, int end, int capacity){
+        this.reader = reader;
+        this.source = source;
+        this.end = end;
+        this.tokens = new Tokens(capacity);
+    }
+
+    public static Tokens parseTokens(String script) {
+        char[] source = script.toCharArray();
+        return parseTokens(source, source.length);
+    }
+
+    /**
+     * Lexes the first length chars of the array
+     */
+    public static Tokens parseTokens(char[] source, int length) {
+        // Real code averages a bit over four chars per token
+        return new Lexer(null, source, length, length / 4 + 16).parseTokens();
+    }
+
+    /**
+     * Lexes everything the reader has, a buffer at a time. Decoding is up to the reader
+     */
+    public static Tokens parseTokens(Reader reader) throws IOException {
+        try {
+            return new Lexer(reader, new char[BUFFER_SIZE], 0, BUFFER_SIZE / 4).parseTokens();
+        } catch (UncheckedIOException e){
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Lexes the reader as the Parser gets to each token, instead of all up front, so a Parser that releases what it's
+     * done with only ever holds a declaration's worth of tokens. IOExceptions come out of the Parser unchecked
+     */
+    public static Tokens stream(Reader reader) {
+        Lexer lexer = new Lexer(reader, new char[BUFFER_SIZE], 0, 256);
+        lexer.tokens.streamFrom(lexer);
+        return lexer.tokens;
+    }
+
+    private Tokens parseTokens() {
+        while(lexToken()){
+            // Until the EOF
+        }
         return tokens;
     }
 
-    private static void parseNextToken(List<Token> tokens, CharacterIterator it) {
-        int start = it.index();
-        char c = it.next();
+    /**
+     * Lexes until there's at least one more token, which is the EOF at the end of the source
+     * @return false if the EOF was already added
+     */
+    boolean lexToken() {
+        if(finished){
+            return false;
+        }
+        int count = tokens.size();
+        while(tokens.size() == count){
+            if(more()){
+                parseNextToken();
+            } else {
+                tokens.add(EOF, line, -1, null);
+                finished = true;
+            }
+        }
+        return true;
+    }
+
+    private boolean more() {
+        return pos < end || refill();
+    }
+
+    /**
+     * Moves the current token to the front of the buffer and reads in more after it
+     * @return false at the end of the source
+     */
+    private boolean refill() {
+        if(reader == null || exhausted){
+            return false;
+        }
+        if(mark > 0){
+            System.arraycopy(source, mark, source, 0, end - mark);
+            end -= mark;
+            pos -= mark;
+            mark = 0;
+        } else if(end == source.length){
+            source = Arrays.copyOf(source, source.length * 2); // One token filled the whole buffer
+        }
+        int read;
+        try {
+            read = reader.read(source, end, source.length - end);
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+        if(read == -1){
+            exhausted = true;
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    private void parseNextToken() {
+        mark = pos;
+        char c = source[pos++];
         switch (c) {
-            case '(': addToken(tokens, LEFT_PAREN, start, it); break;
-            case ')': addToken(tokens, RIGHT_PAREN,  start, it); break;
-            case '{': addToken(tokens, LEFT_BRACE,  start, it); break;
-            case '}': addToken(tokens, RIGHT_BRACE,  start, it); break;
-            case ',': addToken(tokens, COMMA,  start, it); break;
-            case '.': addToken(tokens, DOT,  start, it); break;
-            case '-': addToken(tokens, MINUS,  start, it); break;
-            case '+': addToken(tokens, PLUS,  start, it); break;
-            case ';': addToken(tokens, SEMICOLON,  start, it); break;
-            case '*': addToken(tokens, STAR,  start, it); break;
-            case '!': addToken(tokens, matchNext(it, '=') ? BANG_EQUAL : BANG,  start, it); break;
-            case '=': addToken(tokens, matchNext(it, '=') ? EQUAL_EQUAL : EQUAL,  start, it); break;
-            case '<': addToken(tokens, matchNext(it, '=') ? LESS_EQUAL : LESS,  start, it); break;
-            case '>': addToken(tokens, matchNext(it, '=') ? GREATER_EQUAL : GREATER,  start, it); break;
+            case '(': addToken(LEFT_PAREN); break;
+            case ')': addToken(RIGHT_PAREN); break;
+            case '{': addToken(LEFT_BRACE); break;
+            case '}': addToken(RIGHT_BRACE); break;
+            case ',': addToken(COMMA); break;
+            case '.': addToken(DOT); break;
+            case '-': addToken(MINUS); break;
+            case '+': addToken(PLUS); break;
+            case ';': addToken(SEMICOLON); break;
+            case '*': addToken(STAR); break;
+            case '!': addToken(matchNext('=') ? BANG_EQUAL : BANG); break;
+            case '=': addToken(matchNext('=') ? EQUAL_EQUAL : EQUAL); break;
+            case '<': addToken(matchNext('=') ? LESS_EQUAL : LESS); break;
+            case '>': addToken(matchNext('=') ? GREATER_EQUAL : GREATER); break;
             case '/': // special handling because it comments out the entire line if we have a double slash
-                if(matchNext(it,'/')) {
-                    while (it.hasNext() && it.next() != '\n') ;
-                    // no prev because we want to consume the newline char as well
-                } else if(matchNext(it, '*')){
+                if(matchNext('/')) {
+                    // Leave the newline for the main loop to count. Comments aren't tokens, so none of it has to
+                    // survive a refill
+                    while (more() && source[pos] != '\n') mark = ++pos;
+                } else if(matchNext('*')){
                     // C-style multiline comments
-                    parseMultilineComment(it);
-                }else{
-                    addToken(tokens, SLASH, start, it);
+                    parseMultilineComment();
+                } else {
+                    addToken(SLASH);
                 }
+                break;
+            case '\n':
+                line++;
+                break;
             case ' ':
             case '\r':
             case '\t':
-            case '\n':
                 // Ignore whitespace.
                 break;
-            case '"': parseString(tokens, it); break;
+            case '"': parseString(); break;
             default:
                 if(isDigit(c)) {
-                    parseNumber(tokens, it);
+                    parseNumber();
                 } else if (isAlpha(c)) {
-                    parseIdentifier(tokens, it);
+                    parseIdentifier();
                 } else {
-                    Lox.error(it.line(), "Unexpected character: " + c);
+                    Lox.error(line, "Unexpected character: " + c);
                 }
                 break;
         }
     }
 
-    private static void parseMultilineComment(CharacterIterator it) {
-        while(it.hasNext()){
-            if(it.next() == '*'){
-                if(it.peek() == '/'){
-                    it.next();
-                    return;
-                }
+    private void parseMultilineComment() {
+        while(more()){
+            char c = source[pos++];
+            mark = pos;
+            if(c == '\n'){
+                line++;
+            } else if(c == '*' && matchNext('/')){
+                return;
             }
         }
-        Lox.error(it.line(), "Unterminated multiline comment");
-        return;
+        Lox.error(line, "Unterminated multiline comment");
     }
 
     private static boolean isAlpha(char c) {
@@ -116,124 +244,78 @@ public class Lexer {
         return isAlpha(c) || isDigit(c);
     }
 
-    private static void parseIdentifier(List<Token> tokens, CharacterIterator it) {
-        int start = it.index() - 1; // -1 to get the first letter
-        while(it.hasNext() && isAlphaNumeric(it.peek())) it.next();
-        String identifier = it.getFrom(start);
-        if(keywords.keySet().contains(identifier)){
-            addToken(tokens, keywords.get(identifier), start, it);
-        }else {
-            addToken(tokens, IDENTIFIER, identifier, start, it);
+    private void parseIdentifier() {
+        while(more() && isAlphaNumeric(source[pos])) pos++;
+        int length = pos - mark;
+        TokenType keyword = keyword(mark, length);
+        if(keyword != null){
+            addToken(keyword);
+        } else {
+            tokens.add(IDENTIFIER, line, Symbols.intern(source, mark, length), null);
         }
     }
 
-    private static void parseNumber(List<Token> tokens, CharacterIterator it) {
-        int start = it.index() - 1; // -1 to get the first digit
-        while(it.hasNext() && isDigit(it.peek())) it.next();
+    /**
+     * @return the keyword spelled by the chars, or null if they're a plain identifier
+     */
+    private TokenType keyword(int start, int length) {
+        int hash = keywordHash(source[start], source[start + length - 1], length);
+        char[] text = keywordText[hash];
+        if(text == null || text.length != length){
+            return null;
+        }
+        for(int i = 0; i < length; i++){
+            if(text[i] != source[start + i]){
+                return null;
+            }
+        }
+        return keywordTypes[hash];
+    }
+
+    private void parseNumber() {
+        while(more() && isDigit(source[pos])) pos++;
 
         // See if it's a decimal
-        if(it.hasNext() && it.peek() == '.'){
-            it.next();
-            if(it.hasNext() && isDigit(it.peek())){
-                while(it.hasNext() && isDigit(it.peek())) it.next();
-            }
+        if(more() && source[pos] == '.'){
+            pos++;
+            while(more() && isDigit(source[pos])) pos++;
         }
 
-        addToken(tokens, NUMBER, Double.parseDouble(it.getFrom(start)), start, it);
+        addLiteral(NUMBER);
     }
 
     private static boolean isDigit(char c) {
         return c>= '0' && c<='9';
     }
 
-    private static void parseString(List<Token> tokens, CharacterIterator it) {
-        int start = it.index() - 1; // -1 to get the first "
-        int startLine = it.line();
-        boolean ended = false;
+    private void parseString() {
+        int startLine = line;
         // Note: this means we support multi-line strings
-        while(it.hasNext()){
-            char c = it.next();
+        while(more()){
+            char c = source[pos++];
             if(c == '"') {
-                ended = true;
-                break;
+                addLiteral(STRING);
+                return;
+            } else if(c == '\n'){
+                line++;
             }
         }
-
-        if(!ended){
-            Lox.error(it.line(), "Unterminated string starting from line " + startLine);
-            return;
-        }
-
-        String value = it.getFrom(start);
-        addToken(tokens, STRING,
-                value.substring(1, value.length() - 1), // trim the surrounding quotes
-                start, it);
-    }
-
-    private static void addToken(List<Token> tokens, TokenType type, int start, CharacterIterator it){
-        addToken(tokens, type, null, start, it);
+        Lox.error(line, "Unterminated string starting from line " + startLine);
     }
 
-    private static void addToken(List<Token> tokens, TokenType type, Object lit, int start, CharacterIterator it){
-        addToken(tokens, type, lit, it.getFrom(start), it.line());
+    private void addToken(TokenType type){
+        tokens.add(type, line, -1, null);
     }
 
-    private static void addToken(List<Token> tokens, TokenType type, Object lit, String text, int line){
-        tokens.add(new Token(type, text, lit, line));
+    private void addLiteral(TokenType type){
+        tokens.add(type, line, -1, new String(source, mark, pos - mark));
     }
 
-    private static boolean matchNext(CharacterIterator it, char expected){
-        if(!it.hasNext()) return false;
-        if(it.next() != expected){
-            it.prev(); // Unconsume if we were wrong
-            return false;
+    private boolean matchNext(char expected){
+        if(more() && source[pos] == expected){
+            pos++;
+            return true;
         }
-        return true;
-    }
-}
-
-class CharacterIterator implements Iterator<Character> {
-
-    private final String str;
-    private int pos = 0;
-    private int line = 1;
-
-    public CharacterIterator(String str) {
-        this.str = str;
-    }
-
-    public boolean hasNext() {
-        return pos < str.length();
-    }
-
-    public Character next() {
-        char c =  str.charAt(pos++);
-        if(c == '\n') line++;
-        return c;
-    }
-
-    public void prev(){
-        pos--;
-    }
-
-    public int index(){
-        return pos;
-    }
-
-    public int line(){
-        return line;
-    }
-
-    public void remove() {
-        throw new UnsupportedOperationException();
-    }
-
-    public String getFrom(int start) {
-        return str.substring(start, pos);
-    }
-
-    public char peek() {
-        char c =  str.charAt(pos);
-        return c;
+        return false;
     }
 }
@@ -63,17 +63,18 @@ import java.util.List;
  * Recursive descent parser
  */
 public class Parser {
-    private final List<Token> tokens;
+    private final Tokens tokens;
     private int current = 0;
 
-    public Parser(List<Token> tokens) {
+    public Parser(Tokens tokens) {
         this.tokens = tokens;
     }
 
     private boolean isAtEnd(){
-        return peek().getType() == TokenType.EOF;
+        return tokens.type(current) == TokenType.EOF;
     }
 
+    // previous and peek build a new Token each time, only call them for tokens that end up in the tree or an error
     private Token previous(){
         return tokens.get(current - 1);
     }
@@ -82,14 +83,13 @@ public class Parser {
         return tokens.get(current);
     }
 
-    private Token advance(){
+    private void advance(){
         if(!isAtEnd()) current ++;
-        return previous();
     }
 
     private boolean check(TokenType type){
         if(isAtEnd()) return false;
-        return peek().getType() == type;
+        return tokens.type(current) == type;
     }
 
     private boolean match(TokenType... types){
@@ -114,7 +114,18 @@ public class Parser {
      * @return
      */
     private Token consume(TokenType next, String errorMsg){
-        if(check(next)) return advance();
+        expect(next, errorMsg);
+        return previous();
+    }
+
+    /**
+     * consume, for tokens the tree doesn't keep
+     */
+    private void expect(TokenType next, String errorMsg){
+        if(check(next)){
+            advance();
+            return;
+        }
         throw error(peek(), errorMsg);
     }
 
@@ -125,8 +136,8 @@ public class Parser {
     private void synchronize(){
         advance(); // Drop the bad token
         while(!isAtEnd()) {
-            if (previous().getType() == TokenType.SEMICOLON) return;
-            switch (peek().getType()) {
+            if (tokens.type(current - 1) == TokenType.SEMICOLON) return;
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -137,6 +148,7 @@ public class Parser {
                 case RETURN:
                     return;
             }
+            advance();
         }
     }
 
@@ -148,6 +160,21 @@ public class Parser {
         return statements;
     }
 
+    /**
+     * Parses just the next top level declaration, so it can run before the rest of the program is even read. Tokens
+     * before it are released, so this can't be mixed with parse()
+     * @return null if it had a syntax error
+     */
+    public Stmt nextDeclaration(){
+        Stmt declaration = declaration();
+        tokens.release(current - 1);
+        return declaration;
+    }
+
+    public boolean isDone(){
+        return isAtEnd();
+    }
+
     public ASTNode parseREPL(){
         Stmt statement = declaration();
         if(statement == null){
@@ -183,7 +210,7 @@ public class Parser {
         if(match(TokenType.EQUAL)){
             init = expression();
         }
-        consume(TokenType.SEMICOLON, "Expected ';' after variable declaration");
+        expect(TokenType.SEMICOLON, "Expected ';' after variable declaration");
         return new Stmt.Var(name, init);
     }
 
@@ -192,22 +219,22 @@ public class Parser {
 
         Expr.Var superclass = null;
         if(match(TokenType.LESS)){
-            consume(TokenType.IDENTIFIER, "Expected superclass name after '>'.");
+            expect(TokenType.IDENTIFIER, "Expected superclass name after '>'.");
             superclass = new Expr.Var(previous());
         }
 
-        consume(TokenType.LEFT_BRACE, "Expected '{' before class body");
+        expect(TokenType.LEFT_BRACE, "Expected '{' before class body");
         List<Stmt.Fun> methods = new ArrayList<>();
         while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()){
             methods.add(function("method"));
         }
-        consume(TokenType.RIGHT_BRACE, "Expected '}' after class body");
+        expect(TokenType.RIGHT_BRACE, "Expected '}' after class body");
         return new Stmt.Class(name, superclass, methods);
     }
 
     private Stmt.Fun function(String kind){
         Token name = consume(TokenType.IDENTIFIER, "Expected " + kind + " name.");
-        consume(TokenType.LEFT_PAREN, "Expected ( after " + kind + " name");
+        expect(TokenType.LEFT_PAREN, "Expected ( after " + kind + " name");
         List<Token> params = new ArrayList<>();
         if(!check(TokenType.RIGHT_PAREN)){
             do {
@@ -218,8 +245,8 @@ public class Parser {
                 params.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
             } while (match(TokenType.COMMA));
         }
-        consume(TokenType.RIGHT_PAREN, "Expected ')' after parameters");
-        consume(TokenType.LEFT_BRACE, "Expected '{' before " + kind + " body");
+        expect(TokenType.RIGHT_PAREN, "Expected ')' after parameters");
+        expect(TokenType.LEFT_BRACE, "Expected '{' before " + kind + " body");
         List<Stmt> body = blockStatement().statements;
         return new Stmt.Fun(name, params, body);
     }
@@ -245,14 +272,14 @@ public class Parser {
 
     private Stmt printStatement(){
         Expr expression = expression();
-        consume(TokenType.SEMICOLON, "Expected ';' after expression.");
+        expect(TokenType.SEMICOLON, "Expected ';' after expression.");
         return new Stmt.Print(expression);
     }
 
     private Stmt ifStatement(){
-        consume(TokenType.LEFT_PAREN, "Expected '(' after keyword 'if'.");
+        expect(TokenType.LEFT_PAREN, "Expected '(' after keyword 'if'.");
         Expr cond = expression();
-        consume(TokenType.RIGHT_PAREN, "Expected ')' after if condition.");
+        expect(TokenType.RIGHT_PAREN, "Expected ')' after if condition.");
         Stmt thenCase = statement();
         if(match(TokenType.ELSE)){
             Stmt elseCase = statement();
@@ -263,16 +290,16 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
-        consume(TokenType.LEFT_PAREN, "Expected '(' after keyword 'while'.");
+        expect(TokenType.LEFT_PAREN, "Expected '(' after keyword 'while'.");
         Expr cond = expression();
-        consume(TokenType.RIGHT_PAREN, "Expected ')' after while condition.");
+        expect(TokenType.RIGHT_PAREN, "Expected ')' after while condition.");
         Stmt body = statement();
         return new Stmt.While(cond,body);
     }
 
     // First purely sugar statement
     private Stmt forStatement() {
-        consume(TokenType.LEFT_PAREN, "Expected '(' after keyword 'for'.");
+        expect(TokenType.LEFT_PAREN, "Expected '(' after keyword 'for'.");
         Stmt initializer = null;
         if(!match(TokenType.SEMICOLON)){
             if(match(TokenType.VAR)){
@@ -285,7 +312,7 @@ public class Parser {
         Expr condition = null;
         if(!match(TokenType.SEMICOLON)){
             condition = expression();
-            consume(TokenType.SEMICOLON, "Expected ';' after for loop condition");
+            expect(TokenType.SEMICOLON, "Expected ';' after for loop condition");
         }
 
         Expr increment = null;
@@ -293,7 +320,7 @@ public class Parser {
             increment = expression();
         }
 
-        consume(TokenType.RIGHT_PAREN, "Expected ')' after for loop clauses");
+        expect(TokenType.RIGHT_PAREN, "Expected ')' after for loop clauses");
 
         Stmt body = statement();
         Stmt full = body;
@@ -320,14 +347,14 @@ public class Parser {
             return new Stmt.Return(keyword, null);
         } else {
             Expr value = expression();
-            consume(TokenType.SEMICOLON, "Expected ';' after return value");
+            expect(TokenType.SEMICOLON, "Expected ';' after return value");
             return new Stmt.Return(keyword, value);
         }
     }
 
     private Stmt expressionStatement() {
         Expr expression = expression();
-        consume(TokenType.SEMICOLON, "Expected ';' after expression.");
+        expect(TokenType.SEMICOLON, "Expected ';' after expression.");
         return new Stmt.Expression(expression);
     }
 
@@ -336,7 +363,7 @@ public class Parser {
         while(!check(TokenType.RIGHT_BRACE) && !isAtEnd()){
             statements.add(declaration());
         }
-        consume(TokenType.RIGHT_BRACE, "Expected '}' after block.");
+        expect(TokenType.RIGHT_BRACE, "Expected '}' after block.");
         return new Stmt.Block(statements);
     }
 
@@ -489,13 +516,13 @@ public class Parser {
             return new Expr.Literal(previous().getLiteral());
         } else if(match(TokenType.LEFT_PAREN)) {
             Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Missing ')' after expression");
+            expect(TokenType.RIGHT_PAREN, "Missing ')' after expression");
             return new Expr.Grouping(expr);
         } else if(match(TokenType.THIS)) {
             return new Expr.This(previous());
         } else if(match(TokenType.SUPER)) {
             Token keyword = previous();
-            consume(TokenType.DOT, "Expected '.' before superclass method name");
+            expect(TokenType.DOT, "Expected '.' before superclass method name");
             Token method = consume(TokenType.IDENTIFIER, "Expected method name after 'super'");
             return new Expr.Super(keyword, method);
         } else if(match(TokenType.IDENTIFIER)){
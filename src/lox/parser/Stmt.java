@@ -1,5 +1,8 @@
 package lox.parser;
 
+import lox.execution.Tier;
+import lox.semantic.Capture;
+
 import java.util.List;
 
 public abstract class Stmt implements ASTNode{
@@ -19,7 +22,7 @@ public abstract class Stmt implements ASTNode{
 
     // Statement defining a variable
     public static class Var extends Stmt {
-        Var(Token name,Expr init) {
+        public Var(Token name,Expr init) {
             this.name=name;
             this.init=init;
         }
@@ -30,10 +33,11 @@ public abstract class Stmt implements ASTNode{
         }
         public final Token name;
         public final Expr init;
+        public boolean isCaptured = false;
     }
 
     public static class Class extends Stmt {
-        Class(Token name,Expr.Var superclass,List<Stmt.Fun> methods) {
+        public Class(Token name,Expr.Var superclass,List<Stmt.Fun> methods) {
             this.name=name;
             this.superclass=superclass;
             this.methods=methods;
@@ -46,10 +50,11 @@ public abstract class Stmt implements ASTNode{
         public final Token name;
         public final Expr.Var superclass;
         public final List<Stmt.Fun> methods;
+        public boolean isCaptured = false;
     }
 
     public static class Fun extends Stmt {
-        Fun(Token name,List<Token> params,List<Stmt> body) {
+        public Fun(Token name,List<Token> params,List<Stmt> body) {
             this.name=name;
             this.params=params;
             this.body=body;
@@ -62,10 +67,17 @@ public abstract class Stmt implements ASTNode{
         public final Token name;
         public final List<Token> params;
         public final List<Stmt> body;
+        public int slotCount = 0;
+        public boolean isMethod = false;
+        public boolean hasClosures = false;
+        public Tier tier = new Tier();
+        public boolean isCaptured = false;
+        public boolean[] capturedSlots = null;
+        public Capture[] captures = Capture.NONE;
     }
 
     public static class Expression extends Stmt {
-        Expression(Expr expression) {
+        public Expression(Expr expression) {
             this.expression=expression;
         }
 
@@ -77,7 +89,7 @@ public abstract class Stmt implements ASTNode{
     }
 
     public static class Print extends Stmt {
-        Print(Expr expression) {
+        public Print(Expr expression) {
             this.expression=expression;
         }
 
@@ -89,7 +101,7 @@ public abstract class Stmt implements ASTNode{
     }
 
     public static class Block extends Stmt {
-        Block(List<Stmt> statements) {
+        public Block(List<Stmt> statements) {
             this.statements=statements;
         }
 
@@ -98,10 +110,13 @@ public abstract class Stmt implements ASTNode{
             return visitor.visitBlockStmt(this);
         }
         public final List<Stmt> statements;
+        public int slotCount = 0;
+        public boolean sharesEnv = false;
+        public int firstSlot = 0;
     }
 
     public static class If extends Stmt {
-        If(Expr condition,Stmt thenCase,Stmt elseCase) {
+        public If(Expr condition,Stmt thenCase,Stmt elseCase) {
             this.condition=condition;
             this.thenCase=thenCase;
             this.elseCase=elseCase;
@@ -117,7 +132,7 @@ public abstract class Stmt implements ASTNode{
     }
 
     public static class While extends Stmt {
-        While(Expr cond,Stmt body) {
+        public While(Expr cond,Stmt body) {
             this.cond=cond;
             this.body=body;
         }
@@ -128,10 +143,11 @@ public abstract class Stmt implements ASTNode{
         }
         public final Expr cond;
         public final Stmt body;
+        public Tier tier = new Tier();
     }
 
     public static class Return extends Stmt {
-        Return(Token ret,Expr value) {
+        public Return(Token ret,Expr value) {
             this.ret=ret;
             this.value=value;
         }
@@ -142,5 +158,6 @@ public abstract class Stmt implements ASTNode{
         }
         public final Token ret;
         public final Expr value;
+        public boolean isTailCall = false;
     }
 }
@@ -1,16 +1,28 @@
 package lox.parser;
 
+import lox.runtime.Symbols;
+
 public class Token {
     private final TokenType type;
     private final String lexeme;
     private final Object literal;
     private final int line;
+    private final int symbol; // Symbols id of the name, -1 for tokens that aren't names
 
     public Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, isName(type) ? Symbols.intern(lexeme) : -1);
+    }
+
+    public Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
+    }
+
+    private static boolean isName(TokenType type){
+        return type == TokenType.IDENTIFIER || type == TokenType.THIS || type == TokenType.SUPER;
     }
 
     @Override
@@ -38,4 +50,8 @@ public class Token {
     public int getLine() {
         return line;
     }
+
+    public int getSymbol() {
+        return symbol;
+    }
 }
@@ -0,0 +1,115 @@
+package lox.parser;
+
+import lox.runtime.Symbols;
+
+import java.util.Arrays;
+
+/**
+ * What the Lexer hands the Parser: every token's type, line and text in parallel arrays, rather than a Token object
+ * each. The Parser walks it by index and only builds Tokens for the ones it keeps in the tree or reports errors at
+ *
+ * Only literals keep text of their own. Identifiers are a Symbols id and everything else is spelled the same every
+ * time, so nothing here points back into the source and the Lexer is free to reuse its buffer
+ *
+ * A streamed Tokens starts out empty and gets lexed as the Parser asks for tokens. Indexes always count from the start
+ * of the source, even after the tokens in front have been released
+ */
+public final class Tokens {
+    private TokenType[] types;
+    private int[] lines;
+    private int[] symbols; // Symbols id for identifiers, -1 for everything else
+    private String[] texts; // Lexeme of strings and numbers, null for everything else
+    private int size = 0;
+    private int offset = 0; // Index of the first token still held
+    private Lexer lexer; // Lexes more tokens on demand, null once the EOF is in
+
+    Tokens(int capacity){
+        this.types = new TokenType[capacity];
+        this.lines = new int[capacity];
+        this.symbols = new int[capacity];
+        this.texts = new String[capacity];
+    }
+
+    void add(TokenType type, int line, int symbol, String text){
+        if(size == types.length){
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+        }
+        types[size] = type;
+        lines[size] = line;
+        symbols[size] = symbol;
+        texts[size] = text;
+        size++;
+    }
+
+    void streamFrom(Lexer lexer){
+        this.lexer = lexer;
+    }
+
+    /**
+     * Tokens lexed so far, counting released ones
+     */
+    public int size(){
+        return offset + size;
+    }
+
+    public TokenType type(int index){
+        return types[at(index)];
+    }
+
+    public int line(int index){
+        return lines[at(index)];
+    }
+
+    private int at(int index){
+        int i = index - offset;
+        while(i >= size && lexer != null){
+            if(!lexer.lexToken()){
+                lexer = null;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Lets go of every token before the index, the Parser won't look at them again
+     */
+    void release(int index){
+        int drop = index - offset;
+        if(drop <= 0){
+            return;
+        }
+        int kept = size - drop;
+        System.arraycopy(types, drop, types, 0, kept);
+        System.arraycopy(lines, drop, lines, 0, kept);
+        System.arraycopy(symbols, drop, symbols, 0, kept);
+        System.arraycopy(texts, drop, texts, 0, kept);
+        Arrays.fill(texts, kept, size, null);
+        size = kept;
+        offset = index;
+    }
+
+    /**
+     * Builds the Token at the index, with its lexeme and literal
+     */
+    public Token get(int index){
+        index = at(index);
+        TokenType type = types[index];
+        switch(type){
+            case IDENTIFIER:
+                String name = Symbols.name(symbols[index]);
+                return new Token(type, name, name, lines[index], symbols[index]);
+            case NUMBER:
+                return new Token(type, texts[index], Double.parseDouble(texts[index]), lines[index]);
+            case STRING:
+                // The literal drops the surrounding quotes
+                String text = texts[index];
+                return new Token(type, text, text.substring(1, text.length() - 1), lines[index]);
+            default:
+                return new Token(type, type.getText(), null, lines[index]);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package lox.runtime;
+
+/**
+ * Anything compiled code can call. Ops checks the arity before calling, so each callable only has to implement the
+ * entry point matching its own arity (callN for more than 4 arguments)
+ */
+public abstract class Callable {
+    public abstract int arity();
+
+    public Object call0(){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object call1(Object a){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object call2(Object a, Object b){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object call3(Object a, Object b, Object c){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object call4(Object a, Object b, Object c, Object d){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object callN(Object[] args){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+}
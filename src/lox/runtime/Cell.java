@@ -0,0 +1,14 @@
+package lox.runtime;
+
+/**
+ * Holds a local that a closure captured, shared between the function that declared it and every closure using it
+ */
+public final class Cell {
+    public Object value;
+
+    public static Cell of(Object value){
+        Cell cell = new Cell();
+        cell.value = value;
+        return cell;
+    }
+}
@@ -0,0 +1,75 @@
+package lox.runtime;
+
+/**
+ * The parts of a class that don't depend on how its methods run, shared by LoxClass and RuntimeClass: the method table
+ * with inherited methods flattened in, the initializer, and the Shape new instances start from. M is the engine's
+ * method type
+ */
+public final class ClassLayout<M> {
+    public static final String INIT = "init";
+    private static final int INIT_SYMBOL = Symbols.intern(INIT);
+
+    private final String name;
+    private final SymbolMap<M> methods; // Inherited methods included, so lookups never walk the superclasses
+    private final M initializer; // null if the class has no init
+    private final Shape rootShape = new Shape();
+    private int expectedFields = 0; // Most fields an instance has had so far, new instances start with room for this many
+
+    /**
+     * The superclass's table is already flattened, so copying it and then adding our own methods on top gives the
+     * full table with overrides winning
+     */
+    public ClassLayout(String name, ClassLayout<M> superclass, SymbolMap<M> methods){
+        this.name = name;
+        SymbolMap<M> table = superclass == null ? new SymbolMap<>() : new SymbolMap<>(superclass.methods);
+        table.putAll(methods);
+        this.methods = table;
+        this.initializer = table.get(INIT_SYMBOL);
+    }
+
+    /**
+     * The method a call to the class runs. Whatever its body returns, calling it gives back the instance
+     */
+    public static boolean isInitializer(String methodName){
+        return INIT.equals(methodName);
+    }
+
+    /**
+     * @return the method, or null if neither this class nor any superclass has it
+     */
+    public M getMethod(int symbol){
+        return methods.get(symbol);
+    }
+
+    public boolean containsMethod(int symbol){
+        return methods.containsKey(symbol);
+    }
+
+    public M getInitializer(){
+        return initializer;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    Shape getRootShape(){
+        return rootShape;
+    }
+
+    int getExpectedFields(){
+        return expectedFields;
+    }
+
+    void expectFields(int count){
+        expectedFields = Math.max(expectedFields, count);
+    }
+
+    public static String undefinedProperty(String name){
+        return "Undefined property '" + name + "'.";
+    }
+
+    public static String notAClass(Object superclass){
+        return "Cannot inherit from a non-class object: '" + superclass + "'.";
+    }
+}
@@ -0,0 +1,20 @@
+package lox.runtime;
+
+public final class Clock extends Callable {
+    @Override
+    public int arity() {
+        return 0;
+    }
+
+    @Override
+    public Object call0() {
+        return (double) System.nanoTime() / (Math.pow(10,9));
+    }
+
+    @Override
+    public String toString() {
+        return "LoxFunction{" +
+                "name=" + "LoxClock" +
+                '}';
+    }
+}
@@ -0,0 +1,110 @@
+package lox.runtime;
+
+/**
+ * Base class of every compiled Lox function and method. The compiler generates one subclass per function declaration,
+ * holding the cells it captured, and overrides the invoke entry point matching its arity
+ *
+ * Methods take the receiver as an explicit argument, so obj.method() can call them without binding first. A bound
+ * method is just a copy with the receiver filled in
+ */
+public abstract class CompiledFunction extends Callable implements Cloneable {
+    private final String name;
+    private final int arity;
+    private final boolean isMethod;
+    private final boolean isInitializer;
+    private Object self; // Receiver of a bound method
+
+    protected CompiledFunction(String name, int arity, boolean isMethod, boolean isInitializer){
+        this.name = name;
+        this.arity = arity;
+        this.isMethod = isMethod;
+        this.isInitializer = isInitializer;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    public boolean isInitializer() {
+        return isInitializer;
+    }
+
+    /**
+     * @return true for a method that hasn't been bound to a receiver yet
+     */
+    public boolean isUnbound() {
+        return isMethod && self == null;
+    }
+
+    public CompiledFunction bind(Object self){
+        try {
+            CompiledFunction bound = (CompiledFunction) clone();
+            bound.self = self;
+            return bound;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Object call0() {
+        return invoke0(self);
+    }
+
+    @Override
+    public Object call1(Object a) {
+        return invoke1(self, a);
+    }
+
+    @Override
+    public Object call2(Object a, Object b) {
+        return invoke2(self, a, b);
+    }
+
+    @Override
+    public Object call3(Object a, Object b, Object c) {
+        return invoke3(self, a, b, c);
+    }
+
+    @Override
+    public Object call4(Object a, Object b, Object c, Object d) {
+        return invoke4(self, a, b, c, d);
+    }
+
+    @Override
+    public Object callN(Object[] args) {
+        return invokeN(self, args);
+    }
+
+    public Object invoke0(Object self){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object invoke1(Object self, Object a){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object invoke2(Object self, Object a, Object b){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object invoke3(Object self, Object a, Object b, Object c){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object invoke4(Object self, Object a, Object b, Object c, Object d){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    public Object invokeN(Object self, Object[] args){
+        throw new IllegalStateException("Called " + this + " with the wrong number of arguments");
+    }
+
+    @Override
+    public String toString() {
+        return "LoxFunction{" +
+                "name=" + name +
+                '}';
+    }
+}
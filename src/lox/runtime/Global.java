@@ -0,0 +1,34 @@
+package lox.runtime;
+
+/**
+ * A global variable. Compiled code keeps one of these in a static field per global name, so lookups don't go through a
+ * map, but globals can still be used before they're defined as long as that happens before the code runs
+ */
+public final class Global {
+    private final String name;
+    private Object value;
+    private boolean defined = false;
+
+    public Global(String name){
+        this.name = name;
+    }
+
+    public void define(Object value){
+        this.value = value;
+        this.defined = true;
+    }
+
+    public Object get(int line){
+        if(!defined){
+            throw new LoxError(line, "Variable '" + name + "' undefined in scope.");
+        }
+        return value;
+    }
+
+    public void set(Object value, int line){
+        if(!defined){
+            throw new LoxError(line, "Variable '" + name + "' does not exist.");
+        }
+        this.value = value;
+    }
+}
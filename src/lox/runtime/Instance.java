@@ -0,0 +1,80 @@
+package lox.runtime;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Field storage shared by LoxInstance and RuntimeInstance. Fields are laid out according to a Shape shared with other
+ * instances of the class, the instance itself only keeps the values
+ */
+public abstract class Instance {
+    private final ClassLayout<?> layout;
+    private Shape shape;
+    private Object[] values;
+
+    protected Instance(ClassLayout<?> layout){
+        this.layout = layout;
+        this.shape = layout.getRootShape();
+        this.values = new Object[layout.getExpectedFields()];
+    }
+
+    public Shape getShape(){
+        return shape;
+    }
+
+    /**
+     * @return the slot the field is in, or -1 if the instance doesn't have it
+     */
+    public int slotOf(int symbol){
+        return shape.slotOf(symbol);
+    }
+
+    public Object getField(int slot){
+        return values[slot];
+    }
+
+    public void set(int symbol, Object value){
+        int slot = shape.slotOf(symbol);
+        if(slot == -1){
+            Shape next = shape.withField(symbol);
+            setField(next, next.size() - 1, value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Writes a slot and moves the instance to the given shape, which has to be this instance's shape or the result of
+     * adding the field at that slot to it
+     */
+    public void setField(Shape shape, int slot, Object value){
+        if(slot == values.length){
+            values = Arrays.copyOf(values, shape.size());
+            layout.expectFields(shape.size());
+        }
+        this.shape = shape;
+        values[slot] = value;
+    }
+
+    public static String missingProperty(String name){
+        return "Instance does not contain property '" + name + "'";
+    }
+
+    public static String notAnInstance(String action, Object target){
+        return "Cannot " + action + " property on non-instance object: '" + target + "'.";
+    }
+
+    @Override
+    public String toString() {
+        // Fields used to live in a HashMap, keep printing them in the order it would have
+        Map<String, Object> fields = new HashMap<>();
+        for(int i = 0; i < shape.size(); i++){
+            fields.put(shape.nameAt(i), values[i]);
+        }
+        return "LoxInstance{" +
+                "instanceof='" + layout.getName() + "', " +
+                "fields=" + fields.entrySet() +
+                '}';
+    }
+}
@@ -0,0 +1,20 @@
+package lox.runtime;
+
+/**
+ * Runtime error thrown by compiled code. Same messages as LoxRuntimeException, but only carries the line so the runtime
+ * doesn't drag the parser classes along with it
+ */
+public class LoxError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+
+    public LoxError(int line, String message){
+        super(message);
+        this.line = line;
+    }
+
+    public int getLine() {
+        return line;
+    }
+}
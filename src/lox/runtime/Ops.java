@@ -0,0 +1,322 @@
+package lox.runtime;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything compiled code does that's more than a couple of bytecodes, and the one copy of Lox's truthiness, equality,
+ * printing and operator semantics that every engine uses. Each operation takes the line to report errors at; engines
+ * that report errors some other way use the message builders below, so the wording stays the same everywhere
+ */
+public final class Ops {
+    private Ops(){}
+
+    public static boolean isTruthy(Object val){
+        if(val == null) return false;
+        if(val instanceof Boolean && !(Boolean) val) return false;
+        return true;
+    }
+
+    public static boolean isEqual(Object left, Object right){
+        if(left == null){
+            return right == null;
+        }
+        return Rope.flatten(left).equals(Rope.flatten(right));
+    }
+
+    /**
+     * isEqual for numbers that haven't been boxed. Double.equals compares bits, so NaN equals itself and 0 doesn't
+     * equal -0
+     */
+    public static boolean isEqual(double left, double right){
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+
+    public static String stringify(Object x){
+        if(x == null){
+            return "nil";
+        } else if (x instanceof Double){
+            Double num = (Double) x;
+            if(num == Math.floor(num)){
+                return num.intValue() + "";
+            } else {
+                return num.toString();
+            }
+        } else {
+            return x.toString();
+        }
+    }
+
+    public static final String DIVISION_BY_ZERO = "Division by zero";
+
+    public static String notANumber(Object operand){
+        return "Operand must be a number. Found: " + operand;
+    }
+
+    public static String cannotAdd(Object left, Object right){
+        return "Operands must be both numbers or one must be a string. Got: " + left + " and " + right;
+    }
+
+    public static String notCallable(Object callee){
+        return "Object {" + callee + "} is not callable. Only functions and classes are callable";
+    }
+
+    public static String wrongArity(int arity, List<?> arguments){
+        return "Expected " + arity + " arguments, got " + arguments.size() + ": " + arguments + " instead";
+    }
+
+    public static void print(Object value){
+        System.out.println(stringify(value));
+    }
+
+    public static void reportError(LoxError error){
+        System.err.println("Lox runtime exception: " + error.getMessage() +
+                "\n\tat [line " + error.getLine() + "]\n");
+    }
+
+    private static void checkNumbers(Object left, Object right, int line){
+        if(!(left instanceof Double)){
+            throw new LoxError(line, notANumber(left));
+        }
+        if(!(right instanceof Double)){
+            throw new LoxError(line, notANumber(right));
+        }
+    }
+
+    public static Object add(Object left, Object right, int line){
+        if(left instanceof Double && right instanceof Double){
+            return (double) left + (double) right;
+        } else if(Rope.isText(left) || Rope.isText(right)){
+            return Rope.concat(left, right);
+        }
+        throw new LoxError(line, cannotAdd(left, right));
+    }
+
+    public static Object subtract(Object left, Object right, int line){
+        checkNumbers(left, right, line);
+        return (double) left - (double) right;
+    }
+
+    public static Object multiply(Object left, Object right, int line){
+        checkNumbers(left, right, line);
+        return (double) left * (double) right;
+    }
+
+    public static Object divide(Object left, Object right, int line){
+        checkNumbers(left, right, line);
+        return divide((double) left, (double) right, line);
+    }
+
+    /**
+     * Division is the one arithmetic operator that can fail on two numbers
+     */
+    public static double divide(double left, double right, int line){
+        if(right == 0){
+            throw new LoxError(line, DIVISION_BY_ZERO);
+        }
+        return left / right;
+    }
+
+    public static Object greater(Object left, Object right, int line){
+        checkNumbers(left, right, line);
+        return (double) left > (double) right;
+    }
+
+    public static Object greaterEqual(Object left, Object right, int line){
+        checkNumbers(left, right, line);
+        return (double) left >= (double) right;
+    }
+
+    public static Object less(Object left, Object right, int line){
+        checkNumbers(left, right, line);
+        return (double) left < (double) right;
+    }
+
+    public static Object lessEqual(Object left, Object right, int line){
+        checkNumbers(left, right, line);
+        return (double) left <= (double) right;
+    }
+
+    public static Object equal(Object left, Object right){
+        return isEqual(left, right);
+    }
+
+    public static Object notEqual(Object left, Object right){
+        return !isEqual(left, right);
+    }
+
+    public static Object negate(Object right, int line){
+        if(!(right instanceof Double)){
+            throw new LoxError(line, notANumber(right));
+        }
+        return -(double) right;
+    }
+
+    public static Object not(Object right){
+        return !isTruthy(right);
+    }
+
+    private static Callable checkCallable(Object callee, Object[] arguments, int line){
+        if(!(callee instanceof Callable))
+            throw new LoxError(line, notCallable(callee));
+        Callable fun = (Callable) callee;
+        if(arguments.length != fun.arity())
+            throw new LoxError(line, wrongArity(fun.arity(), Arrays.asList(arguments)));
+        return fun;
+    }
+
+    public static Object call0(Object callee, int line){
+        if(callee instanceof Callable && ((Callable) callee).arity() == 0){
+            return ((Callable) callee).call0();
+        }
+        return checkCallable(callee, new Object[0], line).call0();
+    }
+
+    public static Object call1(Object callee, Object a, int line){
+        if(callee instanceof Callable && ((Callable) callee).arity() == 1){
+            return ((Callable) callee).call1(a);
+        }
+        return checkCallable(callee, new Object[]{a}, line).call1(a);
+    }
+
+    public static Object call2(Object callee, Object a, Object b, int line){
+        if(callee instanceof Callable && ((Callable) callee).arity() == 2){
+            return ((Callable) callee).call2(a, b);
+        }
+        return checkCallable(callee, new Object[]{a, b}, line).call2(a, b);
+    }
+
+    public static Object call3(Object callee, Object a, Object b, Object c, int line){
+        if(callee instanceof Callable && ((Callable) callee).arity() == 3){
+            return ((Callable) callee).call3(a, b, c);
+        }
+        return checkCallable(callee, new Object[]{a, b, c}, line).call3(a, b, c);
+    }
+
+    public static Object call4(Object callee, Object a, Object b, Object c, Object d, int line){
+        if(callee instanceof Callable && ((Callable) callee).arity() == 4){
+            return ((Callable) callee).call4(a, b, c, d);
+        }
+        return checkCallable(callee, new Object[]{a, b, c, d}, line).call4(a, b, c, d);
+    }
+
+    public static Object callN(Object callee, Object[] args, int line){
+        return checkCallable(callee, args, line).callN(args);
+    }
+
+    /**
+     * First half of obj.method(args): looks the property up without binding methods. The invokeN methods take the
+     * result along with the receiver once the arguments have been evaluated
+     */
+    public static Object property(Object target, String name, int line){
+        if(!(target instanceof RuntimeInstance)){
+            throw new LoxError(line, Instance.notAnInstance("access", target));
+        }
+        return ((RuntimeInstance) target).getForInvoke(name, line);
+    }
+
+    // Unbound methods only ever come from property(), anything else is called like a normal callee
+    private static boolean isMethod(Object property){
+        return property instanceof CompiledFunction && ((CompiledFunction) property).isUnbound();
+    }
+
+    public static Object invoke0(Object target, Object property, int line){
+        if(isMethod(property)){
+            CompiledFunction method = (CompiledFunction) property;
+            if(method.arity() == 0){
+                return method.invoke0(target);
+            }
+            checkCallable(method, new Object[]{}, line);
+        }
+        return call0(property, line);
+    }
+
+    public static Object invoke1(Object target, Object property, Object a, int line){
+        if(isMethod(property)){
+            CompiledFunction method = (CompiledFunction) property;
+            if(method.arity() == 1){
+                return method.invoke1(target, a);
+            }
+            checkCallable(method, new Object[]{a}, line);
+        }
+        return call1(property, a, line);
+    }
+
+    public static Object invoke2(Object target, Object property, Object a, Object b, int line){
+        if(isMethod(property)){
+            CompiledFunction method = (CompiledFunction) property;
+            if(method.arity() == 2){
+                return method.invoke2(target, a, b);
+            }
+            checkCallable(method, new Object[]{a, b}, line);
+        }
+        return call2(property, a, b, line);
+    }
+
+    public static Object invoke3(Object target, Object property, Object a, Object b, Object c, int line){
+        if(isMethod(property)){
+            CompiledFunction method = (CompiledFunction) property;
+            if(method.arity() == 3){
+                return method.invoke3(target, a, b, c);
+            }
+            checkCallable(method, new Object[]{a, b, c}, line);
+        }
+        return call3(property, a, b, c, line);
+    }
+
+    public static Object invoke4(Object target, Object property, Object a, Object b, Object c, Object d, int line){
+        if(isMethod(property)){
+            CompiledFunction method = (CompiledFunction) property;
+            if(method.arity() == 4){
+                return method.invoke4(target, a, b, c, d);
+            }
+            checkCallable(method, new Object[]{a, b, c, d}, line);
+        }
+        return call4(property, a, b, c, d, line);
+    }
+
+    public static Object invokeN(Object target, Object property, Object[] args, int line){
+        if(isMethod(property)){
+            checkCallable(property, args, line);
+            return ((CompiledFunction) property).invokeN(target, args);
+        }
+        return callN(property, args, line);
+    }
+
+    public static Object get(Object target, String name, int line){
+        if(!(target instanceof RuntimeInstance)){
+            throw new LoxError(line, Instance.notAnInstance("access", target));
+        }
+        return ((RuntimeInstance) target).get(name, line);
+    }
+
+    /**
+     * Checked before the value is evaluated, like the tree walker does
+     */
+    public static RuntimeInstance setTarget(Object target, int line){
+        if(!(target instanceof RuntimeInstance)){
+            throw new LoxError(line, Instance.notAnInstance("set", target));
+        }
+        return (RuntimeInstance) target;
+    }
+
+    public static Object set(RuntimeInstance target, Object value, String name){
+        target.set(name, value);
+        return null;
+    }
+
+    public static Object superGet(Object superclass, Object self, String name, int line){
+        CompiledFunction method = ((RuntimeClass) superclass).getMethod(name);
+        if(method == null){
+            throw new LoxError(line, ClassLayout.undefinedProperty(name));
+        }
+        return method.bind(self);
+    }
+
+    public static RuntimeClass superclass(Object superclass, int line){
+        if(!(superclass instanceof RuntimeClass)){
+            throw new LoxError(line, ClassLayout.notAClass(superclass));
+        }
+        return (RuntimeClass) superclass;
+    }
+}
@@ -0,0 +1,94 @@
+package lox.runtime;
+
+import java.util.ArrayDeque;
+
+/**
+ * A string built with +. Appending to a string in a loop would copy everything built so far every time, so + just
+ * links the two halves and the characters get copied once, the first time something needs the real String: printing,
+ * comparing, or handing it to a native. Lox code can't tell the difference
+ */
+public final class Rope {
+    // Below this copying is cheaper than another node
+    private static final int SHORT = 64;
+
+    private Object left; // Each half is a String or a Rope, both go away once flattened
+    private Object right;
+    private final int length;
+    private String flat;
+
+    private Rope(Object left, Object right, int length){
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    public static boolean isText(Object value){
+        return value instanceof String || value instanceof Rope;
+    }
+
+    /**
+     * What + gives for two operands where at least one is text
+     */
+    public static Object concat(Object left, Object right){
+        Object l = piece(left);
+        Object r = piece(right);
+        int length = length(l) + length(r);
+        if(length <= SHORT){
+            return l.toString() + r.toString();
+        }
+        return new Rope(l, r, length);
+    }
+
+    /**
+     * The value as Java sees it, for anything that compares or looks inside strings
+     */
+    public static Object flatten(Object value){
+        return value instanceof Rope ? value.toString() : value;
+    }
+
+    private static Object piece(Object value){
+        if(value instanceof Rope){
+            Rope rope = (Rope) value;
+            return rope.flat != null ? rope.flat : rope;
+        } else if(value instanceof String){
+            return value;
+        }
+        return Ops.stringify(value);
+    }
+
+    private static int length(Object piece){
+        return piece instanceof Rope ? ((Rope) piece).length : ((String) piece).length();
+    }
+
+    @Override
+    public String toString(){
+        if(flat == null){
+            flat = flatten();
+            left = null;
+            right = null;
+        }
+        return flat;
+    }
+
+    // Fills the buffer from the back so a string grown with s = s + x, which leans left, never needs more than a
+    // couple of entries on the stack
+    private String flatten(){
+        char[] chars = new char[length];
+        int end = length;
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+        while(!pending.isEmpty()){
+            Object piece = pending.pop();
+            if(piece instanceof Rope && ((Rope) piece).flat == null){
+                Rope rope = (Rope) piece;
+                pending.push(rope.left);
+                pending.push(rope.right);
+            } else {
+                String text = piece.toString();
+                end -= text.length();
+                text.getChars(0, text.length(), chars, end);
+            }
+        }
+        return new String(chars);
+    }
+}
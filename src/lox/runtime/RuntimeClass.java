@@ -0,0 +1,82 @@
+package lox.runtime;
+
+/**
+ * A Lox class in compiled code. The method table and field layout are a ClassLayout, same as LoxClass
+ */
+public final class RuntimeClass extends Callable {
+    private final ClassLayout<CompiledFunction> layout;
+    private final CompiledFunction initializer;
+
+    public RuntimeClass(String name, RuntimeClass superclass, CompiledFunction[] methods, String[] names){
+        SymbolMap<CompiledFunction> table = new SymbolMap<>();
+        for(int i = 0; i < methods.length; i++){
+            table.put(Symbols.intern(names[i]), methods[i]);
+        }
+        this.layout = new ClassLayout<>(name, superclass == null ? null : superclass.layout, table);
+        this.initializer = layout.getInitializer();
+    }
+
+    public CompiledFunction getMethod(String name){
+        return layout.getMethod(Symbols.intern(name));
+    }
+
+    ClassLayout<CompiledFunction> getLayout(){
+        return layout;
+    }
+
+    @Override
+    public int arity() {
+        return initializer == null ? 0 : initializer.arity();
+    }
+
+    @Override
+    public Object call0() {
+        RuntimeInstance instance = new RuntimeInstance(this);
+        if(initializer != null){
+            initializer.invoke0(instance);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call1(Object a) {
+        RuntimeInstance instance = new RuntimeInstance(this);
+        initializer.invoke1(instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Object a, Object b) {
+        RuntimeInstance instance = new RuntimeInstance(this);
+        initializer.invoke2(instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Object a, Object b, Object c) {
+        RuntimeInstance instance = new RuntimeInstance(this);
+        initializer.invoke3(instance, a, b, c);
+        return instance;
+    }
+
+    @Override
+    public Object call4(Object a, Object b, Object c, Object d) {
+        RuntimeInstance instance = new RuntimeInstance(this);
+        initializer.invoke4(instance, a, b, c, d);
+        return instance;
+    }
+
+    @Override
+    public Object callN(Object[] args) {
+        RuntimeInstance instance = new RuntimeInstance(this);
+        initializer.invokeN(instance, args);
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return "LoxClass{" +
+                "name='" + layout.getName() + '\'' +
+                '}';
+    }
+}
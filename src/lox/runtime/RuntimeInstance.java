@@ -0,0 +1,46 @@
+package lox.runtime;
+
+/**
+ * An instance of a RuntimeClass. The fields are kept by Instance, same as LoxInstance
+ */
+public final class RuntimeInstance extends Instance {
+    private final RuntimeClass klass;
+
+    RuntimeInstance(RuntimeClass klass){
+        super(klass.getLayout());
+        this.klass = klass;
+    }
+
+    public Object get(String name, int line){
+        int symbol = Symbols.intern(name);
+        int slot = slotOf(symbol);
+        if(slot != -1){
+            return getField(slot);
+        }
+        CompiledFunction method = klass.getLayout().getMethod(symbol);
+        if(method != null){
+            return method.bind(this);
+        }
+        throw new LoxError(line, missingProperty(name));
+    }
+
+    /**
+     * Like get, but hands back methods unbound so the caller can invoke them with this instance directly
+     */
+    public Object getForInvoke(String name, int line){
+        int symbol = Symbols.intern(name);
+        int slot = slotOf(symbol);
+        if(slot != -1){
+            return getField(slot);
+        }
+        CompiledFunction method = klass.getLayout().getMethod(symbol);
+        if(method != null){
+            return method;
+        }
+        throw new LoxError(line, missingProperty(name));
+    }
+
+    public void set(String name, Object value){
+        set(Symbols.intern(name), value);
+    }
+}
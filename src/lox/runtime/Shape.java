@@ -0,0 +1,53 @@
+package lox.runtime;
+
+/**
+ * Field layout shared by every instance of a class that had the same fields added in the same order. Maps field names
+ * (as Symbols ids) to slots in the instance's value array
+ *
+ * Shapes are immutable, adding a field moves the instance to the next shape along a transition. Transitions are cached
+ * so instances built the same way end up sharing the exact same Shape objects
+ */
+public final class Shape {
+    private final int[] symbols;
+    private final SymbolMap<Integer> slots;
+    private final SymbolMap<Shape> transitions = new SymbolMap<>();
+
+    public Shape(){
+        this.symbols = new int[0];
+        this.slots = new SymbolMap<>();
+    }
+
+    private Shape(Shape previous, int symbol){
+        int size = previous.symbols.length;
+        this.symbols = new int[size + 1];
+        System.arraycopy(previous.symbols, 0, symbols, 0, size);
+        symbols[size] = symbol;
+        this.slots = new SymbolMap<>(previous.slots);
+        slots.put(symbol, size);
+    }
+
+    /**
+     * @return the slot holding the field, or -1 if instances of this shape don't have it
+     */
+    public int slotOf(int symbol){
+        Integer slot = slots.get(symbol);
+        return slot == null ? -1 : slot;
+    }
+
+    public Shape withField(int symbol){
+        Shape next = transitions.get(symbol);
+        if(next == null){
+            next = new Shape(this, symbol);
+            transitions.put(symbol, next);
+        }
+        return next;
+    }
+
+    public int size(){
+        return symbols.length;
+    }
+
+    public String nameAt(int slot){
+        return Symbols.name(symbols[slot]);
+    }
+}
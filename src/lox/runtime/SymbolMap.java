@@ -0,0 +1,88 @@
+package lox.runtime;
+
+/**
+ * Hash map from symbol ids to values. Ids are small and dense, so they go straight into an open addressed table with
+ * no hashing and a lookup is usually a single int compare
+ */
+public final class SymbolMap<V> {
+    private int[] keys; // Symbol + 1, so the zeroes of a new array mean empty
+    private Object[] values;
+    private int size = 0;
+
+    public SymbolMap(){
+        keys = new int[8];
+        values = new Object[8];
+    }
+
+    public SymbolMap(SymbolMap<V> other){
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int symbol){
+        int mask = keys.length - 1;
+        for(int i = symbol & mask; ; i = (i + 1) & mask){
+            int key = keys[i];
+            if(key == symbol + 1){
+                return (V) values[i];
+            } else if(key == 0){
+                return null;
+            }
+        }
+    }
+
+    public boolean containsKey(int symbol){
+        return get(symbol) != null;
+    }
+
+    public void put(int symbol, V value){
+        int mask = keys.length - 1;
+        int i = symbol & mask;
+        while(keys[i] != 0 && keys[i] != symbol + 1){
+            i = (i + 1) & mask;
+        }
+        if(keys[i] == 0){
+            keys[i] = symbol + 1;
+            if(++size * 2 > keys.length){
+                values[i] = value;
+                grow();
+                return;
+            }
+        }
+        values[i] = value;
+    }
+
+    public void putAll(SymbolMap<V> other){
+        for(int i = 0; i < other.keys.length; i++){
+            if(other.keys[i] != 0){
+                @SuppressWarnings("unchecked")
+                V value = (V) other.values[i];
+                put(other.keys[i] - 1, value);
+            }
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    private void grow(){
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for(int j = 0; j < oldKeys.length; j++){
+            if(oldKeys[j] != 0){
+                int i = (oldKeys[j] - 1) & mask;
+                while(keys[i] != 0){
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package lox.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Gives every name a small integer id, the first time it's seen. The Lexer interns identifiers as it reads them, so
+ * anything the runtime looks up by name (globals, methods, fields) can be keyed by the id and never hashes a string
+ *
+ * Ids are handed out in order from 0, which keeps arrays indexed by them compact. Names can be interned straight out
+ * of the source's chars, so the Lexer only makes a String for names it hasn't seen before
+ */
+public final class Symbols {
+    private static int[] table = new int[128]; // Open addressed, id + 1 so the zeroes of a new array mean empty
+    private static int shift = 32 - 7; // Takes the top bits of the mixed hash for a table this size
+    private static String[] names = new String[64];
+    private static int count = 0;
+
+    private Symbols(){}
+
+    public static int intern(String name){
+        int mask = table.length - 1;
+        int i = indexFor(name.hashCode());
+        for(int entry = table[i]; entry != 0; entry = table[i]){
+            if(names[entry - 1].equals(name)){
+                return entry - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return add(name, i);
+    }
+
+    public static int intern(char[] chars, int start, int length){
+        int hash = 0; // Same as String.hashCode, so both versions land on the same entries
+        for(int j = start; j < start + length; j++){
+            hash = 31 * hash + chars[j];
+        }
+        int mask = table.length - 1;
+        int i = indexFor(hash);
+        for(int entry = table[i]; entry != 0; entry = table[i]){
+            if(matches(names[entry - 1], chars, start, length)){
+                return entry - 1;
+            }
+            i = (i + 1) & mask;
+        }
+        return add(new String(chars, start, length), i);
+    }
+
+    /**
+     * The String every occurrence of the name shares
+     */
+    public static String name(int symbol){
+        return names[symbol];
+    }
+
+    public static int count(){
+        return count;
+    }
+
+    private static boolean matches(String name, char[] chars, int start, int length){
+        if(name.length() != length){
+            return false;
+        }
+        for(int j = 0; j < length; j++){
+            if(name.charAt(j) != chars[start + j]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int add(String name, int entry){
+        if(count == names.length){
+            names = Arrays.copyOf(names, count * 2);
+        }
+        int id = count++;
+        names[id] = name;
+        table[entry] = id + 1;
+        if(count * 2 > table.length){
+            rehash();
+        }
+        return id;
+    }
+
+    // Keeps the table at most half full
+    private static void rehash(){
+        table = new int[table.length * 2];
+        shift--;
+        int mask = table.length - 1;
+        for(int id = 0; id < count; id++){
+            int i = indexFor(names[id].hashCode());
+            while(table[i] != 0){
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+    }
+
+    // Names like item1, item2... have consecutive hashes, which would pile up into one long run with linear probing.
+    // Multiplying spreads them over the whole table
+    private static int indexFor(int hash){
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+}
@@ -0,0 +1,34 @@
+package lox.semantic;
+
+/**
+ * One variable a closure captures when it's created. Either a local of the function it's declared in, found like any
+ * other local from where the declaration is, or one the enclosing function captured itself
+ */
+public final class Capture {
+    public static final Capture[] NONE = new Capture[0];
+
+    public final boolean isLocal;
+    public final int depth; // For locals
+    public final int slot;
+    public final int index; // Into the enclosing function's captures, for ones it captured itself
+
+    private Capture(boolean isLocal, int depth, int slot, int index){
+        this.isLocal = isLocal;
+        this.depth = depth;
+        this.slot = slot;
+        this.index = index;
+    }
+
+    static Capture local(int depth, int slot){
+        return new Capture(true, depth, slot, -1);
+    }
+
+    static Capture enclosing(int index){
+        return new Capture(false, -1, -1, index);
+    }
+
+    @Override
+    public String toString() {
+        return isLocal ? "Capture{depth=" + depth + ", slot=" + slot + "}" : "Capture{index=" + index + "}";
+    }
+}
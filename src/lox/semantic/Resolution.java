@@ -0,0 +1,27 @@
+package lox.semantic;
+
+/**
+ * Where a resolved local variable lives at runtime: how many Envs up the chain, and which slot inside that Env. For a
+ * variable of an enclosing function, also which of the current function's captures it is
+ * Only used while resolving, the results end up on the Expr nodes themselves
+ */
+class Resolution {
+    final int depth;
+    final int slot;
+    final int upvalue; // -1 for the function's own locals
+
+    Resolution(int depth, int slot, int upvalue){
+        this.depth = depth;
+        this.slot = slot;
+        this.upvalue = upvalue;
+    }
+
+    @Override
+    public String toString() {
+        return "Resolution{" +
+                "depth=" + depth +
+                ", slot=" + slot +
+                ", upvalue=" + upvalue +
+                '}';
+    }
+}
@@ -5,6 +5,8 @@ import lox.execution.InterpreterVisitor;
 import lox.parser.Expr;
 import lox.parser.Stmt;
 import lox.parser.Token;
+import lox.parser.TokenType;
+import lox.runtime.ClassLayout;
 
 import java.util.*;
 
@@ -13,41 +15,160 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     private final Stack<Map<String, Boolean>> scopes = new Stack<>();
     // Mirror of the scope stack, it contains a list of local variables used instead
     private final Stack<List<String>> variablesUsed = new Stack<>();
-    private final Map<Expr,Integer> resolutions = new HashMap<>();
+    // Mirror of the scope stack, maps each local to the slot it occupies in its Env at runtime (and whether it's captured)
+    private final Stack<Map<String, Local>> slots = new Stack<>();
+    // Mirror of the scope stack, false for blocks that run in the enclosing scope's Env instead of getting their own
+    private final Stack<Boolean> ownsEnv = new Stack<>();
+    // One entry per scope that owns an Env: the next free slot, and the most slots it ever needs at once
+    private final Stack<int[]> frames = new Stack<>();
+
+    // Functions being resolved, innermost last
+    private final List<Closure> closures = new ArrayList<>();
+
+    private boolean elideScopes = false;
+    private boolean quiet = false;
+
+    private static class Local {
+        final int slot;
+        final Object declaration; // The Stmt declaring it, null for 'this', 'super' and parameters
+        final List<Expr> references = new ArrayList<>(); // From its own function
+        boolean captured = false;
+
+        Local(int slot, Object declaration){
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    private static class Closure {
+        final Stmt.Fun function;
+        final int scope; // Index of the function's own scope
+        final List<Capture> captures = new ArrayList<>();
+        final Map<Local, Integer> indices = new IdentityHashMap<>();
+
+        Closure(Stmt.Fun function, int scope){
+            this.function = function;
+            this.scope = scope;
+        }
+    }
 
     // Current walk status, are we in a function? In a class?
     private FunctionType currentFunction =  FunctionType.NONE;
+    private Stmt.Fun currentDeclaration = null; // Innermost function being resolved, null at the top level
     private ClassType currentClass = ClassType.NONE;
 
-    public Map<Expr,Integer> performResolve(List<Stmt> program){
+    /**
+     * Resolves every variable reference in the program, writing the results directly onto the Expr nodes
+     * Anything that isn't found in a local scope is left marked as a global
+     */
+    public void performResolve(List<Stmt> program){
         resolve(program);
-        return resolutions;
+    }
+
+    /**
+     * Resolves the program again once the optimizer is done with it, this time letting blocks share their
+     * enclosing Env where they can. Anything worth reporting was already reported by performResolve
+     */
+    public void layOut(List<Stmt> program){
+        elideScopes = true;
+        quiet = true;
+        try {
+            resolve(program);
+        } finally {
+            elideScopes = false;
+            quiet = false;
+        }
+    }
+
+    private void error(Token token, String message){
+        if(!quiet){
+            Lox.error(token, message);
+        }
+    }
+
+    private void error(int line, String message){
+        if(!quiet){
+            Lox.error(line, message);
+        }
     }
 
     private void beginScope(){
+        beginScope(true);
+    }
+
+    private void beginScope(boolean ownEnv){
         scopes.push(new HashMap<>());
         variablesUsed.push(new ArrayList<>());
+        slots.push(new HashMap<>());
+        ownsEnv.push(ownEnv);
+        if(ownEnv){
+            frames.push(new int[2]);
+        }
     }
 
     private void endScope(){
         Map<String, Boolean> allDefined = scopes.pop();
         List<String> used = variablesUsed.pop();
+        markCaptured(slots.pop().values());
+        if(ownsEnv.pop()){
+            frames.pop();
+        }
         for(String defined: allDefined.keySet()){
             if(!used.contains(defined) && !defined.equals("this")){
-                Lox.error(-1, "Variable " + defined + " defined but not used");
+                error(-1, "Variable " + defined + " defined but not used");
                 // I could change a whole bunch of code to make this have a correct line number but honestly I can't be bothered
             }
         }
     }
 
-    private void declare(Token name){
+    // Locals a closure captured live in a Cell, so their own function needs to know
+    private static void markCaptured(Collection<Local> locals){
+        for(Local local: locals){
+            for(Expr reference: local.references){
+                if(reference instanceof Expr.Var){
+                    ((Expr.Var) reference).inCell = local.captured;
+                } else if(reference instanceof Expr.Assign){
+                    ((Expr.Assign) reference).inCell = local.captured;
+                } else if(reference instanceof Expr.This){
+                    ((Expr.This) reference).inCell = local.captured;
+                }
+            }
+            if(local.declaration instanceof Stmt.Var){
+                ((Stmt.Var) local.declaration).isCaptured = local.captured;
+            } else if(local.declaration instanceof Stmt.Fun){
+                ((Stmt.Fun) local.declaration).isCaptured = local.captured;
+            } else if(local.declaration instanceof Stmt.Class){
+                ((Stmt.Class) local.declaration).isCaptured = local.captured;
+            }
+        }
+    }
+
+    private void declare(Token name, Object declaration){
         if(scopes.isEmpty()) return; //global name
         Map<String,Boolean> scope = scopes.peek();
 
         if(scope.containsKey(name.getLexeme())){
-            Lox.error(name, "Variable with this name has already been declared in this scope.");
+            error(name, "Variable with this name has already been declared in this scope.");
         }
         scope.put(name.getLexeme(), false);
+        allocateSlot(name.getLexeme(), declaration);
+    }
+
+    // Slots are handed out in declaration order, which is the same order the interpreter defines them in. A block
+    // sharing its Env carries on from wherever the Env's owner is up to
+    private void allocateSlot(String name, Object declaration){
+        Map<String, Local> scopeSlots = slots.peek();
+        if(!scopeSlots.containsKey(name)){
+            int[] frame = frames.peek();
+            scopeSlots.put(name, new Local(frame[0]++, declaration));
+            frame[1] = Math.max(frame[1], frame[0]);
+        }
+    }
+
+    // For the implicit 'this' and 'super' which don't have a token to declare
+    private void defineSynthetic(String name){
+        scopes.peek().put(name, true);
+        allocateSlot(name, null);
     }
 
     private void define(Token name){
@@ -70,29 +191,112 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         expr.accept(this);
     }
 
-    private void resolveLocal(Expr expr, Token name){
+    private Resolution resolveLocal(Token name, Expr reference){
         for(int i = scopes.size() - 1; i >=0; i--){
             if(scopes.get(i).containsKey(name.getLexeme())){
-                resolutions.put(expr, scopes.size() - i - 1);
                 variablesUsed.get(i).add(name.getLexeme());
-                return;
+                // Only scopes with their own Env are a hop away at runtime
+                int depth = 0;
+                for(int j = i + 1; j < scopes.size(); j++){
+                    if(ownsEnv.get(j)) depth++;
+                }
+                Local local = slots.get(i).get(name.getLexeme());
+                int function = closures.size() - 1;
+                if(owner(i) == function){
+                    local.references.add(reference);
+                    return new Resolution(depth, local.slot, -1);
+                }
+                local.captured = true;
+                return new Resolution(depth, local.slot, capture(function, i, local));
+            }
+        }
+        return null;
+    }
+
+    // The innermost function the scope belongs to, -1 for the top level
+    private int owner(int scope){
+        for(int i = closures.size() - 1; i >= 0; i--){
+            if(closures.get(i).scope <= scope){
+                return i;
             }
         }
+        return -1;
+    }
+
+    /**
+     * Makes the function capture a local of some enclosing function, along with every function in between
+     * @return where it ends up in the function's captures
+     */
+    private int capture(int function, int scope, Local local){
+        Closure closure = closures.get(function);
+        Integer index = closure.indices.get(local);
+        if(index != null){
+            return index;
+        }
+        if(owner(scope) == function - 1){
+            // Found from the scope the function gets created in, just outside its own
+            int depth = 0;
+            for(int j = scope + 1; j < closure.scope; j++){
+                if(ownsEnv.get(j)) depth++;
+            }
+            closure.captures.add(Capture.local(depth, local.slot));
+        } else {
+            closure.captures.add(Capture.enclosing(capture(function - 1, scope, local)));
+        }
+        closure.indices.put(local, closure.captures.size() - 1);
+        return closure.captures.size() - 1;
     }
 
     private void resolveFunction(Stmt.Fun function, FunctionType newType){
         beginScope();
         FunctionType enclosingType = currentFunction;
         currentFunction = newType;
+        Stmt.Fun enclosingDeclaration = currentDeclaration;
+        markClosure();
+        currentDeclaration = function;
+        Closure closure = new Closure(function, scopes.size() - 1);
+        closures.add(closure);
+        if(newType == FunctionType.METHOD || newType == FunctionType.INITIALIZER){
+            // Methods get the receiver as slot 0 of their own scope, so calling one doesn't need an extra env for 'this'
+            defineSynthetic("this");
+            function.isMethod = true;
+        }
         for(Token param: function.params){
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(function.body);
+        function.slotCount = frames.peek()[1];
+        function.captures = closure.captures.toArray(new Capture[0]);
+        function.capturedSlots = capturedSlots(function);
+        closures.remove(closures.size() - 1);
         currentFunction = enclosingType;
+        currentDeclaration = enclosingDeclaration;
         endScope();
     }
 
+    // 'this' and the parameters get defined by whoever makes the call, the captured ones go in a Cell afterwards
+    private boolean[] capturedSlots(Stmt.Fun function){
+        int frameSize = function.params.size() + (function.isMethod ? 1 : 0);
+        boolean[] captured = null;
+        for(Local local: slots.peek().values()){
+            if(local.captured && local.slot < frameSize){
+                if(captured == null){
+                    captured = new boolean[frameSize];
+                }
+                captured[local.slot] = true;
+            }
+        }
+        return captured;
+    }
+
+    // A function or class declared inside a function might capture its locals, and change them behind its back
+    private void markClosure(){
+        if(currentDeclaration != null){
+            currentDeclaration.hasClosures = true;
+        }
+    }
+
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
@@ -120,16 +324,28 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitVarExpr(Expr.Var expr) {
         if(!scopes.isEmpty() && scopes.peek().get(expr.name.getLexeme()) == Boolean.FALSE){
-            Lox.error(expr.name, "Cannot read local cariable in its own initializer");
+            error(expr.name, "Cannot read local cariable in its own initializer");
+        }
+        Resolution local = resolveLocal(expr.name, expr);
+        if(local != null){
+            expr.isGlobal = false;
+            expr.depth = local.depth;
+            expr.slot = local.slot;
+            expr.upvalue = local.upvalue;
         }
-        resolveLocal(expr, expr.name);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Resolution local = resolveLocal(expr.name, expr);
+        if(local != null){
+            expr.isGlobal = false;
+            expr.depth = local.depth;
+            expr.slot = local.slot;
+            expr.upvalue = local.upvalue;
+        }
         return null;
     }
 
@@ -165,9 +381,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if(currentClass == ClassType.NONE){
-            Lox.error(expr.keyword, "Invalid 'this'. Cannot use this outside of a class");
+            error(expr.keyword, "Invalid 'this'. Cannot use this outside of a class");
         } else {
-            resolveLocal(expr, expr.keyword);
+            Resolution local = resolveLocal(expr.keyword, expr);
+            expr.isGlobal = false;
+            expr.depth = local.depth;
+            expr.slot = local.slot;
+            expr.upvalue = local.upvalue;
         }
         return null;
     }
@@ -175,18 +395,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if(currentClass == ClassType.NONE){
-            Lox.error(expr.keyword, "Invalid 'super'. Cannot use super outside of a class");
+            error(expr.keyword, "Invalid 'super'. Cannot use super outside of a class");
         } else if(currentClass == ClassType.CLASS){
-            Lox.error(expr.keyword, "Invalid 'super'. Cannot use super in a class with no superclass");
+            error(expr.keyword, "Invalid 'super'. Cannot use super in a class with no superclass");
         } else {
-            resolveLocal(expr, expr.keyword);
+            Resolution local = resolveLocal(expr.keyword, expr);
+            expr.isGlobal = false;
+            expr.depth = local.depth;
+            expr.slot = local.slot;
+            expr.upvalue = local.upvalue;
+            // The method gets bound to whatever 'this' is where super is used
+            expr.receiver = new Expr.This(new Token(TokenType.THIS, "this", null, expr.keyword.getLine()));
+            resolve(expr.receiver);
         }
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         if(stmt.init != null){
             resolve(stmt.init);
         }
@@ -198,31 +425,27 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS; // Set the currentClass so when we resolve the functions we know that they're methods (ie 'this' is defined)
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         if(stmt.superclass != null){
             currentClass = ClassType.SUBCLASS; // So we can resolve 'super'
             if(stmt.name.getLexeme().equals(stmt.superclass.name.getLexeme())){
-                Lox.error(stmt.superclass.name, "A class cannot inherit from itself.");
+                error(stmt.superclass.name, "A class cannot inherit from itself.");
             }
             resolve(stmt.superclass);
             beginScope();
-            scopes.peek().put("super",true);
+            defineSynthetic("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true); // can't use define/declare cuz we don't have a token, so we just throw it in
         for(Stmt.Fun method: stmt.methods){
-            if(method.name.getLexeme().equals("init")) {
+            if(ClassLayout.isInitializer(method.name.getLexeme())) {
                 resolveFunction(method, FunctionType.INITIALIZER);
             } else {
                 resolveFunction(method, FunctionType.METHOD);
             }
         }
 
-        endScope(); // end the scope where we defined 'this'
-
         if(stmt.superclass != null) {
             endScope(); // end the scope where we defined 'super'
         }
@@ -233,7 +456,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitFunStmt(Stmt.Fun stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -253,12 +476,65 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        stmt.sharesEnv = canShareEnv(stmt);
+        beginScope(!stmt.sharesEnv);
+        int[] frame = frames.isEmpty() ? null : frames.peek();
+        stmt.firstSlot = stmt.sharesEnv && frame != null ? frame[0] : 0;
         resolve(stmt.statements);
+        if(stmt.sharesEnv){
+            stmt.slotCount = 0;
+            if(frame != null){
+                frame[0] = stmt.firstSlot; // Its locals are gone once it ends, so the slots can be used again
+            }
+        } else {
+            stmt.slotCount = frame[1];
+        }
         endScope();
         return null;
     }
 
+    /**
+     * A block that declares nothing doesn't need an Env of its own, and neither does one whose locals can only be
+     * seen from inside it: they can go in the slots after the enclosing scope's. Closures are what rule that out,
+     * since one could keep using a slot after the block has handed it back
+     */
+    private boolean canShareEnv(Stmt.Block block){
+        if(!elideScopes){
+            return false;
+        }
+        boolean declares = false;
+        for(Stmt statement: block.statements){
+            if(statement instanceof Stmt.Var || statement instanceof Stmt.Fun || statement instanceof Stmt.Class){
+                declares = true;
+            }
+        }
+        return !declares || (!frames.isEmpty() && !declaresFunctions(block.statements));
+    }
+
+    private static boolean declaresFunctions(List<Stmt> statements){
+        for(Stmt statement: statements){
+            if(declaresFunctions(statement)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean declaresFunctions(Stmt statement){
+        if(statement instanceof Stmt.Fun || statement instanceof Stmt.Class){
+            return true;
+        } else if(statement instanceof Stmt.Block){
+            return declaresFunctions(((Stmt.Block) statement).statements);
+        } else if(statement instanceof Stmt.If){
+            Stmt.If conditional = (Stmt.If) statement;
+            return declaresFunctions(conditional.thenCase)
+                    || (conditional.elseCase != null && declaresFunctions(conditional.elseCase));
+        } else if(statement instanceof Stmt.While){
+            return declaresFunctions(((Stmt.While) statement).body);
+        }
+        return false;
+    }
+
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         resolve(stmt.condition);
@@ -279,13 +555,15 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if(currentFunction == FunctionType.NONE){
-            Lox.error(stmt.ret, "Cannot return from top-level scope.");
+            error(stmt.ret, "Cannot return from top-level scope.");
         }
 
         if(stmt.value != null){
             if(currentFunction == FunctionType.INITIALIZER){
-                Lox.error(stmt.ret, "Cannot return a value from initializer.");
+                error(stmt.ret, "Cannot return a value from initializer.");
             }
+            // Nothing is left to do in this function once the call returns, so the interpreter can make it in place
+            stmt.isTailCall = stmt.value instanceof Expr.Call;
             resolve(stmt.value);
         }
         return null;
@@ -0,0 +1,54 @@
+package lox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compiled function body: the bytecode, the constant pool it indexes into, and the source line of every byte
+ *
+ * Number constants are kept unboxed the same way the VM's stack keeps numbers, so loading one is just a copy
+ */
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    Object[] constants = new Object[16];
+    double[] numbers = new double[16];
+    int constantCount = 0;
+    // Numbers and strings are immutable so identical ones can share a single constant
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    void write(byte b, int line){
+        if(count == code.length){
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value){
+        boolean shareable = value instanceof Double || value instanceof String;
+        if(shareable && constantIndexes.containsKey(value)){
+            return constantIndexes.get(value);
+        }
+
+        if(constantCount == constants.length){
+            constants = Arrays.copyOf(constants, constantCount * 2);
+            numbers = Arrays.copyOf(numbers, constantCount * 2);
+        }
+        if(value instanceof Double){
+            constants[constantCount] = VM.NUMBER;
+            numbers[constantCount] = (double) value;
+        } else {
+            constants[constantCount] = value;
+        }
+        if(shareable){
+            constantIndexes.put(value, constantCount);
+        }
+        return constantCount++;
+    }
+}
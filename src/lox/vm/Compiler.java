@@ -0,0 +1,649 @@
+package lox.vm;
+
+import lox.Lox;
+import lox.parser.Expr;
+import lox.parser.Stmt;
+import lox.parser.Token;
+import lox.parser.TokenType;
+import lox.runtime.ClassLayout;
+import lox.semantic.FunctionType;
+
+import java.util.List;
+
+/**
+ * Single pass compiler from the (already resolved) AST into bytecode for the VM
+ *
+ * The Resolver has already reported all the semantic errors, the only errors left here are the limits of the
+ * bytecode format (number of locals, constants, jump distances)
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_CONSTANTS = 65536;
+    private static final int MAX_GLOBALS = 65536;
+    private static final int MAX_JUMP = 65535;
+
+    private static class Local {
+        final String name;
+        int depth; // -1 while the initializer is still being compiled
+        boolean isCaptured = false;
+
+        Local(String name, int depth){
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal){
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    /**
+     * Compilation state for the function currently being compiled, these nest the same way function declarations do
+     */
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final Local[] locals = new Local[MAX_LOCALS];
+        int localCount = 0;
+        final Upvalue[] upvalues = new Upvalue[MAX_UPVALUES];
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type){
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot 0 holds the receiver for methods, and the function being called otherwise
+            String slotZero = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+            locals[localCount++] = new Local(slotZero, 0);
+        }
+    }
+
+    private final Globals globals;
+    private FunctionState current;
+    private int line = 1;
+    private boolean hadError = false;
+
+    Compiler(Globals globals){
+        this.globals = globals;
+    }
+
+    /**
+     * @return the top level script as a function taking no arguments, or null if the program couldn't be compiled
+     */
+    VmFunction compile(List<Stmt> program){
+        current = new FunctionState(null, new VmFunction(null, 0), FunctionType.NONE);
+        for(Stmt statement: program){
+            compile(statement);
+        }
+        emitReturn();
+        return hadError ? null : current.function;
+    }
+
+    private void compile(Stmt statement){
+        statement.accept(this);
+    }
+
+    private void compile(Expr expr){
+        expr.accept(this);
+    }
+
+    private void error(String message){
+        Lox.error(line, message);
+        hadError = true;
+    }
+
+    // EMITTING
+
+    private Chunk chunk(){
+        return current.function.chunk;
+    }
+
+    private void emit(byte b){
+        chunk().write(b, line);
+    }
+
+    private void emit(byte op, int operand){
+        emit(op);
+        emit((byte) operand);
+    }
+
+    private void emitShort(int value){
+        emit((byte) ((value >> 8) & 0xff));
+        emit((byte) (value & 0xff));
+    }
+
+    private void emitWithConstant(byte op, Object value){
+        emit(op);
+        emitShort(makeConstant(value));
+    }
+
+    private int makeConstant(Object value){
+        int index = chunk().addConstant(value);
+        if(index >= MAX_CONSTANTS){
+            error("Too many constants in one function.");
+            return 0;
+        }
+        return index;
+    }
+
+    /**
+     * Global instructions take the global's slot instead of a name constant
+     */
+    private void emitWithGlobal(byte op, String name){
+        int slot = globals.slot(name);
+        if(slot >= MAX_GLOBALS){
+            error("Too many global variables.");
+            slot = 0;
+        }
+        emit(op);
+        emitShort(slot);
+    }
+
+    private int emitJump(byte op){
+        emit(op);
+        emitShort(0xffff);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset){
+        int jump = chunk().count - offset - 2;
+        if(jump > MAX_JUMP){
+            error("Too much code to jump over.");
+        }
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    /**
+     * Compiles a statement's condition and a jump for when it's false, to be patched once the target is known
+     */
+    private int emitConditionJump(Expr condition){
+        int jump = condition instanceof Expr.Binary ? comparisonJump(((Expr.Binary) condition).operator.getType()) : -1;
+        if(jump == -1){
+            compile(condition);
+            return emitJump(OpCode.POP_JUMP_IF_FALSE);
+        }
+        Expr.Binary comparison = (Expr.Binary) condition;
+        compile(comparison.left);
+        compile(comparison.right);
+        line = comparison.operator.getLine();
+        return emitJump((byte) jump);
+    }
+
+    /**
+     * @return the jump taken when the comparison is false, or -1 if the operator isn't a comparison of numbers
+     */
+    private static int comparisonJump(TokenType operator){
+        switch(operator){
+            case GREATER: return OpCode.JUMP_IF_NOT_GREATER;
+            case GREATER_EQUAL: return OpCode.JUMP_IF_NOT_GREATER_EQUAL;
+            case LESS: return OpCode.JUMP_IF_NOT_LESS;
+            case LESS_EQUAL: return OpCode.JUMP_IF_NOT_LESS_EQUAL;
+            default: return -1;
+        }
+    }
+
+    private void emitLoop(int loopStart){
+        emit(OpCode.LOOP);
+        int offset = chunk().count - loopStart + 2;
+        if(offset > MAX_JUMP){
+            error("Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private void emitReturn(){
+        if(current.type == FunctionType.INITIALIZER){
+            emit(OpCode.GET_LOCAL, 0); // Initializers always return 'this'
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    // SCOPES AND VARIABLES
+
+    private void beginScope(){
+        current.scopeDepth++;
+    }
+
+    private void endScope(){
+        current.scopeDepth--;
+        while(current.localCount > 0 && current.locals[current.localCount - 1].depth > current.scopeDepth){
+            if(current.locals[current.localCount - 1].isCaptured){
+                emit(OpCode.CLOSE_UPVALUE);
+            } else {
+                emit(OpCode.POP);
+            }
+            current.localCount--;
+        }
+    }
+
+    private void addLocal(String name){
+        if(current.localCount == MAX_LOCALS){
+            error("Too many local variables in function.");
+            return;
+        }
+        current.locals[current.localCount++] = new Local(name, -1);
+    }
+
+    private void markInitialized(){
+        if(current.scopeDepth == 0) return;
+        current.locals[current.localCount - 1].depth = current.scopeDepth;
+    }
+
+    /**
+     * Declares a local if we're in a scope, globals are late bound so there's nothing to declare for them
+     */
+    private void declareVariable(Token name){
+        if(current.scopeDepth == 0) return;
+        addLocal(name.getLexeme());
+    }
+
+    /**
+     * Called once the value of the variable is on top of the stack
+     */
+    private void defineVariable(Token name){
+        if(current.scopeDepth > 0){
+            markInitialized(); // The value is already sitting in the local's stack slot
+            return;
+        }
+        emitWithGlobal(OpCode.DEFINE_GLOBAL, name.getLexeme());
+    }
+
+    private static int resolveLocal(FunctionState state, String name){
+        for(int i = state.localCount - 1; i >= 0; i--){
+            if(state.locals[i].name.equals(name)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal){
+        int count = state.function.upvalueCount;
+        for(int i = 0; i < count; i++){
+            Upvalue upvalue = state.upvalues[i];
+            if(upvalue.index == index && upvalue.isLocal == isLocal){
+                return i;
+            }
+        }
+
+        if(count == MAX_UPVALUES){
+            error("Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues[count] = new Upvalue(index, isLocal);
+        return state.function.upvalueCount++;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name){
+        if(state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if(local != -1){
+            state.enclosing.locals[local].isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue != -1){
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private void namedVariable(String name, boolean isAssign){
+        int arg = resolveLocal(current, name);
+        if(arg != -1){
+            emit(isAssign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, arg);
+        } else if((arg = resolveUpvalue(current, name)) != -1){
+            emit(isAssign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, arg);
+        } else {
+            emitWithGlobal(isAssign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, name);
+        }
+    }
+
+    /**
+     * Assigns the value on top of the stack to the variable and pops it, for an assignment whose value isn't used
+     */
+    private void storeVariable(String name){
+        int arg = resolveLocal(current, name);
+        if(arg != -1){
+            emit(OpCode.STORE_LOCAL, arg);
+        } else if((arg = resolveUpvalue(current, name)) != -1){
+            emit(OpCode.SET_UPVALUE, arg);
+            emit(OpCode.POP);
+        } else {
+            emitWithGlobal(OpCode.STORE_GLOBAL, name);
+        }
+    }
+
+    private void function(Stmt.Fun declaration, FunctionType type){
+        FunctionState enclosing = current;
+        current = new FunctionState(enclosing, new VmFunction(declaration.name, declaration.params.size()), type);
+        beginScope();
+        for(Token param: declaration.params){
+            addLocal(param.getLexeme());
+            markInitialized();
+        }
+        for(Stmt statement: declaration.body){
+            compile(statement);
+        }
+        emitReturn();
+        // No endScope, the locals are discarded along with the whole frame when the function returns
+
+        FunctionState compiled = current;
+        current = enclosing;
+        emitWithConstant(OpCode.CLOSURE, compiled.function);
+        for(int i = 0; i < compiled.function.upvalueCount; i++){
+            emit(compiled.upvalues[i].isLocal ? (byte) 1 : (byte) 0);
+            emit((byte) compiled.upvalues[i].index);
+        }
+    }
+
+    // EXPRESSIONS
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.getLine();
+
+        switch(expr.operator.getType()){
+            case BANG_EQUAL: emit(OpCode.EQUAL); emit(OpCode.NOT); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case PLUS: emit(OpCode.ADD); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+            default:
+                error("Found unknown binary operator " + expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if(expr.value == null){
+            emit(OpCode.NIL);
+        } else if(expr.value.equals(true)){
+            emit(OpCode.TRUE);
+        } else if(expr.value.equals(false)){
+            emit(OpCode.FALSE);
+        } else {
+            emitWithConstant(OpCode.CONSTANT, expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.getLine();
+        if(expr.operator.getType() == TokenType.MINUS){
+            emit(OpCode.NEGATE);
+        } else {
+            emit(OpCode.NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        line = expr.name.getLine();
+        namedVariable(expr.name.getLexeme(), false);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.getLine();
+        namedVariable(expr.name.getLexeme(), true);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalBinaryExpr(Expr.LogicalBinary expr) {
+        // Like the tree walker, 'and'/'or' always produce a boolean rather than one of their operands
+        compile(expr.left);
+        line = expr.operator.getLine();
+        int shortCircuit = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        if(expr.operator.getType() == TokenType.OR){
+            emit(OpCode.TRUE);
+            int end = emitJump(OpCode.JUMP);
+            patchJump(shortCircuit);
+            emit(OpCode.POP);
+            compile(expr.right);
+            emit(OpCode.NOT); // Double negation to convert the right hand side to its truthiness
+            emit(OpCode.NOT);
+            patchJump(end);
+        } else {
+            compile(expr.right);
+            emit(OpCode.NOT);
+            emit(OpCode.NOT);
+            int end = emitJump(OpCode.JUMP);
+            patchJump(shortCircuit);
+            emit(OpCode.POP);
+            emit(OpCode.FALSE);
+            patchJump(end);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if(expr.calle instanceof Expr.Get){
+            // Method call, invoke it directly instead of creating a bound method just to call it
+            Expr.Get get = (Expr.Get) expr.calle;
+            compile(get.target);
+            compileArguments(expr.args);
+            line = expr.paren.getLine();
+            emitWithConstant(OpCode.INVOKE, new InlineCache(get.name.getLexeme()));
+            emit((byte) expr.args.size());
+        } else if(expr.calle instanceof Expr.Super){
+            Expr.Super superExpr = (Expr.Super) expr.calle;
+            line = superExpr.keyword.getLine();
+            namedVariable("this", false);
+            compileArguments(expr.args);
+            namedVariable("super", false);
+            line = expr.paren.getLine();
+            emitWithConstant(OpCode.SUPER_INVOKE, superExpr.method.getLexeme());
+            emit((byte) expr.args.size());
+        } else {
+            compile(expr.calle);
+            compileArguments(expr.args);
+            line = expr.paren.getLine();
+            emit(OpCode.CALL, expr.args.size());
+        }
+        return null;
+    }
+
+    private void compileArguments(List<Expr> args){
+        for(Expr arg: args){
+            compile(arg);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.target);
+        line = expr.name.getLine();
+        emitWithConstant(OpCode.GET_PROPERTY, new InlineCache(expr.name.getLexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.target);
+        compile(expr.val);
+        line = expr.name.getLine();
+        emitWithConstant(OpCode.SET_PROPERTY, new InlineCache(expr.name.getLexeme()));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.getLine();
+        namedVariable("this", false);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.getLine();
+        namedVariable("this", false);
+        namedVariable("super", false);
+        emitWithConstant(OpCode.GET_SUPER, expr.method.getLexeme());
+        return null;
+    }
+
+    // STATEMENTS
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.getLine();
+        declareVariable(stmt.name);
+        if(stmt.init != null){
+            compile(stmt.init);
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.name.getLine();
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.getLine();
+        declareVariable(stmt.name);
+        emitWithConstant(OpCode.CLASS, stmt.name.getLexeme());
+        defineVariable(stmt.name);
+
+        if(stmt.superclass != null){
+            compile(stmt.superclass);
+            // 'super' is a local in a scope wrapping the methods, so they can capture it as an upvalue
+            beginScope();
+            addLocal("super");
+            markInitialized();
+
+            namedVariable(stmt.name.getLexeme(), false);
+            line = stmt.superclass.name.getLine();
+            emit(OpCode.INHERIT);
+        }
+
+        namedVariable(stmt.name.getLexeme(), false); // Keep the class on the stack while the methods are added
+        for(Stmt.Fun method: stmt.methods){
+            line = method.name.getLine();
+            FunctionType type = ClassLayout.isInitializer(method.name.getLexeme()) ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitWithConstant(OpCode.METHOD, method.name.getLexeme());
+        }
+        emit(OpCode.POP);
+
+        if(stmt.superclass != null){
+            endScope();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunStmt(Stmt.Fun stmt) {
+        line = stmt.name.getLine();
+        declareVariable(stmt.name);
+        markInitialized(); // A function can refer to itself, so it's usable before its body is compiled
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if(stmt.expression instanceof Expr.Assign){
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            compile(assign.value);
+            line = assign.name.getLine();
+            storeVariable(assign.name.getLexeme());
+            return null;
+        }
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for(Stmt statement: stmt.statements){
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int thenJump = emitConditionJump(stmt.condition);
+        compile(stmt.thenCase);
+        if(stmt.elseCase == null){
+            patchJump(thenJump);
+            return null;
+        }
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        compile(stmt.elseCase);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().count;
+        int exitJump = emitConditionJump(stmt.cond);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.ret.getLine();
+        if(stmt.value == null || current.type == FunctionType.INITIALIZER){
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emit(OpCode.RETURN);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,46 @@
+package lox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Global variables of a VM. The Compiler numbers each name the first time it comes across it, and the global
+ * instructions take that number, so the VM indexes an array instead of hashing the name on every access
+ *
+ * Globals are still late bound: a slot exists as soon as any code names it, it just holds UNDEFINED until the
+ * definition runs
+ */
+final class Globals {
+    static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    String[] names = new String[16];
+    Object[] values = new Object[16];
+    double[] numbers = new double[16]; // Numbers are kept unboxed, like on the VM's stack
+    private int count = 0;
+
+    Globals(){
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    int slot(String name){
+        Integer slot = slots.get(name);
+        if(slot != null){
+            return slot;
+        }
+        if(count == values.length){
+            names = Arrays.copyOf(names, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+            numbers = Arrays.copyOf(numbers, count * 2);
+            Arrays.fill(values, count, values.length, UNDEFINED);
+        }
+        names[count] = name;
+        slots.put(name, count);
+        return count++;
+    }
+
+    void define(String name, Object value){
+        values[slot(name)] = value;
+    }
+}
@@ -0,0 +1,105 @@
+package lox.vm;
+
+import lox.runtime.Instance;
+import lox.runtime.LoxError;
+import lox.runtime.Shape;
+import lox.runtime.Symbols;
+
+/**
+ * Inline cache for a single property instruction, keyed on the receiver's Shape the same way as the tree walker's
+ * PropertyCache. The Compiler puts one in the constant pool in place of the property's name, so every get, set or
+ * invoke site has its own
+ *
+ * Remembers up to MAX_ENTRIES shapes, after that the site is megamorphic and any other shape gets the full lookup
+ */
+final class InlineCache {
+    private static final int MAX_ENTRIES = 4;
+
+    final String name;
+    private final int symbol;
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    private final int[] slots = new int[MAX_ENTRIES]; // -1 if the name is a method
+    private final VmClosure[] methods = new VmClosure[MAX_ENTRIES]; // Get only
+    private final Shape[] nextShapes = new Shape[MAX_ENTRIES]; // Set only, shape after the write
+    private int size = 0;
+
+    InlineCache(String name){
+        this.name = name;
+        this.symbol = Symbols.intern(name);
+    }
+
+    /**
+     * @return the field, or the method bound to the instance
+     */
+    Object get(VmInstance instance, int line){
+        Shape shape = instance.getShape();
+        for(int i = 0; i < size; i++){
+            if(shapes[i] == shape){
+                return slots[i] == -1 ? new VmBoundMethod(instance, methods[i]) : instance.getField(slots[i]);
+            }
+        }
+        int slot = shape.slotOf(symbol);
+        VmClosure method = slot == -1 ? instance.klass.layout().getMethod(symbol) : null;
+        if(slot == -1 && method == null){
+            throw new LoxError(line, Instance.missingProperty(name));
+        }
+        remember(shape, slot, method);
+        return method != null ? new VmBoundMethod(instance, method) : instance.getField(slot);
+    }
+
+    /**
+     * For obj.name(), which can call the method without binding it first
+     *
+     * @return the method the name resolves to, or null if it's a field (or doesn't exist), in which case the caller
+     * should fall back to get
+     */
+    VmClosure getMethod(VmInstance instance){
+        Shape shape = instance.getShape();
+        for(int i = 0; i < size; i++){
+            if(shapes[i] == shape){
+                return slots[i] == -1 ? methods[i] : null;
+            }
+        }
+        int slot = shape.slotOf(symbol);
+        VmClosure method = slot == -1 ? instance.klass.layout().getMethod(symbol) : null;
+        if(slot != -1 || method != null){
+            remember(shape, slot, method);
+        }
+        return method;
+    }
+
+    void set(VmInstance instance, Object value){
+        Shape shape = instance.getShape();
+        for(int i = 0; i < size; i++){
+            if(shapes[i] == shape){
+                instance.setField(nextShapes[i], slots[i], value);
+                return;
+            }
+        }
+        instance.set(symbol, value);
+        int entry = addEntry(shape);
+        if(entry != -1){
+            nextShapes[entry] = instance.getShape();
+            slots[entry] = nextShapes[entry].slotOf(symbol);
+        }
+    }
+
+    private void remember(Shape shape, int slot, VmClosure method){
+        int entry = addEntry(shape);
+        if(entry != -1){
+            slots[entry] = slot;
+            methods[entry] = method;
+        }
+    }
+
+    /**
+     * @return the index of the new entry, or -1 if the cache is full and the site is megamorphic
+     */
+    private int addEntry(Shape shape){
+        if(size == MAX_ENTRIES){
+            return -1;
+        }
+        shapes[size] = shape;
+        return size++;
+    }
+}
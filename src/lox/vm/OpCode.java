@@ -0,0 +1,67 @@
+package lox.vm;
+
+/**
+ * Instruction set for the VM. Operands follow the opcode inline in the chunk:
+ *  - constant/name operands are 2 bytes (index into the constant pool). Property get, set and invoke have an
+ *    InlineCache there, which carries the name
+ *  - global operands are 2 bytes (slot in Globals)
+ *  - local slots, upvalue indexes and argument counts are 1 byte
+ *  - jump offsets are 2 bytes
+ */
+final class OpCode {
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    static final byte GET_GLOBAL = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL = 9;
+    static final byte GET_UPVALUE = 10;
+    static final byte SET_UPVALUE = 11;
+    static final byte GET_PROPERTY = 12;
+    static final byte SET_PROPERTY = 13;
+    static final byte GET_SUPER = 14;
+
+    static final byte EQUAL = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS = 18;
+    static final byte LESS_EQUAL = 19;
+    static final byte ADD = 20;
+    static final byte SUBTRACT = 21;
+    static final byte MULTIPLY = 22;
+    static final byte DIVIDE = 23;
+    static final byte NOT = 24;
+    static final byte NEGATE = 25;
+
+    static final byte PRINT = 26;
+    static final byte JUMP = 27;
+    static final byte JUMP_IF_FALSE = 28;
+    static final byte LOOP = 29;
+    static final byte CALL = 30;
+    static final byte INVOKE = 31;
+    static final byte SUPER_INVOKE = 32;
+    static final byte CLOSURE = 33;
+    static final byte CLOSE_UPVALUE = 34;
+    static final byte RETURN = 35;
+    static final byte CLASS = 36;
+    static final byte INHERIT = 37;
+    static final byte METHOD = 38;
+
+    // JUMP_IF_FALSE, SET_LOCAL and SET_GLOBAL followed by a POP, for conditions and assignments used as statements
+    static final byte POP_JUMP_IF_FALSE = 39;
+    static final byte STORE_LOCAL = 40;
+    static final byte STORE_GLOBAL = 41;
+    // A comparison that's a statement's condition jumps on the numbers, without making a boolean to test
+    static final byte JUMP_IF_NOT_GREATER = 42;
+    static final byte JUMP_IF_NOT_GREATER_EQUAL = 43;
+    static final byte JUMP_IF_NOT_LESS = 44;
+    static final byte JUMP_IF_NOT_LESS_EQUAL = 45;
+
+    private OpCode(){
+    }
+}
@@ -0,0 +1,652 @@
+package lox.vm;
+
+import lox.Lox;
+import lox.exception.LoxRuntimeException;
+import lox.execution.LoxCallable;
+import lox.execution.external.Native;
+import lox.parser.Stmt;
+import lox.runtime.ClassLayout;
+import lox.runtime.Clock;
+import lox.runtime.Instance;
+import lox.runtime.LoxError;
+import lox.runtime.Ops;
+import lox.runtime.Symbols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stack based bytecode virtual machine, an alternative to the tree walking InterpreterVisitor. It never compiles
+ * anything to JVM bytecode, so hot code runs faster in the tree walker once that has tiered it up
+ *
+ * All the values live on one contiguous stack, each call frame just points at where its slots start. Variables that
+ * are captured by closures are moved off the stack into their VmUpvalue when they go out of scope
+ *
+ * Numbers are never boxed while they're on the stack, in a global or in an upvalue: the slot holds NUMBER and the
+ * number itself is in the parallel double array. They're only boxed on the way to anything else, like fields, natives
+ * and Ops
+ */
+public class VM {
+    private static final int FRAMES_MAX = 16384;
+    static final Object NUMBER = new Object();
+
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+        int base;
+    }
+
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+    private int sp = 0;
+    private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    private int frameCount = 0;
+    private VmUpvalue openUpvalues = null;
+    private final Globals globals = new Globals();
+
+    // The state of the currently executing frame, cached out of the CallFrame while it runs
+    private CallFrame frame;
+    private byte[] code;
+    private int[] lines;
+    private Object[] constants;
+    private double[] constantNumbers;
+    private int ip;
+    private int base;
+
+    public VM(){
+        globals.define("clock", new Native(new Clock()));
+    }
+
+    public void interpret(List<Stmt> program){
+        VmFunction script = new Compiler(globals).compile(program);
+        if(script == null) return; // Compile errors have already been reported
+
+        try {
+            VmClosure closure = new VmClosure(script);
+            push(closure);
+            call(closure, 0);
+            run();
+        } catch (LoxRuntimeException e){
+            Lox.runtimeError(e);
+        } catch (LoxError e){
+            Lox.runtimeError(new LoxRuntimeException(e.getLine(), e.getMessage()));
+        } finally {
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    // STACK
+
+    private void grow(){
+        stack = Arrays.copyOf(stack, stack.length * 2);
+        numbers = Arrays.copyOf(numbers, numbers.length * 2);
+    }
+
+    private void push(Object value){
+        if(sp == stack.length){
+            grow();
+        }
+        store(sp++, value);
+    }
+
+    /**
+     * The value in a slot, boxed if it's a number
+     */
+    private Object value(int slot){
+        Object value = stack[slot];
+        return value == NUMBER ? (Object) numbers[slot] : value;
+    }
+
+    /**
+     * Puts a value that came from off the stack in a slot, unboxing it if it's a number
+     */
+    private void store(int slot, Object value){
+        if(value instanceof Double){
+            stack[slot] = NUMBER;
+            numbers[slot] = (double) value;
+        } else {
+            stack[slot] = value;
+        }
+    }
+
+    private static int readShort(byte[] code, int at){
+        return ((code[at] & 0xff) << 8) | (code[at + 1] & 0xff);
+    }
+
+    private LoxRuntimeException error(String message){
+        return error(ip, message);
+    }
+
+    private LoxRuntimeException error(int ip, String message){
+        return new LoxRuntimeException(lines[ip - 1], message);
+    }
+
+    // CALLS
+
+    private void loadFrame(){
+        frame = frames[frameCount - 1];
+        code = frame.closure.function.chunk.code;
+        lines = frame.closure.function.chunk.lines;
+        constants = frame.closure.function.chunk.constants;
+        constantNumbers = frame.closure.function.chunk.numbers;
+        ip = frame.ip;
+        base = frame.base;
+    }
+
+    private List<Object> argumentList(int argc){
+        List<Object> arguments = new ArrayList<>(argc);
+        for(int i = sp - argc; i < sp; i++){
+            arguments.add(value(i));
+        }
+        return arguments;
+    }
+
+    private Object callNative(LoxCallable function, int argc){
+        switch(argc){
+            case 0: return function.call0(null);
+            case 1: return function.call1(null, value(sp - 1));
+            case 2: return function.call2(null, value(sp - 2), value(sp - 1));
+            case 3: return function.call3(null, value(sp - 3), value(sp - 2), value(sp - 1));
+            case 4: return function.call4(null, value(sp - 4), value(sp - 3), value(sp - 2), value(sp - 1));
+            default: return function.call(null, argumentList(argc));
+        }
+    }
+
+    private void checkArity(int arity, int argc){
+        if(argc != arity){
+            throw error(Ops.wrongArity(arity, argumentList(argc)));
+        }
+    }
+
+    private void call(VmClosure closure, int argc){
+        checkArity(closure.function.arity, argc);
+        if(frameCount == FRAMES_MAX){
+            throw error("Stack overflow.");
+        }
+
+        if(frame != null){
+            frame.ip = ip;
+        }
+        CallFrame next = frames[frameCount];
+        if(next == null){
+            next = frames[frameCount] = new CallFrame();
+        }
+        next.closure = closure;
+        next.ip = 0;
+        next.base = sp - argc - 1;
+        frameCount++;
+        loadFrame();
+    }
+
+    private void callValue(Object callee, int argc){
+        if(callee instanceof VmClosure){
+            call((VmClosure) callee, argc);
+        } else if(callee instanceof VmBoundMethod){
+            VmBoundMethod bound = (VmBoundMethod) callee;
+            stack[sp - argc - 1] = bound.receiver;
+            call(bound.method, argc);
+        } else if(callee instanceof VmClass){
+            VmClass klass = (VmClass) callee;
+            stack[sp - argc - 1] = new VmInstance(klass);
+            VmClosure initializer = klass.layout().getInitializer();
+            if(initializer != null){
+                call(initializer, argc);
+            } else {
+                checkArity(0, argc);
+            }
+        } else if(callee instanceof LoxCallable){
+            // Natives are shared with the tree walker
+            LoxCallable function = (LoxCallable) callee;
+            checkArity(function.getArity(), argc);
+            Object result = callNative(function, argc);
+            sp -= argc + 1;
+            push(result);
+        } else {
+            throw error(Ops.notCallable(callee));
+        }
+    }
+
+    private VmClosure superMethod(int ip, VmClass superclass, String name){
+        VmClosure method = superclass.layout().getMethod(Symbols.intern(name));
+        if(method == null){
+            throw error(ip, ClassLayout.undefinedProperty(name));
+        }
+        return method;
+    }
+
+    private VmInstance checkInstance(int ip, int slot, String action){
+        Object target = stack[slot];
+        if(!(target instanceof VmInstance)){
+            throw error(ip, Instance.notAnInstance(action, value(slot)));
+        }
+        return (VmInstance) target;
+    }
+
+    // UPVALUES
+
+    private VmUpvalue captureUpvalue(int index){
+        VmUpvalue prev = null;
+        VmUpvalue upvalue = openUpvalues;
+        while(upvalue != null && upvalue.index > index){
+            prev = upvalue;
+            upvalue = upvalue.next;
+        }
+        if(upvalue != null && upvalue.index == index){
+            return upvalue;
+        }
+
+        VmUpvalue created = new VmUpvalue(index, upvalue);
+        if(prev == null){
+            openUpvalues = created;
+        } else {
+            prev.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last){
+        while(openUpvalues != null && openUpvalues.index >= last){
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.index];
+            upvalue.closedNumber = numbers[upvalue.index];
+            upvalue.isOpen = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    // DISPATCH LOOP
+
+    // The dispatch loop keeps the stack, ip and the current frame's code in locals so the JIT can hold them in
+    // registers. They are written back to the fields before anything that works on the fields (calls, upvalues,
+    // errors) and reloaded after anything that may have switched frames. The stack arrays are only ever replaced
+    // through the fields, so the helpers always see the same arrays as the loop
+    //
+    // Operators on two numbers are done right here, anything else goes to Ops, which reports errors at the line it's
+    // given
+    private void run(){
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int sp = this.sp;
+        byte[] code = this.code;
+        int[] lines = this.lines;
+        Object[] constants = this.constants;
+        double[] constantNumbers = this.constantNumbers;
+        int ip = this.ip;
+        int base = this.base;
+        while(true){
+            // No instruction grows the stack by more than one slot
+            if(sp == stack.length){
+                grow();
+                stack = this.stack;
+                numbers = this.numbers;
+            }
+            switch(code[ip++]){
+                case OpCode.CONSTANT: {
+                    int index = readShort(code, ip);
+                    ip += 2;
+                    stack[sp] = constants[index];
+                    numbers[sp++] = constantNumbers[index];
+                    break;
+                }
+                case OpCode.NIL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = true; break;
+                case OpCode.FALSE: stack[sp++] = false; break;
+                case OpCode.POP: sp--; break;
+
+                case OpCode.GET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[sp] = stack[slot];
+                    numbers[sp++] = numbers[slot];
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    break;
+                }
+                case OpCode.STORE_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    sp--;
+                    stack[slot] = stack[sp];
+                    numbers[slot] = numbers[sp];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    Object value = globals.values[slot];
+                    if(value == Globals.UNDEFINED){
+                        throw error(ip, "Variable '" + globals.names[slot] + "' undefined in scope.");
+                    }
+                    stack[sp] = value;
+                    numbers[sp++] = globals.numbers[slot];
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    sp--;
+                    globals.values[slot] = stack[sp];
+                    globals.numbers[slot] = numbers[sp];
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    if(globals.values[slot] == Globals.UNDEFINED){
+                        throw error(ip, "Variable '" + globals.names[slot] + "' does not exist.");
+                    }
+                    globals.values[slot] = stack[sp - 1];
+                    globals.numbers[slot] = numbers[sp - 1];
+                    break;
+                }
+                case OpCode.STORE_GLOBAL: {
+                    int slot = readShort(code, ip);
+                    ip += 2;
+                    if(globals.values[slot] == Globals.UNDEFINED){
+                        throw error(ip, "Variable '" + globals.names[slot] + "' does not exist.");
+                    }
+                    sp--;
+                    globals.values[slot] = stack[sp];
+                    globals.numbers[slot] = numbers[sp];
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if(upvalue.isOpen){
+                        stack[sp] = stack[upvalue.index];
+                        numbers[sp++] = numbers[upvalue.index];
+                    } else {
+                        stack[sp] = upvalue.closed;
+                        numbers[sp++] = upvalue.closedNumber;
+                    }
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if(upvalue.isOpen){
+                        stack[upvalue.index] = stack[sp - 1];
+                        numbers[upvalue.index] = numbers[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                        upvalue.closedNumber = numbers[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    InlineCache site = (InlineCache) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmInstance instance = checkInstance(ip, sp - 1, "access");
+                    store(sp - 1, site.get(instance, lines[ip - 1]));
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    InlineCache site = (InlineCache) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmInstance instance = checkInstance(ip, sp - 2, "set");
+                    site.set(instance, value(--sp));
+                    stack[sp - 1] = null; // Like the tree walker, a property assignment evaluates to nil
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    VmClosure method = superMethod(ip, (VmClass) stack[--sp], name);
+                    stack[sp - 1] = new VmBoundMethod(stack[sp - 1], method);
+                    break;
+                }
+
+                case OpCode.EQUAL: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        stack[sp - 1] = Ops.isEqual(numbers[sp - 1], numbers[sp]);
+                    } else {
+                        stack[sp - 1] = Ops.isEqual(value(sp - 1), value(sp));
+                    }
+                    break;
+                }
+                case OpCode.GREATER: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+                    } else {
+                        stack[sp - 1] = Ops.greater(value(sp - 1), value(sp), lines[ip - 1]);
+                    }
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+                    } else {
+                        stack[sp - 1] = Ops.greaterEqual(value(sp - 1), value(sp), lines[ip - 1]);
+                    }
+                    break;
+                }
+                case OpCode.LESS: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+                    } else {
+                        stack[sp - 1] = Ops.less(value(sp - 1), value(sp), lines[ip - 1]);
+                    }
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+                    } else {
+                        stack[sp - 1] = Ops.lessEqual(value(sp - 1), value(sp), lines[ip - 1]);
+                    }
+                    break;
+                }
+                case OpCode.ADD: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        numbers[sp - 1] += numbers[sp];
+                    } else {
+                        store(sp - 1, Ops.add(value(sp - 1), value(sp), lines[ip - 1]));
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        numbers[sp - 1] -= numbers[sp];
+                    } else {
+                        store(sp - 1, Ops.subtract(value(sp - 1), value(sp), lines[ip - 1]));
+                    }
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        numbers[sp - 1] *= numbers[sp];
+                    } else {
+                        store(sp - 1, Ops.multiply(value(sp - 1), value(sp), lines[ip - 1]));
+                    }
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    sp--;
+                    if(stack[sp - 1] == NUMBER && stack[sp] == NUMBER){
+                        numbers[sp - 1] = Ops.divide(numbers[sp - 1], numbers[sp], lines[ip - 1]);
+                    } else {
+                        store(sp - 1, Ops.divide(value(sp - 1), value(sp), lines[ip - 1]));
+                    }
+                    break;
+                }
+                case OpCode.NOT: stack[sp - 1] = Ops.not(value(sp - 1)); break;
+                case OpCode.NEGATE: {
+                    if(stack[sp - 1] == NUMBER){
+                        numbers[sp - 1] = -numbers[sp - 1];
+                    } else {
+                        store(sp - 1, Ops.negate(value(sp - 1), lines[ip - 1]));
+                    }
+                    break;
+                }
+
+                case OpCode.PRINT: System.out.println(Ops.stringify(value(--sp))); break;
+                case OpCode.JUMP: ip += readShort(code, ip) + 2; break;
+                case OpCode.JUMP_IF_FALSE:
+                    ip += Ops.isTruthy(value(sp - 1)) ? 2 : readShort(code, ip) + 2;
+                    break;
+                case OpCode.POP_JUMP_IF_FALSE:
+                    ip += Ops.isTruthy(value(--sp)) ? 2 : readShort(code, ip) + 2;
+                    break;
+                case OpCode.JUMP_IF_NOT_GREATER: {
+                    sp -= 2;
+                    boolean greater = stack[sp] == NUMBER && stack[sp + 1] == NUMBER ? numbers[sp] > numbers[sp + 1]
+                            : Ops.isTruthy(Ops.greater(value(sp), value(sp + 1), lines[ip - 1]));
+                    ip += greater ? 2 : readShort(code, ip) + 2;
+                    break;
+                }
+                case OpCode.JUMP_IF_NOT_GREATER_EQUAL: {
+                    sp -= 2;
+                    boolean greaterEqual = stack[sp] == NUMBER && stack[sp + 1] == NUMBER ? numbers[sp] >= numbers[sp + 1]
+                            : Ops.isTruthy(Ops.greaterEqual(value(sp), value(sp + 1), lines[ip - 1]));
+                    ip += greaterEqual ? 2 : readShort(code, ip) + 2;
+                    break;
+                }
+                case OpCode.JUMP_IF_NOT_LESS: {
+                    sp -= 2;
+                    boolean less = stack[sp] == NUMBER && stack[sp + 1] == NUMBER ? numbers[sp] < numbers[sp + 1]
+                            : Ops.isTruthy(Ops.less(value(sp), value(sp + 1), lines[ip - 1]));
+                    ip += less ? 2 : readShort(code, ip) + 2;
+                    break;
+                }
+                case OpCode.JUMP_IF_NOT_LESS_EQUAL: {
+                    sp -= 2;
+                    boolean lessEqual = stack[sp] == NUMBER && stack[sp + 1] == NUMBER ? numbers[sp] <= numbers[sp + 1]
+                            : Ops.isTruthy(Ops.lessEqual(value(sp), value(sp + 1), lines[ip - 1]));
+                    ip += lessEqual ? 2 : readShort(code, ip) + 2;
+                    break;
+                }
+                case OpCode.LOOP: ip -= readShort(code, ip) - 2; break;
+
+                // Calls and returns switch frames: sync the fields, let the helpers work on them, then reload
+                case OpCode.CALL: {
+                    int argc = code[ip++] & 0xff;
+                    this.ip = ip;
+                    this.sp = sp;
+                    callValue(value(sp - argc - 1), argc);
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    sp = this.sp;
+                    code = this.code;
+                    lines = this.lines;
+                    constants = this.constants;
+                    constantNumbers = this.constantNumbers;
+                    ip = this.ip;
+                    base = this.base;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    InlineCache site = (InlineCache) constants[readShort(code, ip)];
+                    int argc = code[ip + 2] & 0xff;
+                    ip += 3;
+                    VmInstance instance = checkInstance(ip, sp - argc - 1, "access");
+                    this.ip = ip;
+                    this.sp = sp;
+                    VmClosure method = site.getMethod(instance);
+                    if(method != null){
+                        call(method, argc);
+                    } else {
+                        Object field = site.get(instance, lines[ip - 1]);
+                        store(sp - argc - 1, field);
+                        callValue(field, argc);
+                    }
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    sp = this.sp;
+                    code = this.code;
+                    lines = this.lines;
+                    constants = this.constants;
+                    constantNumbers = this.constantNumbers;
+                    ip = this.ip;
+                    base = this.base;
+                    break;
+                }
+                case OpCode.SUPER_INVOKE: {
+                    String name = (String) constants[readShort(code, ip)];
+                    int argc = code[ip + 2] & 0xff;
+                    ip += 3;
+                    VmClosure method = superMethod(ip, (VmClass) stack[--sp], name);
+                    this.ip = ip;
+                    this.sp = sp;
+                    call(method, argc);
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    sp = this.sp;
+                    code = this.code;
+                    lines = this.lines;
+                    constants = this.constants;
+                    constantNumbers = this.constantNumbers;
+                    ip = this.ip;
+                    base = this.base;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    VmClosure closure = new VmClosure((VmFunction) constants[readShort(code, ip)]);
+                    ip += 2;
+                    for(int i = 0; i < closure.upvalues.length; i++){
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                    }
+                    stack[sp++] = closure;
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                case OpCode.RETURN: {
+                    sp--;
+                    Object result = stack[sp];
+                    double number = numbers[sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if(frameCount == 0){
+                        this.sp = sp;
+                        return;
+                    }
+                    stack[base] = result;
+                    numbers[base] = number;
+                    sp = base + 1;
+                    loadFrame();
+                    code = this.code;
+                    lines = this.lines;
+                    constants = this.constants;
+                    constantNumbers = this.constantNumbers;
+                    ip = this.ip;
+                    base = this.base;
+                    break;
+                }
+                case OpCode.CLASS: stack[sp++] = new VmClass((String) constants[readShort(code, ip)]); ip += 2; break;
+                case OpCode.INHERIT: {
+                    Object superclass = stack[sp - 2];
+                    if(!(superclass instanceof VmClass)){
+                        throw error(ip, ClassLayout.notAClass(value(sp - 2)));
+                    }
+                    ((VmClass) stack[--sp]).inherit((VmClass) superclass);
+                    break;
+                }
+                case OpCode.METHOD: {
+                    VmClosure method = (VmClosure) stack[--sp];
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    ((VmClass) stack[sp - 1]).addMethod(Symbols.intern(name), method);
+                    break;
+                }
+                default:
+                    throw error(ip, "Unknown opcode " + code[ip - 1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package lox.vm;
+
+/**
+ * Only created when a method is used as a value, method calls go straight through OpCode.INVOKE instead
+ */
+class VmBoundMethod {
+    final Object receiver;
+    final VmClosure method;
+
+    VmBoundMethod(Object receiver, VmClosure method){
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
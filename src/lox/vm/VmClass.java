@@ -0,0 +1,41 @@
+package lox.vm;
+
+import lox.runtime.ClassLayout;
+import lox.runtime.SymbolMap;
+
+/**
+ * The methods are collected as the class declaration runs, the ClassLayout (with inherited methods flattened in) is
+ * only made the first time the class is used. Nothing can use a class before its declaration has finished running
+ */
+class VmClass {
+    final String name;
+    private VmClass superclass;
+    private final SymbolMap<VmClosure> methods = new SymbolMap<>();
+    private ClassLayout<VmClosure> layout;
+
+    VmClass(String name){
+        this.name = name;
+    }
+
+    void inherit(VmClass superclass){
+        this.superclass = superclass;
+    }
+
+    void addMethod(int symbol, VmClosure method){
+        methods.put(symbol, method);
+    }
+
+    ClassLayout<VmClosure> layout(){
+        if(layout == null){
+            layout = new ClassLayout<>(name, superclass == null ? null : superclass.layout(), methods);
+        }
+        return layout;
+    }
+
+    @Override
+    public String toString() {
+        return "LoxClass{" +
+                "name='" + name + '\'' +
+                '}';
+    }
+}
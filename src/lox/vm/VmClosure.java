@@ -0,0 +1,19 @@
+package lox.vm;
+
+/**
+ * Runtime function value, a VmFunction plus the variables it captured from enclosing functions
+ */
+class VmClosure {
+    final VmFunction function;
+    final VmUpvalue[] upvalues;
+
+    VmClosure(VmFunction function){
+        this.function = function;
+        this.upvalues = new VmUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package lox.vm;
+
+import lox.parser.Token;
+
+/**
+ * The compiled form of a function declaration (or the top level script, which has no name)
+ */
+class VmFunction {
+    final Token name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+
+    VmFunction(Token name, int arity){
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        return "LoxFunction{" +
+                "name=" + name +
+                '}';
+    }
+}
@@ -0,0 +1,15 @@
+package lox.vm;
+
+import lox.runtime.Instance;
+
+/**
+ * Fields are laid out by Shape like every other engine's instances, so property instructions can use an InlineCache
+ */
+class VmInstance extends Instance {
+    final VmClass klass;
+
+    VmInstance(VmClass klass){
+        super(klass.layout());
+        this.klass = klass;
+    }
+}
@@ -0,0 +1,18 @@
+package lox.vm;
+
+/**
+ * A captured variable. While the variable is still on the stack the upvalue is open and refers to its stack index,
+ * once the variable goes out of scope it's closed and the value is moved into the upvalue itself, numbers still unboxed
+ */
+class VmUpvalue {
+    int index;
+    Object closed;
+    double closedNumber;
+    boolean isOpen = true;
+    VmUpvalue next; // Open upvalues form a list sorted by stack index, highest first
+
+    VmUpvalue(int index, VmUpvalue next){
+        this.index = index;
+        this.next = next;
+    }
+}
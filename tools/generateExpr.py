@@ -1,30 +1,36 @@
 expressions = [
-    "Assign,Token:name,Expr:value",
-    "Binary,Expr:left,Token:operator,Expr:right",
+    "Assign,Token:name,Expr:value|int:depth=-1,int:slot=-1,boolean:isGlobal=true,int:upvalue=-1,boolean:inCell=false",
+    "Binary,Expr:left,Token:operator,Expr:right|byte:numeric=0",
     "Grouping,Expr:expression",
     "Literal,Object:value",
     "Unary,Token:operator,Expr:right",
-    "Var,Token:name", #Expression that returns the value stored in the variable with that name
+    "Var,Token:name|int:depth=-1,int:slot=-1,boolean:isGlobal=true,int:upvalue=-1,boolean:inCell=false", #Expression that returns the value stored in the variable with that name
     "LogicalBinary,Expr:left,Token:operator,Expr:right",
     "Call,Expr:calle,Token:paren,List<Expr>:args",
-    "Get,Expr:target,Token:name",
-    "Set,Expr:target,Token:name,Expr:val",
-    "This,Token:keyword",
-    "Super,Token:keyword,Token:method"
+    "Get,Expr:target,Token:name|PropertyCache:cache=new PropertyCache()",
+    "Set,Expr:target,Token:name,Expr:val|PropertyCache:cache=new PropertyCache()",
+    "This,Token:keyword|int:depth=-1,int:slot=-1,boolean:isGlobal=true,int:upvalue=-1,boolean:inCell=false",
+    "Super,Token:keyword,Token:method|int:depth=-1,int:slot=-1,boolean:isGlobal=true,int:upvalue=-1,Expr.This:receiver=null"
 ]
 
 statements = [
-    "Var,Token:name,Expr:init",
-    "Class,Token:name,Expr.Var:superclass,List<Stmt.Fun>:methods",
-    "Fun,Token:name,List<Token>:params,List<Stmt>:body",
+    "Var,Token:name,Expr:init|boolean:isCaptured=false",
+    "Class,Token:name,Expr.Var:superclass,List<Stmt.Fun>:methods|boolean:isCaptured=false",
+    "Fun,Token:name,List<Token>:params,List<Stmt>:body|int:slotCount=0,boolean:isMethod=false,boolean:hasClosures=false,Tier:tier=new Tier(),boolean:isCaptured=false,boolean[]:capturedSlots=null,Capture[]:captures=Capture.NONE",
     "Expression,Expr:expression",
     "Print,Expr:expression",
-    "Block,List<Stmt>:statements",
+    "Block,List<Stmt>:statements|int:slotCount=0,boolean:sharesEnv=false,int:firstSlot=0",
     "If,Expr:cond,Stmt:thenCase,Stmt:elseCase",
-    "While,Expr:cond,Stmt:body",
-    "Return,Token:ret,Expr:value"
+    "While,Expr:cond,Stmt:body|Tier:tier=new Tier()",
+    "Return,Token:ret,Expr:value|boolean:isTailCall=false"
 ]
 
+# Anything after a '|' is a mutable field with a default value, filled in by later passes (eg the Resolver)
+# depth/slot count scopes across function boundaries; upvalue is set instead for a variable of an enclosing function,
+# and inCell when a closure captured the variable so its own function keeps it in a Cell. isCaptured on a declaration
+# means the same, capturedSlots covers 'this' and the parameters. numeric on a Binary is worked out by InterpreterVisitor
+# the first time it runs: 1 if it always gives a number, -1 if not
+
 stuff = [
     ("Expr", expressions),
     ("Stmt", statements)
@@ -36,7 +42,9 @@ def visitorAbstractFn(type, base):
 for (base, expressions) in stuff:
     visitor = ""
     for node in expressions:
+        node, _, mutable = node.partition("|")
         parts = node.split(",")
+        mutableFields = mutable.split(",") if mutable else []
         paramList = ",".join([x.replace(":", " ") for x in parts[1:]])
 
         visitor+=visitorAbstractFn(parts[0], base)
@@ -45,7 +53,7 @@ for (base, expressions) in stuff:
         classDef = "public static class " + parts[0] + " extends " + base + " {\n"
 
         # constructor
-        classDef += "\t" + parts[0] + "(" + paramList + ") {\n"
+        classDef += "\tpublic " + parts[0] + "(" + paramList + ") {\n"
         for field in parts[1:]:
             name = field.split(":")[1]
             type = field.split(":")[0]
@@ -64,6 +72,10 @@ for (base, expressions) in stuff:
             name = field.split(":")[1]
             type = field.split(":")[0]
             classDef+="\tpublic final " + type + " " + name + ";\n"
+        for field in mutableFields:
+            type, rest = field.split(":")
+            name, default = rest.split("=")
+            classDef+="\tpublic " + type + " " + name + " = " + default + ";\n"
         classDef+="}\n"
         print(classDef)
     print(visitor)
\ No newline at end of file